@@ -0,0 +1,70 @@
+/* Benachrichtigt die Clients über geänderte Datensätze, damit diese ihre Zwischenspeicher gezielt aktualisieren. */
+/* Nutzdaten: '<Tabelle>:<Operation>:<ID>' */
+/* Argumente: Tabelle, die gemeldet wird; Spalte mit der ID; optional die gemeldete Operation */
+CREATE OR REPLACE FUNCTION notify_change() returns trigger as
+$$
+declare
+  rec record;
+begin
+  IF TG_OP = 'DELETE' THEN
+    rec := OLD;
+  ELSE
+    rec := NEW;
+  END IF;
+  PERFORM pg_notify('elwasys_changes',
+                    TG_ARGV[0] || ':' || COALESCE(TG_ARGV[2], TG_OP) || ':' || (row_to_json(rec) ->> TG_ARGV[1]));
+  return NULL;
+end;
+$$ language plpgsql;
+
+CREATE TRIGGER users_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON users
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('users', 'id');
+CREATE TRIGGER user_groups_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON user_groups
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('user_groups', 'id');
+CREATE TRIGGER locations_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON locations
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('locations', 'id');
+CREATE TRIGGER devices_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON devices
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('devices', 'id');
+CREATE TRIGGER programs_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON programs
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('programs', 'id');
+CREATE TRIGGER executions_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON executions
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('executions', 'id');
+
+/* Ausführungen und Buchungen verändern das Guthaben des Benutzers */
+CREATE TRIGGER executions_user_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON executions
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('users', 'user_id', 'UPDATE');
+CREATE TRIGGER credit_accounting_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON credit_accounting
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('users', 'user_id', 'UPDATE');
+
+/* Änderungen an Relationen betreffen beide beteiligten Datensätze */
+CREATE TRIGGER device_program_rel_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON device_program_rel
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('devices', 'device_id', 'UPDATE');
+CREATE TRIGGER devices_valid_user_groups_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON devices_valid_user_groups
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('devices', 'device_id', 'UPDATE');
+CREATE TRIGGER devices_valid_user_groups_group_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON devices_valid_user_groups
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('user_groups', 'group_id', 'UPDATE');
+CREATE TRIGGER programs_valid_user_groups_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON programs_valid_user_groups
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('programs', 'program_id', 'UPDATE');
+CREATE TRIGGER programs_valid_user_groups_group_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON programs_valid_user_groups
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('user_groups', 'group_id', 'UPDATE');
+CREATE TRIGGER locations_valid_user_groups_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON locations_valid_user_groups
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('locations', 'location_id', 'UPDATE');
+CREATE TRIGGER locations_valid_user_groups_group_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON locations_valid_user_groups
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('user_groups', 'group_id', 'UPDATE');
+
+UPDATE config SET value='0.3.3' WHERE key='db.version';
@@ -0,0 +1,40 @@
+/* Kartennummern in einer eigenen, eindeutig indizierten Tabelle, damit ein Kartenscan nicht alle Benutzer durchsucht */
+CREATE TABLE user_card_ids
+(
+  card_id TEXT PRIMARY KEY,
+  user_id INTEGER NOT NULL REFERENCES users ON DELETE CASCADE
+);
+CREATE INDEX user_card_ids_user_id_idx ON user_card_ids (user_id);
+
+/* Bestehende Kartennummern übernehmen. Mehrfach vergebene Karten gehören dem Benutzer mit der kleinsten ID. */
+INSERT INTO user_card_ids (card_id, user_id)
+  SELECT DISTINCT ON (card_id) card_id, id
+  FROM users, regexp_split_to_table(users.card_ids, E'\n') AS card_id
+  WHERE NOT users.deleted AND card_id <> ''
+  ORDER BY card_id, id;
+
+/* Hält user_card_ids mit users.card_ids synchron, sodass ältere Clients weiterhin card_ids schreiben können. */
+/* Läuft mit den Rechten des Eigentümers, damit jeder, der Benutzer ändern darf, auch den Index fortschreiben kann. */
+CREATE OR REPLACE FUNCTION sync_user_card_ids() returns trigger as
+$$
+begin
+  DELETE FROM user_card_ids WHERE user_id = NEW.id;
+  IF NOT NEW.deleted THEN
+    INSERT INTO user_card_ids (card_id, user_id)
+      SELECT DISTINCT card_id, NEW.id
+      FROM regexp_split_to_table(NEW.card_ids, E'\n') AS card_id
+      WHERE card_id <> '';
+  END IF;
+  return NULL;
+end;
+$$ language plpgsql SECURITY DEFINER SET search_path = public;
+
+CREATE TRIGGER users_card_ids_sync_trigger
+  AFTER INSERT OR UPDATE OF card_ids, deleted ON users
+  FOR EACH ROW EXECUTE PROCEDURE sync_user_card_ids();
+
+GRANT SELECT ON user_card_ids TO GROUP elwaclients;
+GRANT SELECT, INSERT, UPDATE, DELETE ON user_card_ids TO elwaportal;
+GRANT SELECT ON user_card_ids TO elwaapi;
+
+UPDATE config SET value='0.3.4' WHERE key='db.version';
@@ -0,0 +1,85 @@
+/* Fortgeschriebenes Guthaben je Benutzer, damit nicht bei jedem Laden alle Buchungen summiert werden müssen */
+CREATE TABLE user_balances
+(
+  user_id                  INTEGER PRIMARY KEY REFERENCES users ON DELETE CASCADE,
+  balance                  NUMERIC NOT NULL DEFAULT 0,
+  /* Anzahl der Buchungen seit dem letzten Stützpunkt */
+  entries_since_checkpoint INTEGER NOT NULL DEFAULT 0
+);
+
+/* Stützpunkte des Guthabens: Stand nach der Buchung last_entry_id */
+/* Das Guthaben zu einem beliebigen Zeitpunkt ergibt sich aus dem letzten Stützpunkt und den Buchungen danach. */
+CREATE TABLE credit_checkpoints
+(
+  id            SERIAL PRIMARY KEY,
+  user_id       INTEGER REFERENCES users ON DELETE CASCADE NOT NULL,
+  last_entry_id INTEGER                                    NOT NULL,
+  date          TIMESTAMP                                  NOT NULL,
+  balance       NUMERIC                                    NOT NULL
+);
+CREATE INDEX credit_checkpoints_user_date_idx ON credit_checkpoints (user_id, date);
+CREATE INDEX credit_accounting_user_id_idx ON credit_accounting (user_id, id);
+
+/* Bestehende Guthaben übernehmen und für jeden Benutzer einen ersten Stützpunkt setzen */
+INSERT INTO user_balances (user_id, balance)
+  SELECT user_id, SUM(amount) FROM credit_accounting GROUP BY user_id;
+INSERT INTO credit_checkpoints (user_id, last_entry_id, date, balance)
+  SELECT user_id, MAX(id), COALESCE(MAX(date), CURRENT_TIMESTAMP), SUM(amount)
+  FROM credit_accounting GROUP BY user_id;
+
+/* Schreibt das Guthaben mit jeder Buchung fort und setzt alle 500 Buchungen einen Stützpunkt. */
+/* Läuft mit den Rechten des Eigentümers, damit buchen kann, wer Buchungen anlegen darf, ohne Guthaben zu schreiben. */
+CREATE OR REPLACE FUNCTION maintain_user_balance() returns trigger as
+$$
+declare
+  bal user_balances%ROWTYPE;
+begin
+  IF TG_OP IN ('UPDATE', 'DELETE') THEN
+    UPDATE user_balances SET balance = balance - OLD.amount WHERE user_id = OLD.user_id;
+  END IF;
+  IF TG_OP IN ('INSERT', 'UPDATE') THEN
+    INSERT INTO user_balances (user_id, balance, entries_since_checkpoint) VALUES (NEW.user_id, NEW.amount, 1)
+    ON CONFLICT (user_id) DO UPDATE SET balance = user_balances.balance + EXCLUDED.balance,
+                                        entries_since_checkpoint = user_balances.entries_since_checkpoint + 1
+    RETURNING * INTO bal;
+    IF bal.entries_since_checkpoint >= 500 THEN
+      INSERT INTO credit_checkpoints (user_id, last_entry_id, date, balance)
+        VALUES (NEW.user_id, NEW.id, COALESCE(NEW.date, CURRENT_TIMESTAMP), bal.balance);
+      UPDATE user_balances SET entries_since_checkpoint = 0 WHERE user_id = NEW.user_id;
+    END IF;
+  END IF;
+  /* Nachträglich geänderte Buchungen machen spätere Stützpunkte ungültig */
+  IF TG_OP IN ('UPDATE', 'DELETE') THEN
+    DELETE FROM credit_checkpoints WHERE user_id = OLD.user_id AND last_entry_id >= OLD.id;
+  END IF;
+  return NULL;
+end;
+$$ language plpgsql SECURITY DEFINER SET search_path = public;
+
+CREATE TRIGGER credit_accounting_balance_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON credit_accounting
+  FOR EACH ROW EXECUTE PROCEDURE maintain_user_balance();
+
+/* Gibt das Guthaben eines Benutzers zu einem Zeitpunkt zurück: letzter Stützpunkt davor plus die Buchungen danach */
+CREATE OR REPLACE FUNCTION user_balance_at(p_user_id INTEGER, p_date TIMESTAMP) returns NUMERIC as
+$$
+declare
+  cp credit_checkpoints%ROWTYPE;
+begin
+  SELECT * INTO cp FROM credit_checkpoints
+  WHERE user_id = p_user_id AND date <= p_date
+  ORDER BY date DESC, last_entry_id DESC LIMIT 1;
+  IF NOT FOUND THEN
+    RETURN COALESCE((SELECT SUM(amount) FROM credit_accounting WHERE user_id = p_user_id AND date <= p_date), 0);
+  END IF;
+  RETURN cp.balance + COALESCE((SELECT SUM(amount) FROM credit_accounting
+                                WHERE user_id = p_user_id AND id > cp.last_entry_id AND date <= p_date), 0);
+end;
+$$ language plpgsql STABLE;
+
+GRANT SELECT ON user_balances, credit_checkpoints TO GROUP elwaclients;
+GRANT SELECT, INSERT, UPDATE, DELETE ON user_balances, credit_checkpoints TO elwaportal;
+GRANT SELECT, UPDATE ON SEQUENCE credit_checkpoints_id_seq TO elwaportal;
+GRANT SELECT ON user_balances, credit_checkpoints TO elwaapi;
+
+UPDATE config SET value='0.3.5' WHERE key='db.version';
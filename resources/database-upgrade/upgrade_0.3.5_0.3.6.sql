@@ -0,0 +1,64 @@
+/* Reservierungen von Guthaben für laufende Ausführungen. Der Betrag wird beim Start festgelegt, sodass spätere */
+/* Preisänderungen am Programm das verfügbare Guthaben nicht mehr verändern. */
+CREATE TABLE credit_holds
+(
+  execution_id INTEGER PRIMARY KEY REFERENCES executions ON DELETE CASCADE,
+  user_id      INTEGER REFERENCES users NOT NULL,
+  amount       NUMERIC                  NOT NULL,
+  date         TIMESTAMP                NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+CREATE INDEX credit_holds_user_id_idx ON credit_holds (user_id);
+
+/* Eine Reservierung endet, sobald ihre Ausführung abgeschlossen ist. Läuft mit den Rechten des Eigentümers, da */
+/* Clients Reservierungen zwar anlegen, aber nicht löschen dürfen. */
+CREATE OR REPLACE FUNCTION release_credit_hold() returns trigger as
+$$
+begin
+  DELETE FROM credit_holds WHERE execution_id = NEW.id;
+  return NULL;
+end;
+$$ language plpgsql SECURITY DEFINER SET search_path = public;
+
+CREATE TRIGGER executions_release_credit_hold_trigger
+  AFTER UPDATE OF finished ON executions
+  FOR EACH ROW WHEN (NEW.finished) EXECUTE PROCEDURE release_credit_hold();
+
+/* Reservierungen verändern das verfügbare Guthaben des Benutzers */
+CREATE TRIGGER credit_holds_notify_trigger
+  AFTER INSERT OR UPDATE OR DELETE ON credit_holds
+  FOR EACH ROW EXECUTE PROCEDURE notify_change('users', 'user_id', 'UPDATE');
+
+/* Bereits laufende Ausführungen reservieren den höchstmöglichen Preis wie beim Start (Program.getPrice) */
+INSERT INTO credit_holds (execution_id, user_id, amount)
+SELECT id, user_id, amount
+FROM (SELECT e.id,
+             e.user_id,
+             CASE g.discount_type
+               WHEN 'FACTOR' THEN p.price - p.price * g.discount_value::NUMERIC
+               WHEN 'FIX' THEN p.price - g.discount_value::NUMERIC
+               ELSE p.price
+               END AS amount
+      FROM executions e
+             JOIN users u ON u.id = e.user_id
+             JOIN user_groups g ON g.id = u.group_id
+             JOIN (SELECT id,
+                          CASE
+                            WHEN max_duration <= free_duration THEN 0
+                            WHEN type = 'FIXED' THEN flagfall
+                            ELSE flagfall + rate * (max_duration / CASE time_unit
+                                                                     WHEN 'SECONDS' THEN 1
+                                                                     WHEN 'MINUTES' THEN 60
+                                                                     WHEN 'HOURS' THEN 3600
+                              END)
+                            END AS price
+                   FROM programs) p ON p.id = e.program_id
+      WHERE e.finished = FALSE
+        AND e.start IS NOT NULL) running
+WHERE amount > 0
+ON CONFLICT (execution_id) DO NOTHING;
+
+GRANT SELECT, INSERT ON credit_holds TO GROUP elwaclients;
+GRANT SELECT, INSERT, UPDATE, DELETE ON credit_holds TO elwaportal;
+GRANT SELECT ON credit_holds TO elwaapi;
+
+UPDATE config SET value='0.3.6' WHERE key='db.version';
@@ -0,0 +1,4 @@
+/* Index für die seitenweise Buchungsübersicht eines Benutzers, neueste Buchungen zuerst */
+CREATE INDEX credit_accounting_user_date_idx ON credit_accounting (user_id, date DESC, id DESC);
+
+UPDATE config SET value='0.3.7' WHERE key='db.version';
@@ -0,0 +1,6 @@
+/* Indizes für Abfragen des Ausführungsverlaufs, neueste Ausführungen zuerst */
+CREATE INDEX executions_device_start_idx ON executions (device_id, start DESC, id DESC);
+CREATE INDEX executions_user_start_idx ON executions (user_id, start DESC, id DESC);
+CREATE INDEX executions_start_idx ON executions (start DESC, id DESC);
+
+UPDATE config SET value='0.3.8' WHERE key='db.version';
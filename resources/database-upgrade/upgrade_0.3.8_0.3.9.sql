@@ -0,0 +1,17 @@
+/* Ausführungen, die ein Client ohne Datenbank aufgezeichnet hat, tragen ihre Kennung aus dem Journal */
+ALTER TABLE executions ADD COLUMN offline_id UUID UNIQUE;
+
+/* Bereits nachgetragene Einträge der Offline-Journale, damit jeder Eintrag nur einmal wirkt */
+CREATE TABLE offline_journal_applied
+(
+  event_id   UUID PRIMARY KEY,
+  applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  note       TEXT
+);
+
+/* Clients tragen ihre Journale selbst nach */
+GRANT SELECT, INSERT ON offline_journal_applied TO GROUP elwaclients;
+GRANT SELECT, INSERT, UPDATE, DELETE ON offline_journal_applied TO elwaportal;
+GRANT SELECT ON offline_journal_applied TO elwaapi;
+
+UPDATE config SET value='0.3.9' WHERE key='db.version';
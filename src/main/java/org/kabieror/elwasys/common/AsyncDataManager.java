@@ -0,0 +1,207 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Führt Operationen des Datenmanagers im Hintergrund aus und gibt ihr Ergebnis als {@link CompletableFuture} zurück.
+ * <p>
+ * So muss z.B. die Oberfläche des Clients nicht auf die Datenbank warten, während ein Kartenscan aufgelöst wird, und
+ * voneinander unabhängige Abfragen können parallel laufen. Abhängige Abfragen lassen sich ohne Blockieren verketten:
+ * <pre>
+ * async.getUserByCardId(cardId).thenCompose(async::getNotFinishedExecutions).thenAccept(this::show);
+ * </pre>
+ * Die Operationen laufen auf einer begrenzten Anzahl eigener Threads, standardmäßig so vielen, wie der
+ * Verbindungspool Verbindungen bereithält. Auf neueren Java-Versionen können stattdessen virtuelle Threads verwendet
+ * werden ({@code database.async.virtualThreads=true}). Fehler schließen das Future mit der ursprünglichen Ausnahme ab,
+ * bei Fehlern der Datenbank also mit einer {@link SQLException}.
+ *
+ * @author Oliver Kabierschke
+ */
+public class AsyncDataManager {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DataManager dataManager;
+
+    private final ExecutorService executor;
+
+    AsyncDataManager(DataManager dataManager, ConfigurationManager config) {
+        this.dataManager = dataManager;
+        ExecutorService virtual = null;
+        if (config.getDatabaseAsyncVirtualThreads()) {
+            virtual = createVirtualThreadExecutor();
+            if (virtual == null) {
+                this.logger.warn("Virtual threads are not available on this JVM. Using a thread pool instead.");
+            }
+        }
+        if (virtual != null) {
+            this.executor = virtual;
+        } else {
+            final int threads = config.getDatabaseAsyncThreads();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(config.getDatabaseAsyncQueueSize()),
+                    new DaemonThreadFactory("elwasys-async"));
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        }
+    }
+
+    /**
+     * Erzeugt über Reflection einen Executor mit virtuellen Threads, da diese erst ab Java 21 zur Verfügung stehen.
+     *
+     * @return Der Executor oder null, wenn die JVM keine virtuellen Threads kennt
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Führt eine beliebige lesende oder schreibende Operation im Hintergrund aus.
+     *
+     * @param operation Die Operation
+     * @return Das Ergebnis der Operation
+     */
+    public <T> CompletableFuture<T> supply(IOperation<T> operation) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    result.complete(operation.execute(this.dataManager));
+                } catch (final Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Führt eine Operation ohne Ergebnis im Hintergrund aus, z.B. eine Änderung an einem Objekt.
+     *
+     * @param action Die Operation
+     * @return Ein Future, das nach Ende der Operation abgeschlossen wird
+     */
+    public CompletableFuture<Void> run(IAction action) {
+        return this.supply(dm -> {
+            action.execute(dm);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Location>> getLocations() {
+        return this.supply(DataManager::getLocations);
+    }
+
+    public CompletableFuture<Location> getLocation(int id) {
+        return this.supply(dm -> dm.getLocation(id));
+    }
+
+    public CompletableFuture<List<Device>> getDevices() {
+        return this.supply(DataManager::getDevices);
+    }
+
+    public CompletableFuture<List<Device>> getDevicesToDisplay(Location location) {
+        return this.supply(dm -> dm.getDevicesToDisplay(location));
+    }
+
+    public CompletableFuture<Device> getDevice(int id) {
+        return this.supply(dm -> dm.getDevice(id));
+    }
+
+    public CompletableFuture<List<Program>> getPrograms() {
+        return this.supply(DataManager::getPrograms);
+    }
+
+    public CompletableFuture<Program> getProgramById(int id) {
+        return this.supply(dm -> dm.getProgramById(id));
+    }
+
+    public CompletableFuture<List<UserGroup>> getUserGroups() {
+        return this.supply(DataManager::getUserGroups);
+    }
+
+    public CompletableFuture<List<User>> getUsers() {
+        return this.supply(DataManager::getUsers);
+    }
+
+    public CompletableFuture<User> getUserById(int id) {
+        return this.supply(dm -> dm.getUserById(id));
+    }
+
+    public CompletableFuture<User> getUserByCardId(String cardId) {
+        return this.supply(dm -> dm.getUserByCardId(cardId));
+    }
+
+    public CompletableFuture<User> getUserByEmail(String email) {
+        return this.supply(dm -> dm.getUserByEmail(email));
+    }
+
+    public CompletableFuture<User> getLastUser(Device device) {
+        return this.supply(dm -> dm.getLastUser(device));
+    }
+
+    public CompletableFuture<List<Execution>> getNotFinishedExecutions(User user) {
+        return this.supply(dm -> dm.getNotFinishedExecutions(user));
+    }
+
+    public CompletableFuture<Execution> getRunningExecution(Device device) {
+        return this.supply(dm -> dm.getRunningExecution(device));
+    }
+
+    public CompletableFuture<List<Execution>> getExecutions(ExecutionQuery query) {
+        return this.supply(dm -> dm.getExecutions(query));
+    }
+
+    public CompletableFuture<Execution> newExecution(User user, Program program, Device device) {
+        return this.supply(dm -> dm.newExecution(user, program, device));
+    }
+
+    public CompletableFuture<List<CreditAccountingEntry>> getAccountingEntries(User user,
+                                                                               CreditAccountingEntry after) {
+        return this.supply(dm -> dm.getAccountingEntries(user, after));
+    }
+
+    public CompletableFuture<CreditAccountingEntry> getLastInpayment(User user) {
+        return this.supply(dm -> dm.getLastInpayment(user));
+    }
+
+    /**
+     * Beendet die Hintergrund-Threads. Bereits übergebene Operationen werden noch ausgeführt.
+     */
+    void shutdown() {
+        this.executor.shutdown();
+    }
+
+    /**
+     * Eine Operation mit Ergebnis auf dem Datenmanager
+     */
+    @FunctionalInterface
+    public interface IOperation<T> {
+        T execute(DataManager dataManager) throws Exception;
+    }
+
+    /**
+     * Eine Operation ohne Ergebnis auf dem Datenmanager
+     */
+    @FunctionalInterface
+    public interface IAction {
+        void execute(DataManager dataManager) throws Exception;
+    }
+}
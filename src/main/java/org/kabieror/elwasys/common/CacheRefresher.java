@@ -0,0 +1,90 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lädt zwischengespeicherte Objekte im Hintergrund neu, bevor sie veralten.
+ * <p>
+ * In regelmäßigen Abständen werden alle angemeldeten Identitätstabellen nach häufig verwendeten Objekten durchsucht,
+ * deren Gültigkeit bald abläuft. Diese werden von einer kleinen Menge an Arbeitsthreads neu geladen, sodass
+ * Lesezugriffe den aktuellen Stand sofort aus dem Zwischenspeicher erhalten.
+ *
+ * @author Oliver Kabierschke
+ */
+class CacheRefresher {
+
+    /**
+     * Der Abstand zwischen zwei Durchsuchungen der Identitätstabellen
+     */
+    private static final long SCAN_INTERVAL_MILLIS = 1000;
+
+    /**
+     * Die Anzahl der Threads, die Objekte neu laden
+     */
+    private static final int WORKERS = 2;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final List<IdentityMap<?>> maps = new CopyOnWriteArrayList<>();
+
+    private final ScheduledExecutorService scanner;
+    private final ExecutorService workers;
+
+    CacheRefresher() {
+        this.scanner = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("elwasys-cache-scan"));
+        this.workers = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new DaemonThreadFactory("elwasys-cache-refresh"));
+        this.scanner.scheduleWithFixedDelay(this::scan, SCAN_INTERVAL_MILLIS, SCAN_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Meldet eine Identitätstabelle zur regelmäßigen Aktualisierung an.
+     */
+    void register(IdentityMap<?> map) {
+        this.maps.add(map);
+    }
+
+    /**
+     * Führt das Neuladen eines Objekts im Hintergrund aus.
+     *
+     * @return Falsch, wenn der Auftrag nicht angenommen wurde, weil die Aktualisierung beendet ist
+     */
+    boolean submit(Runnable reload) {
+        try {
+            this.workers.execute(reload);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Beendet die Aktualisierung im Hintergrund.
+     */
+    void shutdown() {
+        this.scanner.shutdownNow();
+        this.workers.shutdownNow();
+    }
+
+    private void scan() {
+        for (final IdentityMap<?> map : this.maps) {
+            try {
+                map.refreshAhead();
+            } catch (final RuntimeException e) {
+                this.logger.error("Failed to schedule the refresh of cached objects", e);
+            }
+        }
+    }
+}
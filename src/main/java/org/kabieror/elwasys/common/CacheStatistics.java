@@ -0,0 +1,73 @@
+package org.kabieror.elwasys.common;
+
+/**
+ * Eine Momentaufnahme der Kennzahlen eines Zwischenspeichers für Objekte eines Typs.
+ *
+ * @author Oliver Kabierschke
+ */
+public class CacheStatistics {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final int size;
+    private final int maximumSize;
+
+    CacheStatistics(long hitCount, long missCount, long evictionCount, int size, int maximumSize) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.size = size;
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * @return Die Anzahl der Zugriffe, bei denen das Objekt bereits geladen war
+     */
+    public long getHitCount() {
+        return this.hitCount;
+    }
+
+    /**
+     * @return Die Anzahl der Zugriffe, bei denen das Objekt aus der Datenbank geladen werden musste
+     */
+    public long getMissCount() {
+        return this.missCount;
+    }
+
+    /**
+     * @return Die Anzahl der Objekte, die wegen Überschreitung der maximalen Größe verdrängt wurden
+     */
+    public long getEvictionCount() {
+        return this.evictionCount;
+    }
+
+    /**
+     * @return Die Anzahl der derzeit abgelegten Objekte
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * @return Die maximale Anzahl abgelegter Objekte oder 0, wenn die Größe nicht beschränkt ist
+     */
+    public int getMaximumSize() {
+        return this.maximumSize;
+    }
+
+    /**
+     * @return Der Anteil der Zugriffe, bei denen das Objekt bereits geladen war, oder 1, wenn es noch keine Zugriffe
+     * gab
+     */
+    public double getHitRate() {
+        final long requests = this.hitCount + this.missCount;
+        return requests == 0 ? 1.0 : (double) this.hitCount / requests;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("size=%d/%d, hits=%d, misses=%d, evictions=%d, hitRate=%.2f", this.size,
+                this.maximumSize, this.hitCount, this.missCount, this.evictionCount, this.getHitRate());
+    }
+}
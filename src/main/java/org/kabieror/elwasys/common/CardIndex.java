@@ -0,0 +1,115 @@
+package org.kabieror.elwasys.common;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ordnet Kartennummern den IDs ihrer Benutzer zu, damit ein Kartenscan ohne Datenbankzugriff aufgelöst werden kann.
+ * <p>
+ * Der Index wird mit jedem geladenen oder geänderten Benutzer fortgeschrieben. Zusätzlich merkt er sich für eine
+ * begrenzte Zeit Kartennummern, zu denen die Datenbank keinen Benutzer kennt, damit wiederholte Scans einer unbekannten
+ * Karte nicht jedes Mal eine Abfrage auslösen.
+ * <p>
+ * Lesende Zugriffe kommen ohne Sperre aus, Änderungen werden nacheinander eingearbeitet.
+ *
+ * @author Oliver Kabierschke
+ */
+class CardIndex {
+
+    private final ConcurrentHashMap<String, Integer> userIdsByCard = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Integer, Set<String>> cardsByUserId = new ConcurrentHashMap<>();
+
+    /**
+     * Unbekannte Kartennummern samt dem Zeitpunkt (System.nanoTime), bis zu dem sie als unbekannt gelten
+     */
+    private final ConcurrentHashMap<String, Long> unknownCards = new ConcurrentHashMap<>();
+
+    /**
+     * Gibt die ID des Benutzers mit der gegebenen Kartennummer zurück.
+     *
+     * @return Die ID oder null, wenn die Karte nicht im Index steht
+     */
+    Integer getUserId(String cardId) {
+        return this.userIdsByCard.get(cardId);
+    }
+
+    /**
+     * Gibt an, ob die Kartennummer kürzlich als unbekannt gemeldet wurde.
+     */
+    boolean isKnownUnknown(String cardId) {
+        final Long until = this.unknownCards.get(cardId);
+        if (until == null) {
+            return false;
+        }
+        if (System.nanoTime() - until >= 0) {
+            this.unknownCards.remove(cardId, until);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merkt sich, dass die Datenbank zu einer Kartennummer keinen Benutzer kennt.
+     *
+     * @param ttl Die Dauer, für die die Karte als unbekannt gilt
+     */
+    void putUnknown(String cardId, Duration ttl) {
+        this.unknownCards.put(cardId, System.nanoTime() + ttl.toNanos());
+    }
+
+    /**
+     * Schreibt die Kartennummern eines Benutzers fort. Gelöschte Benutzer werden aus dem Index entfernt.
+     */
+    synchronized void update(int userId, String[] cardIds, boolean deleted) {
+        this.removeUserLocked(userId);
+        if (deleted || cardIds == null) {
+            return;
+        }
+        final Set<String> cards = new HashSet<>();
+        for (final String cardId : cardIds) {
+            if (cardId != null && !cardId.isEmpty()) {
+                cards.add(cardId);
+                this.userIdsByCard.put(cardId, userId);
+                this.unknownCards.remove(cardId);
+            }
+        }
+        this.cardsByUserId.put(userId, Collections.unmodifiableSet(cards));
+    }
+
+    /**
+     * Entfernt alle Kartennummern eines Benutzers aus dem Index, z.B. weil er in der Datenbank geändert wurde.
+     */
+    synchronized void removeUser(int userId) {
+        this.removeUserLocked(userId);
+    }
+
+    /**
+     * Vergisst alle als unbekannt gemerkten Kartennummern, z.B. weil einem Benutzer neue Karten zugeordnet wurden.
+     */
+    void clearUnknown() {
+        this.unknownCards.clear();
+    }
+
+    /**
+     * Leert den Index vollständig.
+     */
+    synchronized void clear() {
+        this.userIdsByCard.clear();
+        this.cardsByUserId.clear();
+        this.unknownCards.clear();
+    }
+
+    private void removeUserLocked(int userId) {
+        final Set<String> previous = this.cardsByUserId.remove(userId);
+        if (previous != null) {
+            for (final String cardId : previous) {
+                // Die Karte könnte inzwischen einem anderen Benutzer zugeordnet sein
+                this.userIdsByCard.remove(cardId, userId);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.kabieror.elwasys.common;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * Empfängt die Benachrichtigungen der Datenbank über geänderte Datensätze und gibt sie an den Datenmanager weiter.
+ * <p>
+ * Der Empfänger hält eine eigene Verbindung außerhalb des Verbindungspools, da die Anmeldung am Kanal an die Sitzung
+ * gebunden ist. Bricht die Verbindung ab, so wird sie neu aufgebaut. Da in der Zwischenzeit Benachrichtigungen verloren
+ * gegangen sein können, werden danach alle geladenen Objekte als veraltet markiert.
+ * <p>
+ * Damit auch eine unbemerkt abgebrochene Verbindung erkannt wird, fragt der Empfänger die Datenbank ab, wenn keine
+ * Benachrichtigungen eintreffen. Antwortet sie nicht innerhalb von {@link #SOCKET_TIMEOUT_SECONDS}, so gilt die
+ * Verbindung als abgebrochen.
+ *
+ * @author Oliver Kabierschke
+ */
+class ChangeListener implements Runnable {
+
+    /**
+     * Der Kanal, auf dem die Datenbank Änderungen meldet
+     */
+    static final String CHANNEL = "elwasys_changes";
+
+    /**
+     * Die maximale Wartezeit auf Benachrichtigungen, bevor auf eine Beendigung des Empfängers geprüft wird
+     */
+    private static final int POLL_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Die maximale Wartezeit auf eine Antwort der Datenbank. Muss länger sein als {@link #POLL_TIMEOUT_MILLIS}.
+     */
+    private static final int SOCKET_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Die Wartezeit vor einem erneuten Verbindungsversuch
+     */
+    private static final long RECONNECT_DELAY_MILLIS = 30000;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DataManager dataManager;
+    private final String url;
+    private final Properties dbProperties;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile boolean listening = false;
+
+    ChangeListener(DataManager dataManager, String url, Properties dbProperties) {
+        this.dataManager = dataManager;
+        this.url = url;
+        this.dbProperties = new Properties();
+        this.dbProperties.putAll(dbProperties);
+        this.dbProperties.setProperty("tcpKeepAlive", "true");
+        this.dbProperties.setProperty("socketTimeout", String.valueOf(SOCKET_TIMEOUT_SECONDS));
+        this.thread = new DaemonThreadFactory("elwasys-change-listener").newThread(this);
+    }
+
+    /**
+     * Startet den Empfang von Benachrichtigungen.
+     */
+    void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Gibt an, ob der Empfänger derzeit am Kanal angemeldet ist.
+     */
+    boolean isListening() {
+        return this.listening;
+    }
+
+    /**
+     * Beendet den Empfang von Benachrichtigungen.
+     */
+    void shutdown() {
+        this.running = false;
+        this.thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try (Connection c = DriverManager.getConnection(this.url, this.dbProperties)) {
+                try (Statement s = c.createStatement()) {
+                    s.execute("LISTEN " + CHANNEL);
+                }
+                final PGConnection pgConnection = c.unwrap(PGConnection.class);
+                this.listening = true;
+                this.logger.info("Listening for database changes on channel " + CHANNEL);
+                try {
+                    this.dataManager.invalidateAll();
+                } catch (final RuntimeException e) {
+                    this.logger.error("Could not invalidate the cached objects after connecting.", e);
+                }
+
+                while (this.running) {
+                    final PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications != null && notifications.length > 0) {
+                        for (final PGNotification n : notifications) {
+                            this.handle(n.getParameter());
+                        }
+                    } else {
+                        // Eine stille Verbindung könnte unbemerkt abgebrochen sein
+                        this.ping(c);
+                    }
+                }
+            } catch (final SQLException e) {
+                if (this.running) {
+                    this.logger.warn("Lost connection for database change notifications. Falling back to polling.",
+                            e);
+                }
+            } finally {
+                this.listening = false;
+            }
+
+            if (this.running) {
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Prüft, ob die Verbindung noch besteht.
+     *
+     * @throws SQLException Wenn die Datenbank nicht rechtzeitig antwortet
+     */
+    private void ping(Connection c) throws SQLException {
+        try (Statement s = c.createStatement()) {
+            s.execute("SELECT 1");
+        }
+    }
+
+    /**
+     * Verarbeitet eine Benachrichtigung der Form {@code <Tabelle>:<Operation>:<ID>}.
+     */
+    private void handle(String payload) {
+        final String[] parts = payload.split(":");
+        if (parts.length != 3) {
+            this.logger.warn("Ignoring malformed change notification '" + payload + "'");
+            return;
+        }
+        final int id;
+        try {
+            id = Integer.parseInt(parts[2]);
+        } catch (final NumberFormatException e) {
+            this.logger.warn("Ignoring malformed change notification '" + payload + "'");
+            return;
+        }
+        // Ein Fehler bei der Verarbeitung darf den Empfänger nicht beenden, sonst veralten die Zwischenspeicher still
+        try {
+            this.dataManager.onChange(parts[0], parts[1], id);
+        } catch (final RuntimeException e) {
+            this.logger.error("Could not process change notification '" + payload + "'", e);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.kabieror.elwasys.common;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Sammelt die Spalten eines Datensatzes, deren Wert sich bei einer Änderung tatsächlich unterscheidet, und erzeugt
+ * daraus ein UPDATE, das nur diese Spalten setzt.
+ * <p>
+ * Verglichen wird jeweils der Wert, wie er in die Datenbank geschrieben würde, mit dem zuletzt geladenen Wert.
+ * Unterscheidet sich keine Spalte, so wird gar keine Anweisung gesendet.
+ *
+ * @author Oliver Kabierschke
+ */
+class ColumnChanges {
+
+    private final List<String> assignments = new ArrayList<>();
+
+    private final List<Object> values = new ArrayList<>();
+
+    /**
+     * Merkt eine Spalte vor, sofern sich ihr Wert ändert.
+     *
+     * @param column  Der Name der Spalte
+     * @param current Der bisherige Wert
+     * @param value   Der neue Wert
+     */
+    ColumnChanges set(String column, Object current, Object value) {
+        return this.set(column, "?", current, value);
+    }
+
+    /**
+     * Merkt eine Spalte vor, sofern sich ihr Wert ändert.
+     *
+     * @param column      Der Name der Spalte
+     * @param placeholder Der Platzhalter für den Wert, z.B. {@code ?::PROGRAM_TYPE}
+     * @param current     Der bisherige Wert
+     * @param value       Der neue Wert
+     */
+    ColumnChanges set(String column, String placeholder, Object current, Object value) {
+        if (!equal(current, value)) {
+            this.assignments.add(column + "=" + placeholder);
+            this.values.add(value);
+        }
+        return this;
+    }
+
+    /**
+     * Gibt an, ob sich keine Spalte ändert.
+     */
+    boolean isEmpty() {
+        return this.assignments.isEmpty();
+    }
+
+    /**
+     * Schreibt die geänderten Spalten in den Datensatz mit der gegebenen ID.
+     *
+     * @param work  Die Arbeitseinheit, in der die Anweisung ausgeführt wird
+     * @param table Die Tabelle des Datensatzes
+     * @param id    Die ID des Datensatzes
+     */
+    void update(UnitOfWork work, String table, int id) throws SQLException {
+        if (this.isEmpty()) {
+            return;
+        }
+        final List<Object> params = new ArrayList<>(this.values);
+        params.add(id);
+        work.update("UPDATE " + table + " SET " + String.join(", ", this.assignments) + " WHERE id=?",
+                params.toArray());
+    }
+
+    /**
+     * Gibt eine Dauer so zurück, wie sie in der Datenbank gespeichert wird, nämlich in ganzen Sekunden.
+     */
+    static Integer seconds(Duration duration) {
+        return duration == null ? null : (int) duration.getSeconds();
+    }
+
+    private static boolean equal(Object a, Object b) {
+        if (a instanceof BigDecimal && b instanceof BigDecimal) {
+            // 1.0 und 1.00 sind in der Datenbank derselbe Wert
+            return ((BigDecimal) a).compareTo((BigDecimal) b) == 0;
+        }
+        return Objects.equals(a, b);
+    }
+}
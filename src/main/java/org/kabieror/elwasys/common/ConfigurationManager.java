@@ -7,6 +7,10 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 /**
@@ -75,6 +79,32 @@ public abstract class ConfigurationManager {
         return this.props.getProperty("database.server");
     }
 
+    /**
+     * Gibt die Lesereplikate zurück, an die lesende Abfragen verteilt werden dürfen. Sie werden in
+     * {@code database.replicas} durch Kommas getrennt als {@code host[:port]} angegeben.
+     *
+     * @return Die Lesereplikate, leer, wenn alle Abfragen an den Primärserver gehen
+     */
+    public List<String> getDatabaseReplicas() {
+        final List<String> replicas = new ArrayList<>();
+        for (final String server : this.props.getProperty("database.replicas", "").split(",")) {
+            if (!server.trim().isEmpty()) {
+                replicas.add(server.trim());
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * Gibt zurück, wie weit ein Lesereplikat höchstens hinter dem Primärserver zurückliegen darf, um noch Abfragen zu
+     * beantworten.
+     *
+     * @return Der höchste zulässige Rückstand
+     */
+    public Duration getDatabaseReplicaMaxLag() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("database.replica.maxLagSeconds", "5")));
+    }
+
     /**
      * Gibt den Namen der Datenbank zurück
      * 
@@ -111,6 +141,259 @@ public abstract class ConfigurationManager {
         return Boolean.parseBoolean(this.props.getProperty("database.useSsl"));
     }
 
+    /**
+     * Gibt die maximale Anzahl gleichzeitig geöffneter Datenbankverbindungen zurück.
+     *
+     * @return Die maximale Größe des Verbindungspools
+     */
+    public int getDatabasePoolMaxSize() {
+        return Integer.parseInt(this.props.getProperty("database.pool.maxSize", "10"));
+    }
+
+    /**
+     * Gibt die Anzahl an Datenbankverbindungen zurück, die im Leerlauf mindestens offen gehalten werden.
+     *
+     * @return Die minimale Anzahl unbenutzter Verbindungen im Pool
+     */
+    public int getDatabasePoolMinIdle() {
+        return Integer.parseInt(this.props.getProperty("database.pool.minIdle", "1"));
+    }
+
+    /**
+     * Gibt das Intervall zurück, in dem unbenutzte Datenbankverbindungen auf ihre Gültigkeit geprüft werden.
+     *
+     * @return Das Prüfintervall für unbenutzte Verbindungen
+     */
+    public Duration getDatabasePoolKeepaliveTime() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("database.pool.keepaliveSeconds", "60")));
+    }
+
+    /**
+     * Gibt die maximale Lebensdauer einer Datenbankverbindung zurück, nach der sie durch eine neue ersetzt wird.
+     *
+     * @return Die maximale Lebensdauer einer Verbindung
+     */
+    public Duration getDatabasePoolMaxLifetime() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("database.pool.maxLifetimeSeconds", "1800")));
+    }
+
+    /**
+     * Gibt die Zeit zurück, nach der eine nicht zurückgegebene Datenbankverbindung als Leck gemeldet wird. Der Wert 0
+     * deaktiviert die Erkennung.
+     *
+     * @return Die Schwelle zur Erkennung von Verbindungslecks
+     */
+    public Duration getDatabasePoolLeakDetectionThreshold() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("database.pool.leakDetectionSeconds", "60")));
+    }
+
+    /**
+     * Gibt die Zeit zurück, die höchstens auf eine freie Datenbankverbindung gewartet wird.
+     *
+     * @return Die maximale Wartezeit auf eine Verbindung
+     */
+    public Duration getDatabasePoolConnectionTimeout() {
+        return Duration
+                .ofSeconds(Long.parseLong(this.props.getProperty("database.pool.connectionTimeoutSeconds", "10")));
+    }
+
+    /**
+     * Gibt an, nach wie vielen Ausführungen einer Anweisung der Datenbanktreiber diese serverseitig vorbereitet.
+     *
+     * @return Die Anzahl an Ausführungen, ab der eine Anweisung serverseitig vorbereitet wird
+     */
+    public int getDatabasePrepareThreshold() {
+        return Integer.parseInt(this.props.getProperty("database.prepareThreshold", "1"));
+    }
+
+    /**
+     * Gibt die Anzahl an vorbereiteten Anweisungen zurück, die je Datenbankverbindung zwischengespeichert werden.
+     *
+     * @return Die Größe des Anweisungs-Caches je Verbindung
+     */
+    public int getDatabaseStatementCacheSize() {
+        return Integer.parseInt(this.props.getProperty("database.statementCacheSize", "256"));
+    }
+
+    /**
+     * Gibt zurück, wie viele Buchungen eine Seite der Buchungsübersicht eines Benutzers umfasst.
+     *
+     * @return Die Anzahl der Buchungen je Seite
+     */
+    public int getDatabaseAccountingPageSize() {
+        return Integer.parseInt(this.props.getProperty("database.accountingPageSize", "50"));
+    }
+
+    /**
+     * Gibt zurück, wie viele Zeilen beim Durchlaufen großer Abfrageergebnisse auf einmal von der Datenbank gelesen
+     * werden.
+     *
+     * @return Die Anzahl der Zeilen je Portion
+     */
+    public int getDatabaseFetchSize() {
+        return Integer.parseInt(this.props.getProperty("database.fetchSize", "500"));
+    }
+
+    /**
+     * Gibt zurück, in welchen Abständen unkritische Änderungen wie der Zeitpunkt des letzten Logins gesammelt in die
+     * Datenbank geschrieben werden. Der Wert 0 schreibt jede Änderung sofort.
+     *
+     * @return Der Abstand zwischen zwei Schreibvorgängen
+     */
+    public Duration getDatabaseWriteBehindInterval() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("database.writeBehind.intervalSeconds", "10")));
+    }
+
+    /**
+     * Gibt die Datei zurück, aus der Standorte, Gruppen, Programme und Geräte beim Start sofort gelesen werden. Der
+     * Warmstart ist nur aktiv, wenn {@code database.warmStart.file} gesetzt ist.
+     *
+     * @return Die Datei, oder null, wenn kein Warmstart erfolgen soll
+     */
+    public File getWarmStartFile() {
+        final String file = this.props.getProperty("database.warmStart.file", "").trim();
+        return file.isEmpty() ? null : new File(file);
+    }
+
+    /**
+     * Gibt zurück, in welchen Abständen die Datei für den Warmstart während des Betriebs geschrieben wird. Beim Wert 0
+     * wird sie nur beim Beenden geschrieben.
+     *
+     * @return Der Abstand zwischen zwei Schreibvorgängen
+     */
+    public Duration getWarmStartSaveInterval() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("database.warmStart.saveIntervalSeconds",
+                "600")));
+    }
+
+    /**
+     * Gibt die Datei zurück, in der ein Client ohne Verbindung zur Datenbank seine Ausführungen aufzeichnet.
+     *
+     * @return Die Datei des Journals
+     */
+    public File getOfflineJournalFile() {
+        return new File(this.props.getProperty("offline.journal.file", "offline-journal.dat"));
+    }
+
+    /**
+     * Gibt die Größe des Journals für Ausführungen ohne Datenbank in Bytes zurück.
+     *
+     * @return Die Größe des Journals
+     */
+    public int getOfflineJournalSize() {
+        return Integer.parseInt(this.props.getProperty("offline.journal.sizeBytes", "4194304"));
+    }
+
+    /**
+     * Gibt zurück, in welchen Abständen versucht wird, das Journal für Ausführungen ohne Datenbank nachzutragen.
+     *
+     * @return Der Abstand zwischen zwei Versuchen
+     */
+    public Duration getOfflineJournalReplayInterval() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("offline.journal.replaySeconds", "30")));
+    }
+
+    /**
+     * Gibt die Datei zurück, in der die Daten zur Autorisierung ohne Datenbank zwischen zwei Starts des Clients
+     * aufbewahrt werden.
+     *
+     * @return Die Datei der Momentaufnahme
+     */
+    public File getOfflineSnapshotFile() {
+        return new File(this.props.getProperty("offline.snapshot.file", "offline-snapshot.dat"));
+    }
+
+    /**
+     * Gibt zurück, in welchen Abständen die Daten zur Autorisierung ohne Datenbank aktualisiert werden.
+     *
+     * @return Der Abstand zwischen zwei Aktualisierungen
+     */
+    public Duration getOfflineSnapshotRefreshInterval() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("offline.snapshot.refreshSeconds", "60")));
+    }
+
+    /**
+     * Gibt zurück, um wie viel ein Benutzer sein Konto ohne Verbindung zur Datenbank höchstens überziehen darf.
+     *
+     * @return Der Betrag, um den das zuletzt bekannte Guthaben unterschritten werden darf
+     */
+    public BigDecimal getOfflineCreditLimit() {
+        return new BigDecimal(this.props.getProperty("offline.creditLimit", "0"));
+    }
+
+    /**
+     * Gibt zurück, wie viele Threads asynchrone Operationen des Datenmanagers höchstens gleichzeitig ausführen.
+     * Standardmäßig so viele, wie der Verbindungspool Verbindungen bereithält.
+     *
+     * @return Die Anzahl der Threads
+     */
+    public int getDatabaseAsyncThreads() {
+        return Integer.parseInt(this.props.getProperty("database.async.threads",
+                Integer.toString(this.getDatabasePoolMaxSize())));
+    }
+
+    /**
+     * Gibt zurück, wie viele asynchrone Operationen höchstens auf ihre Ausführung warten. Weitere Operationen werden
+     * abgelehnt.
+     *
+     * @return Die Länge der Warteschlange
+     */
+    public int getDatabaseAsyncQueueSize() {
+        return Integer.parseInt(this.props.getProperty("database.async.queueSize", "1000"));
+    }
+
+    /**
+     * Gibt an, ob asynchrone Operationen auf virtuellen Threads laufen sollen, sofern die JVM diese unterstützt.
+     *
+     * @return Wahr, wenn virtuelle Threads verwendet werden sollen
+     */
+    public boolean getDatabaseAsyncVirtualThreads() {
+        return Boolean.parseBoolean(this.props.getProperty("database.async.virtualThreads", "false"));
+    }
+
+    /**
+     * Gibt zurück, nach welcher Zeit geladene Objekte eines Typs als veraltet gelten und neu geladen werden.
+     *
+     * @param entity Der Typ der Objekte, z.B. "user" oder "device"
+     * @return Die Gültigkeitsdauer geladener Objekte des Typs
+     */
+    public Duration getDatabaseCacheTtl(String entity) {
+        return Duration.ofSeconds(
+                Long.parseLong(this.props.getProperty("database.cache." + entity + ".ttlSeconds", "5")));
+    }
+
+    /**
+     * Gibt zurück, wie viele Objekte eines Typs höchstens zwischengespeichert werden. Darüber hinaus werden die am
+     * längsten nicht verwendeten Objekte verdrängt.
+     *
+     * @param entity       Der Typ der Objekte, z.B. "user" oder "execution"
+     * @param defaultValue Die Größe, die ohne Eintrag in der Konfiguration gilt
+     * @return Die maximale Anzahl zwischengespeicherter Objekte oder 0, wenn sie nicht beschränkt ist
+     */
+    public int getDatabaseCacheMaximumSize(String entity, int defaultValue) {
+        return Integer.parseInt(this.props.getProperty("database.cache." + entity + ".maximumSize",
+                Integer.toString(defaultValue)));
+    }
+
+    /**
+     * Gibt an, ob Änderungen an Datensätzen per LISTEN/NOTIFY von der Datenbank empfangen werden sollen.
+     *
+     * @return Wahr, wenn Änderungsbenachrichtigungen empfangen werden sollen
+     */
+    public boolean getDatabaseNotifyEnabled() {
+        return Boolean.parseBoolean(this.props.getProperty("database.notify.enabled", "true"));
+    }
+
+    /**
+     * Gibt zurück, nach welcher Zeit geladene Datensätze spätestens erneut aus der Datenbank gelesen werden, solange
+     * Änderungsbenachrichtigungen empfangen werden.
+     *
+     * @return Die Zeit zwischen zwei Aktualisierungen eines Datensatzes
+     */
+    public Duration getDatabaseNotifyUpdateDelay() {
+        return Duration.ofSeconds(Long.parseLong(this.props.getProperty("database.notify.updateDelaySeconds", "300")));
+    }
+
     /**
      * Der zu verwendende SMTP-Server
      * 
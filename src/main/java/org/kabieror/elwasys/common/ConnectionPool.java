@@ -0,0 +1,163 @@
+package org.kabieror.elwasys.common;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * Dieser Pool verwaltet die Verbindungen zu einem Datenbankserver.
+ * <p>
+ * Eine ausgeliehene Verbindung wird an den ausleihenden Thread gebunden. Leiht derselbe Thread erneut eine Verbindung
+ * aus, bevor er die erste zurückgegeben hat, so erhält er dieselbe Verbindung. Erst wenn alle Ausleihen eines Threads
+ * geschlossen wurden, geht die Verbindung an den Pool zurück. Dadurch belegt ein Thread, der beim Laden eines Objekts
+ * weitere Objekte nachlädt, nie mehr als eine Verbindung.
+ *
+ * @author Oliver Kabierschke
+ */
+class ConnectionPool {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final HikariDataSource dataSource;
+
+    /**
+     * Die an den aktuellen Thread gebundene Verbindung
+     */
+    private final ThreadLocal<BoundConnection> boundConnection = new ThreadLocal<>();
+
+    /**
+     * Erstellt einen neuen Verbindungspool. Es wird noch keine Verbindung aufgebaut, sodass der Pool auch erstellt
+     * werden kann, wenn der Datenbankserver nicht erreichbar ist.
+     *
+     * @param name         Der Name des Pools für Log-Ausgaben
+     * @param url          Die JDBC-URL des Datenbankservers
+     * @param dbProperties Die Verbindungseigenschaften (Benutzer, Passwort, SSL)
+     * @param config       Die Konfiguration, aus der die Größe und Zeitvorgaben des Pools gelesen werden
+     */
+    ConnectionPool(String name, String url, Properties dbProperties, ConfigurationManager config) {
+        final HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName(name);
+        hikariConfig.setJdbcUrl(url);
+        hikariConfig.setDataSourceProperties(dbProperties);
+        hikariConfig.setMaximumPoolSize(config.getDatabasePoolMaxSize());
+        hikariConfig.setMinimumIdle(Math.min(config.getDatabasePoolMinIdle(), config.getDatabasePoolMaxSize()));
+        hikariConfig.setKeepaliveTime(config.getDatabasePoolKeepaliveTime().toMillis());
+        hikariConfig.setMaxLifetime(config.getDatabasePoolMaxLifetime().toMillis());
+        hikariConfig.setLeakDetectionThreshold(config.getDatabasePoolLeakDetectionThreshold().toMillis());
+        hikariConfig.setConnectionTimeout(config.getDatabasePoolConnectionTimeout().toMillis());
+        // Nicht beim Start auf die Datenbank warten: Der elwaClient muss auch ohne Datenbank starten können.
+        hikariConfig.setInitializationFailTimeout(-1);
+        this.dataSource = new HikariDataSource(hikariConfig);
+    }
+
+    /**
+     * Leiht eine Verbindung aus dem Pool aus. Die Verbindung muss nach Gebrauch mit {@link Connection#close()}
+     * zurückgegeben werden.
+     *
+     * @return Eine Verbindung, die an den aktuellen Thread gebunden ist
+     * @throws SQLException Wenn innerhalb der Wartezeit keine Verbindung bereit gestellt werden kann
+     */
+    Connection getConnection() throws SQLException {
+        BoundConnection bound = this.boundConnection.get();
+        if (bound == null || bound.released) {
+            bound = new BoundConnection(this.dataSource.getConnection());
+            this.boundConnection.set(bound);
+        }
+        bound.references++;
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                new Lease(bound));
+    }
+
+    /**
+     * Gibt an, ob der aktuelle Thread eine Verbindung aus diesem Pool hält.
+     */
+    boolean isBoundToCurrentThread() {
+        final BoundConnection bound = this.boundConnection.get();
+        return bound != null && !bound.released;
+    }
+
+    /**
+     * Schließt alle Verbindungen des Pools.
+     */
+    void shutdown() {
+        this.logger.info("Shutting down connection pool " + this.dataSource.getPoolName());
+        this.dataSource.close();
+    }
+
+    /**
+     * Gibt eine Ausleihe zurück und die Verbindung an den Pool, sobald sie nicht mehr ausgeliehen ist.
+     */
+    private void release(BoundConnection bound) throws SQLException {
+        bound.references--;
+        if (bound.references > 0) {
+            return;
+        }
+        bound.released = true;
+        if (this.boundConnection.get() == bound) {
+            this.boundConnection.remove();
+        }
+        bound.connection.close();
+    }
+
+    /**
+     * Eine an einen Thread gebundene Verbindung samt der Anzahl ihrer offenen Ausleihen
+     */
+    private static class BoundConnection {
+        private final Connection connection;
+        private int references = 0;
+        private boolean released = false;
+
+        private BoundConnection(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Eine einzelne Ausleihe einer gebundenen Verbindung. Alle Aufrufe werden an die Verbindung weitergereicht, nur
+     * das Schließen gibt lediglich diese Ausleihe zurück.
+     */
+    private class Lease implements InvocationHandler {
+        private final BoundConnection bound;
+        private boolean closed = false;
+
+        private Lease(BoundConnection bound) {
+            this.bound = bound;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!this.closed) {
+                        this.closed = true;
+                        ConnectionPool.this.release(this.bound);
+                    }
+                    return null;
+                case "isClosed":
+                    return this.closed || this.bound.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (this.closed) {
+                        throw new SQLException("This connection has already been returned to the pool.");
+                    }
+                    try {
+                        return method.invoke(this.bound.connection, args);
+                    } catch (final InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        }
+    }
+}
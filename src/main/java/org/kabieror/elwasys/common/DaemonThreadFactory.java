@@ -0,0 +1,31 @@
+package org.kabieror.elwasys.common;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Erzeugt benannte Hintergrund-Threads, die das Beenden der Anwendung nicht verhindern. Die Threads einer Fabrik werden
+ * unter ihrem Namen durchnummeriert.
+ *
+ * @author Oliver Kabierschke
+ */
+class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * @param name Der Name der Threads ohne Nummer, z.B. {@code elwasys-async}
+     */
+    DaemonThreadFactory(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, this.name + "-" + this.count.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
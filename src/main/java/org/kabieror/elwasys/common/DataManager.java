@@ -1,37 +1,108 @@
 package org.kabieror.elwasys.common;
 
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.*;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 /**
  * Diese Klasse stellt Methoden zum holen von Informationen aus der Datenbank
  * bereit.
+ * <p>
+ * Zu jedem Datensatz existiert höchstens ein Objekt. Die Methoden dürfen von mehreren Threads gleichzeitig aufgerufen
+ * werden.
  *
  * @author Oliver Kabierschke
  */
 public class DataManager {
 
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ConfigurationManager config;
+
     /**
-     * Aktualisiere nicht öfter als einmal alle 5 Sekunden aus der Datenbank.
+     * Die Gültigkeitsdauer geladener Objekte je Typ, solange keine Änderungsbenachrichtigungen empfangen werden
      */
-    static final Duration UPDATE_DELAY = Duration.ofSeconds(5);
+    private final Map<Class<?>, Duration> cacheTtls = new HashMap<>();
 
-    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+    /**
+     * Lädt häufig verwendete Objekte im Hintergrund neu, bevor sie veralten
+     */
+    private final CacheRefresher refresher = new CacheRefresher();
 
-    private final ConfigurationManager config;
-    private final Map<Integer, Location> locations = new HashMap<>();
-    private final Map<Integer, UserGroup> userGroups = new HashMap<>();
-    private final Map<Integer, User> users = new HashMap<>();
-    private final Map<Integer, Program> programs = new HashMap<>();
-    private final Map<Integer, Device> devices = new HashMap<>();
-    private final Map<Integer, Execution> executions = new HashMap<>();
-    private final Properties dbProperties;
-    private Connection db;
+    /**
+     * Löst Kartennummern ohne Datenbankzugriff zu Benutzern auf
+     */
+    private final CardIndex cardIndex = new CardIndex();
+
+    private final IdentityMap<Location> locations;
+    private final IdentityMap<UserGroup> userGroups;
+    private final IdentityMap<User> users;
+    private final IdentityMap<Program> programs;
+    private final IdentityMap<Device> devices;
+    private final IdentityMap<Execution> executions;
+    private final ConnectionPool pool;
+    private final QueryExecutor executor;
+
+    /**
+     * Verteilt lesende Abfragen auf Lesereplikate, oder null, wenn keine konfiguriert sind
+     */
+    private final ReplicaRouter replicas;
+
+    /**
+     * Führt Abfragen aus, die von einem Lesereplikat beantwortet werden dürfen
+     */
+    private final QueryExecutor readExecutor;
+    private final AsyncDataManager async;
+
+    /**
+     * Schreibt unkritische Änderungen verzögert und zusammengefasst
+     */
+    private final WriteBehindQueue writeBehind;
+
+    /**
+     * Empfängt Änderungsbenachrichtigungen der Datenbank, oder null, wenn diese nicht verwendet werden
+     */
+    private final ChangeListener changeListener;
+
+    /**
+     * Werden nach jeder Änderungsbenachrichtigung informiert
+     */
+    private final List<IChangeObserver> changeObservers = new CopyOnWriteArrayList<>();
 
+    /**
+     * Die laufenden Ausführungen je Gerät und Benutzer an den geladenen Standorten
+     */
+    private final RunningExecutionRegistry runningExecutions = new RunningExecutionRegistry(this);
+
+    /**
+     * Bewahrt Standorte, Gruppen, Programme und Geräte für den nächsten Start auf, oder null, wenn kein Warmstart
+     * erfolgt
+     */
+    private final WarmStartSnapshot warmStart;
+
+    /**
+     * Prüft die beim Start gelesenen Objekte im Hintergrund und schreibt sie regelmäßig
+     */
+    private final ScheduledExecutorService warmStartScheduler;
+
+    /**
+     * Ob noch nicht mit der Datenbank abgeglichene Objekte aus dem Warmstart ausgeliefert werden
+     */
+    private volatile boolean servingWarmStart = false;
 
     /**
      * Constructor
@@ -43,12 +114,46 @@ public class DataManager {
 
         this.config = config;
 
-        dbProperties = new Properties();
+        this.cacheTtls.put(Location.class, this.config.getDatabaseCacheTtl("location"));
+        this.cacheTtls.put(UserGroup.class, this.config.getDatabaseCacheTtl("userGroup"));
+        this.cacheTtls.put(User.class, this.config.getDatabaseCacheTtl("user"));
+        this.cacheTtls.put(Program.class, this.config.getDatabaseCacheTtl("program"));
+        this.cacheTtls.put(Device.class, this.config.getDatabaseCacheTtl("device"));
+        this.cacheTtls.put(Execution.class, this.config.getDatabaseCacheTtl("execution"));
+        // Standorte, Gruppen, Programme und Geräte sind wenige und werden ständig angezeigt,
+        // daher standardmäßig unbeschränkt
+        this.locations = new IdentityMap<>(() -> this.getUpdateDelay(Location.class), Location::reload,
+                this.refresher, this.config.getDatabaseCacheMaximumSize("location", 0), () -> l -> false);
+        this.userGroups = new IdentityMap<>(() -> this.getUpdateDelay(UserGroup.class), UserGroup::reload,
+                this.refresher, this.config.getDatabaseCacheMaximumSize("userGroup", 0), () -> g -> false);
+        // Benutzer, Programme und Geräte zwischengespeicherter Ausführungen werden über diese weiter verwendet. Würden
+        // sie verdrängt, entstünde beim nächsten Laden ein zweites Objekt mit derselben ID.
+        this.programs = new IdentityMap<>(() -> this.getUpdateDelay(Program.class), Program::reload,
+                this.refresher, this.config.getDatabaseCacheMaximumSize("program", 0),
+                () -> this.referencedByExecutions(Execution::getProgram, Program::getId));
+        this.devices = new IdentityMap<>(() -> this.getUpdateDelay(Device.class), Device::reload,
+                this.refresher, this.config.getDatabaseCacheMaximumSize("device", 0),
+                () -> this.referencedByExecutions(Execution::getDevice, Device::getId));
+        this.users = new IdentityMap<>(() -> this.getUpdateDelay(User.class), User::reload,
+                this.refresher, this.config.getDatabaseCacheMaximumSize("user", 2000),
+                () -> this.referencedByExecutions(Execution::getUser, User::getId));
+        // Nicht abgeschlossene Ausführungen werden noch verwendet und dürfen nicht verdrängt werden
+        this.executions = new IdentityMap<>(() -> this.getUpdateDelay(Execution.class), Execution::reload,
+                this.refresher, this.config.getDatabaseCacheMaximumSize("execution", 1000),
+                () -> e -> !e.isFinished());
+
+        final Properties dbProperties = new Properties();
         dbProperties.setProperty("user", this.config.getDatabaseUser());
         dbProperties.setProperty("password", this.config.getDatabasePassword());
         if (this.config.getDatabaseUseSsl()) {
             dbProperties.setProperty("ssl", "true");
         }
+        // Serverseitig vorbereitete Anweisungen je Verbindung anhand ihres SQL-Texts wiederverwenden
+        dbProperties.setProperty("prepareThreshold", Integer.toString(this.config.getDatabasePrepareThreshold()));
+        dbProperties.setProperty("preparedStatementCacheQueries",
+                Integer.toString(this.config.getDatabaseStatementCacheSize()));
+        // Gebündelte INSERTs als eine mehrzeilige Anweisung senden
+        dbProperties.setProperty("reWriteBatchedInserts", "true");
 
         if (!this.config.getDatabaseUseSsl()) {
             this.logger.warn("Insecure database connection is to be established.");
@@ -57,72 +162,346 @@ public class DataManager {
 
         // Datenbanktreiber laden
         Class.forName("org.postgresql.Driver");
+
+        this.logger.info("Creating database connection pool for server " + this.config.getDatabaseServer());
+        final String url = "jdbc:postgresql://" + this.config.getDatabaseServer() + "/" + this.config.getDatabaseName();
+        this.pool = new ConnectionPool("elwasys-primary", url, dbProperties, this.config);
+        this.executor = new QueryExecutor(this);
+        final List<String> replicaServers = this.config.getDatabaseReplicas();
+        if (replicaServers.isEmpty()) {
+            this.replicas = null;
+            this.readExecutor = this.executor;
+        } else {
+            this.logger.info("Routing read-only queries to replicas " + replicaServers);
+            this.replicas = new ReplicaRouter(this.pool, replicaServers, this.config.getDatabaseName(), dbProperties,
+                    this.config);
+            this.readExecutor = new QueryExecutor(this, true);
+        }
+        this.async = new AsyncDataManager(this, this.config);
+        this.writeBehind = new WriteBehindQueue(this, this.config.getDatabaseWriteBehindInterval());
+
+        if (this.config.getDatabaseNotifyEnabled()) {
+            this.changeListener = new ChangeListener(this, url, dbProperties);
+            this.changeListener.start();
+        } else {
+            this.changeListener = null;
+        }
+
+        final File warmStartFile = this.config.getWarmStartFile();
+        if (warmStartFile != null) {
+            this.warmStart = new WarmStartSnapshot(warmStartFile);
+            this.warmStartScheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("elwasys-warm-start"));
+            this.restoreWarmStart();
+            final Duration interval = this.config.getWarmStartSaveInterval();
+            if (!interval.isZero() && !interval.isNegative()) {
+                this.warmStartScheduler.scheduleWithFixedDelay(this::saveWarmStart, interval.toMillis(),
+                        interval.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        } else {
+            this.warmStart = null;
+            this.warmStartScheduler = null;
+        }
     }
 
     /**
-     * Prüft die Datenbankverbindung und baut bei Bedarf eine neue auf
+     * Leiht eine Datenbankverbindung aus dem Verbindungspool aus. Die Verbindung muss nach Gebrauch geschlossen werden,
+     * am besten mit try-with-resources. Innerhalb eines Threads wird bis dahin stets dieselbe Verbindung geliefert.
      *
-     * @throws SQLException Wenn keine neue Datenbankverbindung aufgebaut werden kann
+     * @throws SQLException Wenn keine Datenbankverbindung bereit gestellt werden kann
      */
     public Connection getConnection() throws SQLException {
-        if (this.db != null) {
-            // Prüfe Datenbankverbindung
-            try {
-                this.db.prepareCall("SELECT 1").execute();
-            } catch (final SQLException e) {
-                this.logger.warn("Database connection is corrupt.");
+        return this.pool.getConnection();
+    }
+
+    /**
+     * Gibt den Ausführer für parametrisierte SQL-Anweisungen zurück.
+     */
+    public QueryExecutor getQueryExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Gibt den Ausführer für Abfragen zurück, die von einem Lesereplikat beantwortet werden dürfen, z.B. Listen und
+     * Auswertungen. Das Ergebnis kann um bis zu {@code database.replica.maxLagSeconds} veraltet sein, außer der Thread
+     * hat eben selbst geändert. Die Zeilen dürfen daher nur noch nicht zwischengespeicherte Objekte anlegen, aber keine
+     * bekannten aktualisieren. Sind keine Replikate konfiguriert, so ist dies derselbe wie {@link #getQueryExecutor()}.
+     */
+    public QueryExecutor getReadQueryExecutor() {
+        return this.readExecutor;
+    }
+
+    /**
+     * Leiht eine Verbindung für eine lesende Abfrage aus, bevorzugt von einem Lesereplikat.
+     */
+    Connection getReadConnection() throws SQLException {
+        return this.replicas != null ? this.replicas.getConnection() : this.pool.getConnection();
+    }
+
+    /**
+     * Vermerkt eine Änderung des aktuellen Threads, damit er seine eigenen Änderungen vorerst vom Primärserver liest.
+     */
+    void recordWrite() {
+        if (this.replicas != null) {
+            this.replicas.recordWrite();
+        }
+    }
+
+    /**
+     * Gibt die Warteschlange für verzögert geschriebene Änderungen zurück.
+     */
+    WriteBehindQueue getWriteBehindQueue() {
+        return this.writeBehind;
+    }
+
+    /**
+     * Beginnt eine Arbeitseinheit, deren Anweisungen in einer gemeinsamen Transaktion ausgeführt werden. Die
+     * Arbeitseinheit muss nach Gebrauch geschlossen werden, am besten mit try-with-resources.
+     *
+     * @throws SQLException Wenn keine Datenbankverbindung bereit gestellt werden kann
+     */
+    public UnitOfWork beginUnitOfWork() throws SQLException {
+        return new UnitOfWork(this);
+    }
+
+    /**
+     * Gibt eine Sicht auf den Datenmanager zurück, deren Operationen im Hintergrund laufen und ihr Ergebnis als
+     * {@link java.util.concurrent.CompletableFuture} liefern.
+     */
+    public AsyncDataManager async() {
+        return this.async;
+    }
+
+    /**
+     * Schließt alle Datenbankverbindungen. Der Datenmanager kann danach nicht mehr verwendet werden.
+     */
+    public void shutdown() {
+        if (this.changeListener != null) {
+            this.changeListener.shutdown();
+        }
+        this.async.shutdown();
+        this.writeBehind.shutdown();
+        if (this.warmStart != null) {
+            this.warmStartScheduler.shutdownNow();
+            this.saveWarmStart();
+        }
+        this.refresher.shutdown();
+        if (this.replicas != null) {
+            this.replicas.shutdown();
+        }
+        this.pool.shutdown();
+    }
+
+    /**
+     * Legt die Objekte aus der Datei für den Warmstart in den Zwischenspeichern ab, sodass sie ohne Abfragen verwendet
+     * werden können, und beginnt, sie im Hintergrund mit der Datenbank abzugleichen.
+     */
+    private void restoreWarmStart() {
+        final WarmStartSnapshot.Contents contents = this.warmStart.load(this);
+        if (contents == null) {
+            return;
+        }
+        contents.groups.forEach(this.userGroups::put);
+        contents.locations.forEach(this.locations::put);
+        contents.programs.forEach(this.programs::put);
+        contents.devices.forEach(this.devices::put);
+        this.servingWarmStart = true;
+        this.logger.info("Restored " + contents.locations.size() + " locations and " + contents.devices.size() +
+                " devices from the warm start snapshot.");
+        this.warmStartScheduler.execute(() -> this.validateWarmStart(contents));
+    }
+
+    /**
+     * Lädt alle aus dem Warmstart stammenden Objekte neu und entfernt die, die es in der Datenbank nicht mehr gibt.
+     * Schlägt dies fehl, so wird es später erneut versucht.
+     */
+    private void validateWarmStart(WarmStartSnapshot.Contents contents) {
+        try {
+            this.removeMissing(this.userGroups, contents.groups.keySet(), this.getUserGroups(), UserGroup::getId);
+            this.removeMissing(this.locations, contents.locations.keySet(), this.getLocations(), Location::getId);
+            this.removeMissing(this.programs, contents.programs.keySet(), this.getPrograms(), Program::getId);
+            // Zuletzt, damit die Beziehungen der Geräte, Programme und Standorte vollständig gesetzt sind
+            this.removeMissing(this.devices, contents.devices.keySet(), this.getDeviceGraph("ORDER BY id"),
+                    Device::getId);
+            this.servingWarmStart = false;
+            this.logger.info("Validated the warm start snapshot against the database.");
+        } catch (final SQLException e) {
+            this.logger.warn("Could not validate the warm start snapshot against the database. Retrying later.", e);
+            if (!this.warmStartScheduler.isShutdown()) {
+                this.warmStartScheduler.schedule(() -> this.validateWarmStart(contents), 30, TimeUnit.SECONDS);
             }
         }
-        if (this.db == null || this.db.isClosed()) {
-            this.logger.info("Trying to open new database connection with server " + this.config.getDatabaseServer());
-            final String url =
-                    "jdbc:postgresql://" + this.config.getDatabaseServer() + "/" + this.config.getDatabaseName();
-            this.db = DriverManager.getConnection(url, this.dbProperties);
+    }
+
+    private <T> void removeMissing(IdentityMap<T> map, Set<Integer> restored, List<T> found,
+                                   ToIntFunction<T> id) {
+        final Set<Integer> missing = new HashSet<>(restored);
+        for (final T entity : found) {
+            missing.remove(id.applyAsInt(entity));
+        }
+        missing.forEach(map::remove);
+    }
+
+    private void saveWarmStart() {
+        try {
+            this.warmStart.save(this.userGroups.values(), this.locations.values(), this.programs.values(),
+                    this.devices.values());
+        } catch (final IOException | RuntimeException e) {
+            this.logger.warn("Could not write the warm start snapshot.", e);
         }
-        return this.db;
     }
 
     /**
-     * Holt alle verfügbaren Standorte aus der Datenbank
+     * Gibt zurück, nach welcher Zeit ein geladenes Objekt des gegebenen Typs erneut aus der Datenbank gelesen wird.
+     * Die Dauer ist je Typ über {@code database.cache.<typ>.ttlSeconds} einstellbar. Solange Änderungen von der
+     * Datenbank gemeldet werden, genügt ein langer Abstand.
+     */
+    Duration getUpdateDelay(Class<?> type) {
+        final Duration ttl = this.cacheTtls.get(type);
+        if (this.isChangeListening()) {
+            final Duration notifyDelay = this.config.getDatabaseNotifyUpdateDelay();
+            return notifyDelay.compareTo(ttl) > 0 ? notifyDelay : ttl;
+        }
+        return ttl;
+    }
+
+    /**
+     * Gibt die Kennzahlen der Zwischenspeicher je Typ zurück, z.B. um das Speicherverhalten lang laufender Clients zu
+     * überwachen.
      *
-     * @return Alle verfügbaren Standorte
+     * @return Die Kennzahlen, geordnet nach dem Namen des Typs
      */
-    public List<Location> getLocations() throws SQLException {
-        final List<Location> locations = new ArrayList<>();
+    public Map<String, CacheStatistics> getCacheStatistics() {
+        final Map<String, CacheStatistics> statistics = new LinkedHashMap<>();
+        statistics.put("device", this.devices.getStatistics());
+        statistics.put("execution", this.executions.getStatistics());
+        statistics.put("location", this.locations.getStatistics());
+        statistics.put("program", this.programs.getStatistics());
+        statistics.put("user", this.users.getStatistics());
+        statistics.put("userGroup", this.userGroups.getStatistics());
+        return statistics;
+    }
 
-        final ResultSet res = this.getConnection().prepareCall("SELECT * FROM locations ORDER BY name").executeQuery();
-        while (res.next()) {
-            locations.add(this.getLocation(res));
+    /**
+     * Verarbeitet eine Änderungsbenachrichtigung der Datenbank. Betroffene geladene Objekte werden als veraltet
+     * markiert, gelöschte aus dem Zwischenspeicher entfernt.
+     *
+     * @param table     Die Tabelle des geänderten Datensatzes
+     * @param operation Die Art der Änderung (INSERT, UPDATE oder DELETE)
+     * @param id        Die ID des geänderten Datensatzes
+     */
+    void onChange(String table, String operation, int id) {
+        final boolean deleted = "DELETE".equals(operation);
+        switch (table) {
+            case "locations":
+                this.invalidate(this.locations, id, deleted, Location::invalidate);
+                break;
+            case "user_groups":
+                this.invalidate(this.userGroups, id, deleted, UserGroup::invalidate);
+                break;
+            case "users":
+                this.invalidate(this.users, id, deleted, User::invalidate);
+                // Die Kartennummern des Benutzers könnten sich geändert haben
+                this.cardIndex.removeUser(id);
+                this.cardIndex.clearUnknown();
+                break;
+            case "programs":
+                this.invalidate(this.programs, id, deleted, Program::invalidate);
+                break;
+            case "devices":
+                this.invalidate(this.devices, id, deleted, Device::invalidate);
+                break;
+            case "executions":
+                this.invalidate(this.executions, id, deleted, Execution::invalidate);
+                break;
+            default:
+                this.logger.debug("Ignoring change notification for table " + table);
+                break;
+        }
+        for (final IChangeObserver observer : this.changeObservers) {
+            observer.changed(table, deleted, id);
         }
+    }
 
-        return locations;
+    /**
+     * Markiert alle geladenen Objekte als veraltet, z.B. nachdem Änderungsbenachrichtigungen verpasst worden sein
+     * können.
+     */
+    void invalidateAll() {
+        this.cardIndex.clear();
+        this.locations.invalidateAll();
+        this.userGroups.invalidateAll();
+        this.users.invalidateAll();
+        this.programs.invalidateAll();
+        this.devices.invalidateAll();
+        this.executions.invalidateAll();
+        this.locations.values().forEach(Location::invalidate);
+        this.userGroups.values().forEach(UserGroup::invalidate);
+        this.users.values().forEach(User::invalidate);
+        this.programs.values().forEach(Program::invalidate);
+        this.devices.values().forEach(Device::invalidate);
+        this.executions.values().forEach(Execution::invalidate);
+        this.changeObservers.forEach(IChangeObserver::changesLost);
     }
 
     /**
-     * Holt einen Standort anhand seiner ID
+     * Gibt an, ob Änderungen anderer Clients über Benachrichtigungen der Datenbank gemeldet werden.
      */
-    public Location getLocation(int id) throws SQLException {
-        if (this.locations.containsKey(id)) {
-            final Location location = this.locations.get(id);
-            try {
-                location.update();
-            } catch (final NoDataFoundException e) {
-                this.locations.remove(id);
-                return null;
-            }
-            return location;
-        } else {
-            Location location;
-            try {
-                location = new Location(this, id);
-            } catch (final NoDataFoundException e) {
-                return null;
+    boolean isChangeListening() {
+        return this.changeListener != null && this.changeListener.isListening();
+    }
+
+    void addChangeObserver(IChangeObserver observer) {
+        this.changeObservers.add(observer);
+    }
+
+    void removeChangeObserver(IChangeObserver observer) {
+        this.changeObservers.remove(observer);
+    }
+
+    /**
+     * Sammelt die IDs der Objekte, auf die zwischengespeicherte Ausführungen verweisen.
+     *
+     * @return Gibt an, ob ein Objekt von einer Ausführung verwendet wird
+     */
+    private <T> Predicate<T> referencedByExecutions(Function<Execution, T> reference, ToIntFunction<T> id) {
+        final Set<Integer> ids = new HashSet<>();
+        for (final Execution e : this.executions.values()) {
+            final T referenced = reference.apply(e);
+            if (referenced != null) {
+                ids.add(id.applyAsInt(referenced));
             }
-            this.locations.put(id, location);
-            return location;
+        }
+        return entity -> ids.contains(id.applyAsInt(entity));
+    }
+
+    private <T> void invalidate(IdentityMap<T> map, int id, boolean deleted, Consumer<T> invalidator) {
+        if (deleted) {
+            map.remove(id);
+            return;
+        }
+        map.invalidate(id);
+        final T entity = map.get(id);
+        if (entity != null) {
+            invalidator.accept(entity);
         }
     }
 
+    /**
+     * Holt alle verfügbaren Standorte aus der Datenbank
+     *
+     * @return Alle verfügbaren Standorte
+     */
+    public List<Location> getLocations() throws SQLException {
+        return this.executor.query("SELECT * FROM locations ORDER BY name", this::getLocation);
+    }
+
+    /**
+     * Holt einen Standort anhand seiner ID
+     */
+    public Location getLocation(int id) throws SQLException {
+        return this.locations.getOrLoad(id, () -> new Location(this, id));
+    }
+
     /**
      * Sucht einen Ort anhand seines Namens.
      *
@@ -130,38 +509,29 @@ public class DataManager {
      * @return Der Ort mit dem gegebenen Namen.
      */
     public Location getLocation(String name) throws SQLException {
-        final PreparedStatement s = this.getConnection().prepareStatement("SELECT * FROM locations WHERE name=?");
-        s.setString(1, name);
-        final ResultSet res = s.executeQuery();
-        if (res.next()) {
-            return this.getLocation(res);
-        } else {
-            return null;
+        if (this.servingWarmStart) {
+            for (final Location l : this.locations.values()) {
+                if (name.equals(l.getName())) {
+                    return l;
+                }
+            }
         }
+        return this.executor.queryFirst("SELECT * FROM locations WHERE name=?", this::getLocation, name);
     }
 
     /**
      * Holt einen Standort aus einem Abfrageergebnis
      */
     Location getLocation(ResultSet res) throws SQLException {
-        if (this.locations.containsKey(res.getInt("id"))) {
-            final Location l = this.locations.get(res.getInt("id"));
-            l.update(res);
-            return l;
-        } else {
-            final Location l = new Location(this, res);
-            this.locations.put(l.getId(), l);
-            return l;
-        }
+        return this.locations.getOrLoad(res.getInt("id"), () -> new Location(this, res), l -> l.update(res));
     }
 
     /**
      * Entfernt nicht verwendete Standorte aus der Datenbank
      */
     public void removeUnusedLocations() throws SQLException {
-        this.getConnection().prepareCall(
-                "DELETE FROM locations WHERE locations.id NOT IN (SELECT location_id FROM devices) AND locations.id<>1")
-                .execute();
+        this.executor.update("DELETE FROM locations WHERE locations.id NOT IN (SELECT location_id FROM devices) " +
+                "AND locations.id<>1");
     }
 
     /**
@@ -170,16 +540,18 @@ public class DataManager {
      * @return Eine Liste aller Geräte
      */
     public List<Device> getDevices() throws SQLException {
-        final ResultSet res = this.getConnection().prepareCall("SELECT * FROM devices").executeQuery();
-        final List<Device> result = new ArrayList<>();
-
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                result.add(this.getDevice(res));
-            }
-        }
+        return this.getDeviceGraph("ORDER BY id");
+    }
 
-        return result;
+    /**
+     * Veröffentlicht alle Geräte, ohne sie gesammelt in den Speicher zu laden. Standorte und Programme der Geräte
+     * werden erst beim Zugriff geladen.
+     *
+     * @return Ein Publisher, der bei jedem Abonnement die Geräte aufsteigend nach ID liefert
+     */
+    public Publisher<Device> publishDevices() {
+        return new RowPublisher<>(handler -> this.executor.stream("SELECT * FROM devices ORDER BY id",
+                this.config.getDatabaseFetchSize(), this::getDevice, handler));
     }
 
     /**
@@ -188,19 +560,15 @@ public class DataManager {
     public Device[] getDevicesToDisplayXs(Location location) throws SQLException {
         final Device[] result = new Device[4];
 
-        final ResultSet sqlRes = this.getConnection()
-                .prepareCall("SELECT id FROM devices WHERE location_id=" + location.getId() + " ORDER BY position")
-                .executeQuery();
-
-        if (sqlRes.isBeforeFirst()) {
-            while (sqlRes.next()) {
-                final int id = sqlRes.getInt("id");
-                final Device dev = this.getDevice(id);
-                for (int i = 0; i < 4; i++) {
-                    if (dev.getPosition() == i + 1 && result[i] == null) {
-                        result[i] = dev;
-                        break;
-                    }
+        List<Device> devices = this.getWarmStartDevices(location, Comparator.comparingInt(Device::getPosition));
+        if (devices == null) {
+            devices = this.getDeviceGraph("WHERE location_id=? ORDER BY position", location.getId());
+        }
+        for (final Device dev : devices) {
+            for (int i = 0; i < 4; i++) {
+                if (dev.getPosition() == i + 1 && result[i] == null) {
+                    result[i] = dev;
+                    break;
                 }
             }
         }
@@ -214,19 +582,34 @@ public class DataManager {
      * @param location Der Ort, an dem der elwaClient stationiert ist.
      */
     public List<Device> getDevicesToDisplay(Location location) throws SQLException {
-        final ResultSet sqlRes = this.getConnection()
-                .prepareCall("SELECT id FROM devices WHERE location_id=" + location.getId() + " ORDER BY name")
-                .executeQuery();
-
-        List<Device> res = new ArrayList<>();
-        if (sqlRes.isBeforeFirst()) {
-            while (sqlRes.next()) {
-                final int id = sqlRes.getInt("id");
-                final Device dev = this.getDevice(id);
-                res.add(dev);
+        final List<Device> devices = this.getWarmStartDevices(location, Comparator.comparing(Device::getName));
+        if (devices != null) {
+            return devices;
+        }
+        return this.getDeviceGraph("WHERE location_id=? ORDER BY name", location.getId());
+    }
+
+    /**
+     * Gibt die Geräte eines Standorts aus dem Warmstart zurück, solange dieser noch nicht mit der Datenbank abgeglichen
+     * ist.
+     *
+     * @return Die Geräte in der gegebenen Ordnung, oder null, wenn die Datenbank gefragt werden muss
+     */
+    private List<Device> getWarmStartDevices(Location location, Comparator<Device> order) {
+        if (!this.servingWarmStart) {
+            return null;
+        }
+        final List<Device> result = new ArrayList<>();
+        for (final Device d : this.devices.values()) {
+            if (d.getLocationId() == location.getId()) {
+                result.add(d);
             }
         }
-        return res;
+        if (result.isEmpty()) {
+            return null;
+        }
+        result.sort(order);
+        return result;
     }
 
     /**
@@ -236,17 +619,98 @@ public class DataManager {
      * @return Eine Liste an Geräten, auf denen das Programm p verfügbar ist
      */
     public List<Device> getDevices(Program p) throws SQLException {
-        final ResultSet res = this.getConnection().prepareCall(
-                "SELECT devices.* FROM device_program_rel LEFT JOIN devices ON device_program_rel.device_id=devices" +
-                        ".id WHERE program_id=" + p.getId()).executeQuery();
+        return this.getDeviceGraph("WHERE id IN (SELECT device_id FROM device_program_rel WHERE program_id=?)",
+                p.getId());
+    }
 
-        final List<Device> result = new ArrayList<>();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                result.add(this.getDevice(res));
+    /**
+     * Lädt Geräte samt ihrer Standorte, Programme und Benutzergruppen mit einer festen Anzahl an Abfragen, unabhängig
+     * von der Anzahl der Geräte. Alle beteiligten Objekte werden dabei aus der Datenbank aktualisiert.
+     *
+     * @param condition Der auf {@code SELECT ... FROM devices} folgende Teil der Abfrage
+     * @param params    Die Werte der Platzhalter
+     * @return Die Geräte in der Reihenfolge des Abfrageergebnisses
+     */
+    private List<Device> getDeviceGraph(String condition, Object... params) throws SQLException {
+        final List<int[]> deviceRows = this.executor.query("SELECT id, location_id FROM devices " + condition,
+                res -> new int[]{res.getInt("id"), res.getInt("location_id")}, params);
+        if (deviceRows.isEmpty()) {
+            return new ArrayList<>();
+        }
+        final Set<Integer> deviceIds = new LinkedHashSet<>();
+        final Set<Integer> locationIds = new HashSet<>();
+        for (final int[] row : deviceRows) {
+            deviceIds.add(row[0]);
+            locationIds.add(row[1]);
+        }
+
+        // Relationen aller Geräte, Programme und Standorte
+        final Map<Integer, List<Integer>> devicePrograms =
+                this.getRelation("SELECT device_id, program_id FROM device_program_rel WHERE device_id = ANY(?)",
+                        deviceIds);
+        final Map<Integer, List<Integer>> deviceGroups = this.getRelation(
+                "SELECT device_id, group_id FROM devices_valid_user_groups WHERE device_id = ANY(?)", deviceIds);
+        final Set<Integer> programIds = new HashSet<>();
+        for (final List<Integer> ids : devicePrograms.values()) {
+            programIds.addAll(ids);
+        }
+        final Map<Integer, List<Integer>> programGroups = this.getRelation(
+                "SELECT program_id, group_id FROM programs_valid_user_groups WHERE program_id = ANY(?)", programIds);
+        final Map<Integer, List<Integer>> locationGroups = this.getRelation(
+                "SELECT location_id, group_id FROM locations_valid_user_groups WHERE location_id = ANY(?)",
+                locationIds);
+
+        // Benutzergruppen
+        final Set<Integer> groupIds = new HashSet<>();
+        for (final Map<Integer, List<Integer>> relation : Arrays.asList(deviceGroups, programGroups, locationGroups)) {
+            for (final List<Integer> ids : relation.values()) {
+                groupIds.addAll(ids);
             }
         }
+        final Map<Integer, UserGroup> groups = new HashMap<>();
+        for (final UserGroup g : this.executor
+                .query("SELECT * FROM user_groups WHERE id = ANY(?)", this::getUserGroupById, toIntArray(groupIds))) {
+            groups.put(g.getId(), g);
+        }
+
+        // Programme und Standorte
+        final Map<Integer, Program> programs = new HashMap<>();
+        for (final Program p : this.executor.query("SELECT * FROM programs WHERE id = ANY(?)", res -> {
+            final List<UserGroup> valid = resolve(programGroups.get(res.getInt("id")), groups);
+            return this.programs.getOrLoad(res.getInt("id"), () -> new Program(this, res, valid),
+                    pr -> pr.update(res, valid));
+        }, toIntArray(programIds))) {
+            programs.put(p.getId(), p);
+        }
+        final Map<Integer, Location> locations = new HashMap<>();
+        for (final Location l : this.executor.query("SELECT * FROM locations WHERE id = ANY(?)", res -> {
+            final List<UserGroup> valid = resolve(locationGroups.get(res.getInt("id")), groups);
+            return this.locations.getOrLoad(res.getInt("id"), () -> new Location(this, res, valid),
+                    lo -> lo.update(res, valid));
+        }, toIntArray(locationIds))) {
+            locations.put(l.getId(), l);
+        }
+
+        // Geräte
+        final Map<Integer, Device> devices = new HashMap<>();
+        for (final Device d : this.executor.query("SELECT * FROM devices WHERE id = ANY(?)", res -> {
+            final int id = res.getInt("id");
+            final Location location = locations.get(res.getInt("location_id"));
+            final List<Program> devProgs = resolve(devicePrograms.get(id), programs);
+            final List<UserGroup> valid = resolve(deviceGroups.get(id), groups);
+            return this.devices.getOrLoad(id, () -> new Device(this, res, location, devProgs, valid),
+                    dev -> dev.update(res, location, devProgs, valid));
+        }, toIntArray(deviceIds))) {
+            devices.put(d.getId(), d);
+        }
 
+        final List<Device> result = new ArrayList<>();
+        for (final int id : deviceIds) {
+            final Device d = devices.get(id);
+            if (d != null) {
+                result.add(d);
+            }
+        }
         return result;
     }
 
@@ -257,26 +721,17 @@ public class DataManager {
      * @return Das geholte Gerät oder null, wenn kein Eintrag zur ID gefunden werden kann
      */
     public Device getDevice(int id) throws SQLException {
-        if (this.devices.containsKey(id)) {
-            final Device d = this.devices.get(id);
-            try {
-                d.update();
-            } catch (final NoDataFoundException e) {
-                // Das Gerät wurde aus der Datenbank gelöscht
-                this.devices.remove(id);
-                return null;
-            }
-            return d;
-        } else {
-            Device d;
-            try {
-                d = new Device(this, id);
-            } catch (final NoDataFoundException e) {
-                return null;
-            }
-            this.devices.put(d.getId(), d);
-            return d;
-        }
+        return this.devices.getOrLoad(id, () -> new Device(this, id));
+    }
+
+    /**
+     * Holt mehrere Geräte anhand ihrer IDs. Noch nicht geladene Geräte werden mit einer einzigen Abfrage geholt.
+     *
+     * @param ids Die IDs der Geräte
+     * @return Die Geräte in der Reihenfolge der IDs, ohne die nicht gefundenen
+     */
+    public List<Device> getDevicesById(Collection<Integer> ids) throws SQLException {
+        return this.getByIds(this.devices, "devices", ids, this::getDevice, this::getDevice);
     }
 
     /**
@@ -286,30 +741,24 @@ public class DataManager {
      * @return Das geholte Gerät
      */
     Device getDevice(ResultSet res) throws SQLException {
-        if (this.devices.containsKey(res.getInt("id"))) {
-            final Device d = this.devices.get(res.getInt("id"));
-            d.update(res);
-            return d;
-        } else {
-            final Device d = new Device(this, res);
-            this.devices.put(d.getId(), d);
-            return d;
-        }
+        return this.devices.getOrLoad(res.getInt("id"), () -> new Device(this, res), d -> d.update(res));
     }
 
     /**
      * Holt alle verfügbaren Programme aus der Datenbank
      */
     public List<Program> getPrograms() throws SQLException {
-        final List<Program> programs = new LinkedList<>();
-
-        final ResultSet res = this.getConnection().prepareCall("SELECT * FROM programs").executeQuery();
-
-        while (res.next()) {
-            programs.add(this.getProgram(res));
-        }
+        return this.executor.query("SELECT * FROM programs", this::getProgram);
+    }
 
-        return programs;
+    /**
+     * Veröffentlicht alle Programme, wobei jedes erst gelesen wird, wenn der Abonnent es anfordert.
+     *
+     * @return Ein Publisher, der bei jedem Abonnement die Programme aufsteigend nach ID liefert
+     */
+    public Publisher<Program> publishPrograms() {
+        return new RowPublisher<>(handler -> this.executor.stream("SELECT * FROM programs ORDER BY id",
+                this.config.getDatabaseFetchSize(), this::getProgram, handler));
     }
 
     /**
@@ -318,27 +767,17 @@ public class DataManager {
      * @return Das Programm
      */
     public Program getProgramById(int id) throws SQLException {
-        // Prüfe, ob das Gerät schon einmal geladen wurde
-        if (this.programs.containsKey(id)) {
-            final Program p = this.programs.get(id);
-            try {
-                p.update();
-            } catch (final NoDataFoundException e) {
-                // Das Programm wurde aus der Datenbank gelöscht
-                this.programs.remove(id);
-                return null;
-            }
-            return p;
-        } else {
-            Program p;
-            try {
-                p = new Program(this, id);
-            } catch (final NoDataFoundException e) {
-                return null;
-            }
-            this.programs.put(p.getId(), p);
-            return p;
-        }
+        return this.programs.getOrLoad(id, () -> new Program(this, id));
+    }
+
+    /**
+     * Holt mehrere Programme anhand ihrer IDs. Noch nicht geladene Programme werden mit einer einzigen Abfrage geholt.
+     *
+     * @param ids Die IDs der Programme
+     * @return Die Programme in der Reihenfolge der IDs, ohne die nicht gefundenen
+     */
+    public List<Program> getProgramsById(Collection<Integer> ids) throws SQLException {
+        return this.getByIds(this.programs, "programs", ids, this::getProgramById, this::getProgram);
     }
 
     /**
@@ -348,15 +787,7 @@ public class DataManager {
      * @return Das Programm
      */
     Program getProgram(ResultSet res) throws SQLException {
-        if (this.programs.containsKey(res.getInt("id"))) {
-            final Program p = this.programs.get(res.getInt("id"));
-            p.update(res);
-            return p;
-        } else {
-            final Program p = new Program(this, res);
-            this.programs.put(res.getInt("id"), p);
-            return p;
-        }
+        return this.programs.getOrLoad(res.getInt("id"), () -> new Program(this, res), p -> p.update(res));
     }
 
     /**
@@ -365,14 +796,8 @@ public class DataManager {
      * @return Eine Liste aller verfügbarer Benutzergruppen.
      */
     public List<UserGroup> getUserGroups() throws SQLException {
-        ResultSet res = this.getConnection().prepareCall("SELECT * FROM user_groups ORDER BY name").executeQuery();
-        List<UserGroup> groups = new ArrayList<>();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                groups.add(this.getUserGroupById(res));
-            }
-        }
-        return groups;
+        return this.readExecutor.query("SELECT * FROM user_groups ORDER BY name",
+                res -> this.userGroups.getOrLoad(res.getInt("id"), () -> new UserGroup(this, res)));
     }
 
     /**
@@ -382,25 +807,18 @@ public class DataManager {
      * @return Die Benutzergruppe
      */
     public UserGroup getUserGroupById(int id) throws SQLException {
-        if (this.userGroups.containsKey(id)) {
-            UserGroup g = this.userGroups.get(id);
-            try {
-                g.update();
-            } catch (NoDataFoundException e) {
-                this.userGroups.remove(id);
-                return null;
-            }
-            return g;
-        } else {
-            UserGroup g;
-            try {
-                g = new UserGroup(this, id);
-            } catch (NoDataFoundException e) {
-                return null;
-            }
-            this.userGroups.put(id, g);
-            return g;
-        }
+        return this.userGroups.getOrLoad(id, () -> new UserGroup(this, id));
+    }
+
+    /**
+     * Holt mehrere Benutzergruppen anhand ihrer IDs. Noch nicht geladene Gruppen werden mit einer einzigen Abfrage
+     * geholt.
+     *
+     * @param ids Die IDs der Benutzergruppen
+     * @return Die Benutzergruppen in der Reihenfolge der IDs, ohne die nicht gefundenen
+     */
+    public List<UserGroup> getUserGroupsById(Collection<Integer> ids) throws SQLException {
+        return this.getByIds(this.userGroups, "user_groups", ids, this::getUserGroupById, this::getUserGroupById);
     }
 
     /**
@@ -410,16 +828,8 @@ public class DataManager {
      * @return Die Benutzergruppe
      */
     private UserGroup getUserGroupById(ResultSet res) throws SQLException {
-        if (this.userGroups.containsKey(res.getInt("id"))) {
-            UserGroup g = this.userGroups.get(res.getInt("id"));
-            g.update(res);
-            return g;
-        } else {
-            UserGroup g;
-            g = new UserGroup(this, res);
-            this.userGroups.put(res.getInt("id"), g);
-            return g;
-        }
+        return this.userGroups
+                .getOrLoad(res.getInt("id"), () -> new UserGroup(this, res), g -> g.update(res));
     }
 
     /**
@@ -428,13 +838,8 @@ public class DataManager {
      * @return Die Standard-Benutzergruppe
      */
     public UserGroup getDefaultUserGroup() throws SQLException {
-        ResultSet res =
-                this.getConnection().prepareCall("SELECT * FROM user_groups ORDER BY id ASC LIMIT 1").executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
-            return new UserGroup(this, res);
-        } else {
-            return null;
-        }
+        return this.executor
+                .queryFirst("SELECT * FROM user_groups ORDER BY id ASC LIMIT 1", this::getUserGroupById);
     }
 
     /**
@@ -445,15 +850,10 @@ public class DataManager {
      * @throws SQLException Wenn der letzte Benutzer nicht geladen werden kann
      */
     public User getLastUser(Device d) throws SQLException {
-        final ResultSet res = this.getConnection().prepareCall(
-                "SELECT users.* " + "FROM executions LEFT JOIN users ON executions.user_id=users.id " +
-                        "WHERE device_id=" + d.getId() + " AND user_id>=0 AND start IS NOT NULL " +
-                        "ORDER BY executions.id DESC LIMIT 1").executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
-            return this.getUser(res);
-        } else {
-            return null;
-        }
+        return this.executor.queryFirst(
+                "SELECT users.* FROM executions LEFT JOIN users ON executions.user_id=users.id " +
+                        "WHERE device_id=? AND user_id>=0 AND start IS NOT NULL ORDER BY executions.id DESC LIMIT 1",
+                this::getUser, d.getId());
     }
 
     /**
@@ -464,27 +864,18 @@ public class DataManager {
      * @throws SQLException Wenn die Abfrage nicht ausgeführt werden kann
      */
     public User getUserById(int id) throws SQLException {
-        if (this.users.containsKey(id)) {
-            final User u = this.users.get(id);
-            try {
-                u.update();
-            } catch (final NoDataFoundException e) {
-                // Benutzer wurde aus der Datenbank gelöscht
-                this.users.remove(id);
-                return null;
-            }
-            return u;
-        } else {
-            // Benutzer aus Datenbank laden
-            final ResultSet res = this.getConnection().prepareCall("SELECT * FROM users WHERE id=" + id).executeQuery();
-            if (res.isBeforeFirst() && res.next()) {
-                final User u = new User(this, res, this.getUserGroupById(res.getInt("group_id")));
-                this.users.put(u.getId(), u);
-                return u;
-            } else {
-                return null;
-            }
-        }
+        return this.users.getOrLoad(id, () -> this.executor.queryFirst("SELECT * FROM users WHERE id=?",
+                res -> new User(this, res, this.getUserGroupById(res.getInt("group_id"))), id));
+    }
+
+    /**
+     * Holt mehrere Benutzer anhand ihrer IDs. Noch nicht geladene Benutzer werden mit einer einzigen Abfrage geholt.
+     *
+     * @param ids Die IDs der Benutzer
+     * @return Die Benutzer in der Reihenfolge der IDs, ohne die nicht gefundenen
+     */
+    public List<User> getUsersById(Collection<Integer> ids) throws SQLException {
+        return this.getByIds(this.users, "users", ids, this::getUserById, this::getUser);
     }
 
     /**
@@ -494,13 +885,19 @@ public class DataManager {
      * @throws SQLException Wenn die Abfrage nicht ausgeführt werden kann
      */
     public List<User> getUsers() throws SQLException {
-        final ResultSet res =
-                this.getConnection().prepareCall("SELECT * FROM users WHERE deleted=FALSE").executeQuery();
-        final Vector<User> users = new Vector<>();
-        while (res.next()) {
-            users.add(new User(this, res, this.getUserGroupById(res.getInt("group_id"))));
-        }
-        return users;
+        return this.readExecutor.query("SELECT * FROM users WHERE deleted=FALSE", this::getUserFromReplica);
+    }
+
+    /**
+     * Veröffentlicht alle nicht gelöschten Benutzer für Exporte und Stapelverarbeitungen. Die Benutzer werden in
+     * Portionen gelesen, sodass der Speicherbedarf nicht von ihrer Anzahl abhängt.
+     *
+     * @return Ein Publisher, der bei jedem Abonnement die Benutzer aufsteigend nach ID liefert
+     */
+    public Publisher<User> publishUsers() {
+        return new RowPublisher<>(handler -> this.readExecutor.stream(
+                "SELECT * FROM users WHERE deleted=FALSE ORDER BY id",
+                this.config.getDatabaseFetchSize(), this::getUserFromReplica, handler));
     }
 
     /**
@@ -511,32 +908,53 @@ public class DataManager {
      * @throws SQLException Wenn beim Laden der Daten ein Fehler auftritt
      */
     private User getUser(ResultSet res) throws SQLException {
-        if (this.users.containsKey(res.getInt("id"))) {
-            final User u = this.users.get(res.getInt("id"));
-            u.update(res);
-            return u;
-        } else {
-            final User u = new User(this, res, this.getUserGroupById(res.getInt("group_id")));
-            this.users.put(u.getId(), u);
-            return u;
-        }
+        return this.users.getOrLoad(res.getInt("id"),
+                () -> new User(this, res, this.getUserGroupById(res.getInt("group_id"))), u -> u.update(res));
+    }
+
+    /**
+     * Lädt einen Benutzer anhand eines Abfrageergebnisses, das von einem Lesereplikat stammen kann. Ein bereits
+     * bekannter Benutzer wird damit nicht aktualisiert, da die Zeile älter sein kann als sein Stand.
+     */
+    private User getUserFromReplica(ResultSet res) throws SQLException {
+        return this.users.getOrLoad(res.getInt("id"),
+                () -> new User(this, res, this.getUserGroupById(res.getInt("group_id"))));
     }
 
     /**
-     * Sucht den zur Kartennummer passenden Benutzer
+     * Sucht den zur Kartennummer passenden Benutzer. Bekannte Karten werden über den Kartenindex im Speicher aufgelöst,
+     * alle anderen über die indizierte Tabelle user_card_ids. Unbekannte Karten werden für kurze Zeit vorgemerkt.
      *
      * @param cardId Die Kartennummer des Nutzers
      * @return Den gefundenen Benutzer oder null, wenn kein Eintrag zur Id gefunden werden kann
      */
     public User getUserByCardId(String cardId) throws SQLException {
-        final ResultSet res = this.getConnection()
-                .prepareCall("SELECT * FROM users WHERE deleted=false AND card_ids ~ '(?n)^" + cardId + "$' LIMIT 1")
-                .executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
-            return this.getUser(res);
-        } else {
+        final Integer userId = this.cardIndex.getUserId(cardId);
+        if (userId != null) {
+            final User u = this.getUserById(userId);
+            if (u != null && !u.isDeleted() && Arrays.asList(u.getCardIds()).contains(cardId)) {
+                return u;
+            }
+            // Der Index ist veraltet, die Datenbank entscheidet
+            this.cardIndex.removeUser(userId);
+        }
+        if (this.cardIndex.isKnownUnknown(cardId)) {
             return null;
         }
+        final User u = this.executor.queryFirst(
+                "SELECT users.* FROM user_card_ids JOIN users ON users.id=user_card_ids.user_id " +
+                        "WHERE user_card_ids.card_id=? AND users.deleted=FALSE", this::getUser, cardId);
+        if (u == null) {
+            this.cardIndex.putUnknown(cardId, this.getUpdateDelay(User.class));
+        }
+        return u;
+    }
+
+    /**
+     * Gibt den Index der Kartennummern zurück, den die Benutzer beim Laden und Ändern fortschreiben.
+     */
+    CardIndex getCardIndex() {
+        return this.cardIndex;
     }
 
     /**
@@ -546,15 +964,8 @@ public class DataManager {
      * @return Den Benutzer mit der gegebenen Email-Adresse oder null, wenn es keinen solchen gibt.
      */
     public User getUserByEmail(String email) throws SQLException {
-        final PreparedStatement s =
-                this.getConnection().prepareStatement("SELECT * FROM users WHERE deleted=FALSE AND email=? LIMIT 1");
-        s.setString(1, email);
-        final ResultSet res = s.executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
-            return this.getUser(res);
-        } else {
-            return null;
-        }
+        return this.executor
+                .queryFirst("SELECT * FROM users WHERE deleted=FALSE AND email=? LIMIT 1", this::getUser, email);
     }
 
     /**
@@ -565,15 +976,10 @@ public class DataManager {
      * @return Den gefundenen Benutzer, oder null, wenn der Schlüssel unbekannt oder abgelaufen ist.
      */
     public User getUserByPasswordResetKey(String key) throws SQLException {
-        final PreparedStatement s = this.getConnection()
-                .prepareStatement("SELECT * FROM users WHERE deleted=FALSE AND " + "password_reset_key=?");
-        s.setString(1, key);
-        final ResultSet res = s.executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
-            final User u = this.getUser(res);
-            if (u.passwordResetKeyIsValid()) {
-                return u;
-            }
+        final User u = this.executor
+                .queryFirst("SELECT * FROM users WHERE deleted=FALSE AND password_reset_key=?", this::getUser, key);
+        if (u != null && u.passwordResetKeyIsValid()) {
+            return u;
         }
         return null;
     }
@@ -586,14 +992,8 @@ public class DataManager {
      * @throws SQLException Falls ein Fehler bei der Datenbankabfrage auftritt
      */
     public List<Execution> getNotFinishedExecutions(User u) throws SQLException {
-        final List<Execution> executions = new LinkedList<>();
-        final ResultSet res = this.getConnection().prepareCall(
-                "SELECT * FROM executions WHERE user_id=" + u.getId() + " AND finished=false AND start IS NOT NULL")
-                .executeQuery();
-        while (res.next()) {
-            executions.add(this.getExecution(res));
-        }
-        return executions;
+        return this.getExecutions(this.executor, "WHERE user_id=? AND finished=false AND start IS NOT NULL",
+                u.getId());
     }
 
     /**
@@ -603,46 +1003,84 @@ public class DataManager {
      * @return Die Ausführung
      */
     private Execution getExecution(ResultSet res) throws SQLException {
-        if (this.executions.containsKey(res.getInt("id"))) {
-            final Execution e = this.executions.get(res.getInt("id"));
-            e.update(res);
-            return e;
-        } else {
-            final Execution e = new Execution(this, res, this.getDevice(res.getInt("device_id")),
-                    this.getProgramById(res.getInt("program_id")), this.getUserById(res.getInt("user_id")));
-            this.executions.put(e.getId(), e);
-            return e;
-        }
+        return this.executions.getOrLoad(res.getInt("id"),
+                () -> new Execution(this, res, this.getDevice(res.getInt("device_id")),
+                        this.getProgramById(res.getInt("program_id")), this.getUserById(res.getInt("user_id"))),
+                e -> e.update(res));
     }
 
     public Execution getExecution(int id) throws SQLException {
-        if (this.executions.containsKey(id)) {
-            final Execution e = this.executions.get(id);
-            e.update();
-            return e;
-        } else {
-            final ResultSet res =
-                    this.getConnection().prepareCall("SELECT * FROM executions WHERE id=" + id).executeQuery();
-            res.next();
-            return this.getExecution(res);
+        return this.executions.getOrLoad(id,
+                () -> this.executor.queryFirst("SELECT * FROM executions WHERE id=?", this::getExecution, id));
+    }
+
+    /**
+     * Liest eine Ausführung sofort neu aus der Datenbank, auch wenn sie zwischengespeichert ist.
+     *
+     * @return Die Ausführung, oder null, wenn es sie nicht mehr gibt
+     */
+    Execution reloadExecution(int id) throws SQLException {
+        return this.executor.queryFirst("SELECT * FROM executions WHERE id=?", this::getExecution, id);
+    }
+
+    /**
+     * Lädt die laufenden Ausführungen auf allen Geräten eines Standorts mit einer einzigen Abfrage. Danach beantworten
+     * {@link #getRunningExecution(Device)} und {@link #getRunningExecutions(User)} Anfragen zu diesem Standort aus dem
+     * Speicher und halten sich über Starts, Stopps und Änderungsbenachrichtigungen aktuell. Solange keine
+     * Benachrichtigungen empfangen werden, fragen beide die Datenbank ab.
+     *
+     * @param location Der Standort, z.B. der des Clients
+     */
+    public void loadRunningExecutions(Location location) throws SQLException {
+        this.runningExecutions.load(location.getId(), this.getExecutions(this.executor,
+                "WHERE finished=false AND start IS NOT NULL AND device_id IN " +
+                        "(SELECT id FROM devices WHERE location_id=?)", location.getId()));
+    }
+
+    /**
+     * Gibt das Verzeichnis der laufenden Ausführungen zurück, das die Ausführungen selbst pflegen.
+     */
+    RunningExecutionRegistry getRunningExecutionRegistry() {
+        return this.runningExecutions;
+    }
+
+    /**
+     * Gibt die laufenden Ausführungen eines Benutzers an den mit {@link #loadRunningExecutions(Location)} geladenen
+     * Standorten zurück. Werden Änderungsbenachrichtigungen empfangen, so wird keine Abfrage gestellt.
+     *
+     * @param user Der Benutzer
+     * @return Die gestarteten, nicht abgeschlossenen Ausführungen des Benutzers, auch solche mit abgelaufener
+     * Höchstdauer
+     */
+    public List<Execution> getRunningExecutions(User user) throws SQLException {
+        if (this.runningExecutions.coversUsers()) {
+            return this.runningExecutions.getByUser(user);
+        }
+        final Set<Integer> locationIds = this.runningExecutions.getLocationIds();
+        if (locationIds.isEmpty()) {
+            return Collections.emptyList();
         }
+        return this.getExecutions(this.executor, "WHERE user_id=? AND finished=false AND start IS NOT NULL AND " +
+                        "device_id IN (SELECT id FROM devices WHERE location_id = ANY(?))", user.getId(),
+                toIntArray(locationIds));
     }
 
     /**
-     * Holt die auf dem gegebenen Gerät laufende Ausführung aus der Datenbank
+     * Holt die auf dem gegebenen Gerät laufende Ausführung. Ist der Standort des Geräts mit
+     * {@link #loadRunningExecutions(Location)} geladen und werden Änderungsbenachrichtigungen empfangen, so wird keine
+     * Abfrage gestellt.
      *
      * @param device Das Gerät, dessen laufende Ausführung gesucht ist.
      * @return Die derzeit laufende Ausführung auf dem Gerät.
      */
     public Execution getRunningExecution(Device device) throws SQLException {
-        final PreparedStatement s = this.getConnection()
-                .prepareStatement("SELECT * FROM executions WHERE device_id=? AND finished=? AND start IS NOT NULL");
-        s.setInt(1, device.getId());
-        s.setBoolean(2, false);
-        final ResultSet res = s.executeQuery();
-
-        while (res.next()) {
-            final Execution e = this.getExecution(res);
+        if (this.runningExecutions.covers(device)) {
+            return this.runningExecutions.getByDevice(device);
+        }
+        final List<Execution> executions =
+                this.getExecutions(this.executor, "WHERE device_id=? AND finished=false AND start IS NOT NULL",
+                        device.getId());
+        for (final Execution e : executions) {
             if (!e.isExpired()) {
                 return e;
             }
@@ -657,18 +1095,120 @@ public class DataManager {
      * @return Die Ausführungen auf dem Gerät.
      */
     public List<Execution> getExecutions(Device device) throws SQLException {
-        final PreparedStatement s = this.getConnection().prepareStatement(
-                "SELECT * FROM executions WHERE device_id=? AND start IS NOT NULL ORDER BY start DESC");
-        s.setInt(1, device.getId());
-        final ResultSet res = s.executeQuery();
+        return this.getExecutions(new ExecutionQuery().device(device));
+    }
+
+    /**
+     * Holt die Ausführungen, die den Filtern einer Abfrage entsprechen.
+     *
+     * @param query Die Abfrage
+     * @return Die Ausführungen, absteigend nach Startzeitpunkt
+     */
+    public List<Execution> getExecutions(ExecutionQuery query) throws SQLException {
+        final List<Object> params = new ArrayList<>();
+        final String condition = query.toCondition(params);
+        return this.getExecutions(this.readExecutor, condition, params.toArray());
+    }
+
+    /**
+     * Reicht die Zeilen der Ausführungen, die den Filtern einer Abfrage entsprechen, in Portionen an einen Verarbeiter
+     * weiter. Statt vollständiger Ausführungen wird jede Zeile von {@code executions} nur auf die benötigten Werte
+     * abgebildet, z.B. für Auswertungen über lange Zeiträume.
+     *
+     * @param query      Die Abfrage
+     * @param projection Bildet eine Zeile der Tabelle {@code executions} auf die benötigten Werte ab
+     * @param handler    Verarbeitet die abgebildeten Zeilen, absteigend nach Startzeitpunkt
+     */
+    public <T> void streamExecutions(ExecutionQuery query, IRowMapper<T> projection, IRowHandler<T> handler)
+            throws SQLException {
+        final List<Object> params = new ArrayList<>();
+        final String condition = query.toCondition(params);
+        this.readExecutor.stream("SELECT * FROM executions " + condition, this.config.getDatabaseFetchSize(),
+                projection, handler, params.toArray());
+    }
+
+    /**
+     * Veröffentlicht die Ausführungen, die den Filtern einer Abfrage entsprechen. Anders als bei
+     * {@link #getExecutions(ExecutionQuery)} werden die Ausführungen nicht gesammelt, sondern einzeln geliefert, sobald
+     * der Abonnent sie anfordert. Geräte, Programme und Benutzer werden dabei aus den Zwischenspeichern bedient.
+     *
+     * @param query Die Abfrage
+     * @return Ein Publisher, der bei jedem Abonnement die Ausführungen absteigend nach Startzeitpunkt liefert
+     */
+    public Publisher<Execution> publishExecutions(ExecutionQuery query) {
+        final boolean refresh = this.mayRefresh(this.readExecutor);
+        return new RowPublisher<>(handler -> this.streamExecutions(query, ExecutionRow::new, row -> {
+            final IdentityMap.ILoader<Execution> loader =
+                    () -> new Execution(this, row.id, this.getDevice(row.deviceId), this.getProgramById(row.programId),
+                            this.getUserById(row.userId), row.start, row.stop, row.finished);
+            final Execution e = refresh
+                    ? this.executions.getOrLoad(row.id, loader, ex -> ex.update(row.start, row.stop, row.finished))
+                    : this.executions.getOrLoad(row.id, loader);
+            if (e != null) {
+                handler.handle(e);
+            }
+        }));
+    }
 
-        final List<Execution> executions = new Vector<>();
+    /**
+     * Gibt an, ob Abfrageergebnisse des gegebenen Ausführers bereits zwischengespeicherte Objekte aktualisieren dürfen.
+     * Zeilen eines Lesereplikats können um dessen Rückstand veraltet sein und würden sonst z.B. eine eben beendete
+     * Ausführung für alle Threads wieder als laufend markieren. Sie dürfen daher nur noch nicht bekannte Objekte
+     * anlegen. Bekannte Objekte werden wie üblich im Hintergrund vom Primärserver neu geladen.
+     */
+    private boolean mayRefresh(QueryExecutor source) {
+        return source == this.executor;
+    }
+
+    /**
+     * Holt Ausführungen aus der Datenbank. Die Geräte, Programme und Benutzer aller gefundenen Ausführungen werden
+     * gesammelt und je Tabelle mit einer einzigen Abfrage geladen, statt sie für jede Ausführung einzeln zu holen.
+     *
+     * @param source    Der Ausführer, der die Ausführungen abfragt, z.B. der für Lesereplikate
+     * @param condition Der auf {@code SELECT * FROM executions} folgende Teil der Abfrage
+     * @param params    Die Werte der Platzhalter
+     * @return Die Ausführungen in der Reihenfolge des Abfrageergebnisses
+     */
+    private List<Execution> getExecutions(QueryExecutor source, String condition, Object... params)
+            throws SQLException {
+        final List<ExecutionRow> rows =
+                source.query("SELECT * FROM executions " + condition, ExecutionRow::new, params);
 
-        while (res.next()) {
-            executions.add(this.getExecution(res));
+        final Set<Integer> deviceIds = new HashSet<>();
+        final Set<Integer> programIds = new HashSet<>();
+        final Set<Integer> userIds = new HashSet<>();
+        for (final ExecutionRow row : rows) {
+            deviceIds.add(row.deviceId);
+            programIds.add(row.programId);
+            userIds.add(row.userId);
+        }
+        final Map<Integer, Device> devices = new HashMap<>();
+        for (final Device d : this.getDevicesById(deviceIds)) {
+            devices.put(d.getId(), d);
+        }
+        final Map<Integer, Program> programs = new HashMap<>();
+        for (final Program p : this.getProgramsById(programIds)) {
+            programs.put(p.getId(), p);
+        }
+        final Map<Integer, User> users = new HashMap<>();
+        for (final User u : this.getUsersById(userIds)) {
+            users.put(u.getId(), u);
         }
 
-        return executions;
+        final boolean refresh = this.mayRefresh(source);
+        final List<Execution> result = new ArrayList<>();
+        for (final ExecutionRow row : rows) {
+            final IdentityMap.ILoader<Execution> loader =
+                    () -> new Execution(this, row.id, devices.get(row.deviceId), programs.get(row.programId),
+                            users.get(row.userId), row.start, row.stop, row.finished);
+            final Execution e = refresh
+                    ? this.executions.getOrLoad(row.id, loader, ex -> ex.update(row.start, row.stop, row.finished))
+                    : this.executions.getOrLoad(row.id, loader);
+            if (e != null) {
+                result.add(e);
+            }
+        }
+        return result;
     }
 
     /**
@@ -693,15 +1233,57 @@ public class DataManager {
      * @return Die Buchungen eines Benutzers
      */
     public List<CreditAccountingEntry> getAccountingEntries(User user) throws SQLException {
-        final ResultSet res = this.getConnection()
-                .prepareCall("SELECT * FROM credit_accounting WHERE user_id=" + user.getId() + " ORDER BY date DESC")
-                .executeQuery();
-        final List<CreditAccountingEntry> entries;
-        entries = new LinkedList<>();
-        while (res.next()) {
-            entries.add(new CreditAccountingEntry(this, res, user));
+        return this.readExecutor.query("SELECT * FROM credit_accounting WHERE user_id=? ORDER BY date DESC, id DESC",
+                res -> new CreditAccountingEntry(this, res, user), user.getId());
+    }
+
+    /**
+     * Holt eine Seite der Guthabensbuchungen eines Benutzers, beginnend mit der neuesten. Die nächste Seite wird
+     * anhand der letzten Buchung der vorigen Seite gefunden, sodass jede Seite gleich schnell geladen wird.
+     *
+     * @param user     Der Benutzer, zu dem die Buchungen geladen werden sollen
+     * @param after    Die letzte Buchung der vorigen Seite oder null für die erste Seite
+     * @param pageSize Die maximale Anzahl der Buchungen auf der Seite
+     * @return Die Buchungen der Seite, absteigend nach Datum. Ist die Liste kürzer als die Seitengröße, so gibt es
+     * keine weiteren Seiten.
+     */
+    public List<CreditAccountingEntry> getAccountingEntries(User user, CreditAccountingEntry after, int pageSize)
+            throws SQLException {
+        if (after == null) {
+            return this.readExecutor
+                    .query("SELECT * FROM credit_accounting WHERE user_id=? ORDER BY date DESC, id DESC LIMIT ?",
+                            res -> new CreditAccountingEntry(this, res, user), user.getId(), pageSize);
         }
-        return entries;
+        return this.readExecutor.query("SELECT * FROM credit_accounting WHERE user_id=? AND (date, id) < (?, ?) " +
+                        "ORDER BY date DESC, id DESC LIMIT ?", res -> new CreditAccountingEntry(this, res, user),
+                user.getId(), Timestamp.valueOf(after.getDate()), after.getId(), pageSize);
+    }
+
+    /**
+     * Holt eine Seite der Guthabensbuchungen eines Benutzers mit der konfigurierten Seitengröße
+     * ({@code database.accountingPageSize}).
+     *
+     * @param user  Der Benutzer, zu dem die Buchungen geladen werden sollen
+     * @param after Die letzte Buchung der vorigen Seite oder null für die erste Seite
+     * @return Die Buchungen der Seite, absteigend nach Datum
+     */
+    public List<CreditAccountingEntry> getAccountingEntries(User user, CreditAccountingEntry after)
+            throws SQLException {
+        return this.getAccountingEntries(user, after, this.config.getDatabaseAccountingPageSize());
+    }
+
+    /**
+     * Reicht alle Guthabensbuchungen eines Benutzers, beginnend mit der neuesten, nacheinander an einen Verarbeiter
+     * weiter, z.B. für einen Export. Die Buchungen werden in Portionen gelesen und nicht gesammelt im Speicher
+     * gehalten.
+     *
+     * @param user    Der Benutzer, zu dem die Buchungen geladen werden sollen
+     * @param handler Verarbeitet die Buchungen
+     */
+    public void streamAccountingEntries(User user, IRowHandler<CreditAccountingEntry> handler) throws SQLException {
+        this.readExecutor.stream("SELECT * FROM credit_accounting WHERE user_id=? ORDER BY date DESC, id DESC",
+                this.config.getDatabaseFetchSize(), res -> new CreditAccountingEntry(this, res, user), handler,
+                user.getId());
     }
 
     /**
@@ -711,13 +1293,129 @@ public class DataManager {
      * @return Die letzte Einzahlung des Benutzers
      */
     public CreditAccountingEntry getLastInpayment(User user) throws SQLException {
-        final ResultSet res = this.getConnection().prepareCall(
-                "SELECT * FROM credit_accounting WHERE user_id=" + user.getId() +
-                        " AND amount>0 ORDER BY DATE DESC LIMIT 1").executeQuery();
-        if (res.next()) {
-            return new CreditAccountingEntry(this, res, user);
-        } else {
-            return null;
+        return this.executor
+                .queryFirst("SELECT * FROM credit_accounting WHERE user_id=? AND amount>0 ORDER BY DATE DESC LIMIT 1",
+                        res -> new CreditAccountingEntry(this, res, user), user.getId());
+    }
+
+    /**
+     * Holt mehrere Objekte einer Tabelle anhand ihrer IDs. Bereits geladene Objekte werden einzeln aktualisiert, alle
+     * übrigen mit einer einzigen Abfrage der Form {@code id = ANY(?)} geladen.
+     *
+     * @param map    Die Identitätstabelle der Objekte
+     * @param table  Die Tabelle, aus der die Objekte geladen werden
+     * @param ids    Die IDs der Objekte
+     * @param byId   Holt ein bereits geladenes Objekt anhand seiner ID
+     * @param mapper Holt ein Objekt aus einem Abfrageergebnis
+     * @return Die Objekte in der Reihenfolge der IDs, ohne die nicht gefundenen
+     */
+    private <T> List<T> getByIds(IdentityMap<T> map, String table, Collection<Integer> ids, IIdLoader<T> byId,
+                                 IRowMapper<T> mapper) throws SQLException {
+        final Map<Integer, T> found = new HashMap<>();
+        final List<Integer> missing = new ArrayList<>();
+        for (final int id : new LinkedHashSet<>(ids)) {
+            if (map.contains(id)) {
+                final T entity = byId.load(id);
+                if (entity != null) {
+                    found.put(id, entity);
+                }
+            } else {
+                missing.add(id);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            final List<Map.Entry<Integer, T>> loaded = this.executor
+                    .query("SELECT * FROM " + table + " WHERE id = ANY(?)",
+                            res -> new AbstractMap.SimpleEntry<>(res.getInt("id"), mapper.map(res)),
+                            toIntArray(missing));
+            for (final Map.Entry<Integer, T> entry : loaded) {
+                found.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        final List<T> result = new ArrayList<>();
+        for (final int id : ids) {
+            final T entity = found.get(id);
+            if (entity != null) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Liest eine Relationstabelle für mehrere Objekte mit einer einzigen Abfrage.
+     *
+     * @param sql Die Abfrage, die zu jeder Zeile die ID des Objekts und die ID des zugeordneten Objekts liefert
+     * @param ids Die IDs der Objekte, deren Zuordnungen gelesen werden
+     * @return Zu jeder ID die IDs der zugeordneten Objekte
+     */
+    private Map<Integer, List<Integer>> getRelation(String sql, Collection<Integer> ids) throws SQLException {
+        final Map<Integer, List<Integer>> relation = new HashMap<>();
+        if (ids.isEmpty()) {
+            return relation;
+        }
+        for (final int[] row : this.executor.query(sql, res -> new int[]{res.getInt(1), res.getInt(2)},
+                toIntArray(ids))) {
+            relation.computeIfAbsent(row[0], k -> new ArrayList<>()).add(row[1]);
+        }
+        return relation;
+    }
+
+    /**
+     * Ordnet IDs die bereits geladenen Objekte zu. Nicht gefundene Objekte werden übergangen.
+     */
+    private static <T> List<T> resolve(List<Integer> ids, Map<Integer, T> loaded) {
+        final List<T> result = new ArrayList<>();
+        if (ids != null) {
+            for (final int id : ids) {
+                final T entity = loaded.get(id);
+                if (entity != null) {
+                    result.add(entity);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int[] toIntArray(Collection<Integer> ids) {
+        final int[] result = new int[ids.size()];
+        int i = 0;
+        for (final int id : ids) {
+            result[i++] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Holt ein Objekt anhand seiner ID
+     */
+    @FunctionalInterface
+    private interface IIdLoader<T> {
+        T load(int id) throws SQLException;
+    }
+
+    /**
+     * Eine gelesene Zeile der Tabelle executions, deren Gerät, Programm und Benutzer noch nicht geladen sind
+     */
+    private static class ExecutionRow {
+        private final int id;
+        private final int deviceId;
+        private final int programId;
+        private final int userId;
+        private final Timestamp start;
+        private final Timestamp stop;
+        private final boolean finished;
+
+        private ExecutionRow(ResultSet res) throws SQLException {
+            this.id = res.getInt("id");
+            this.deviceId = res.getInt("device_id");
+            this.programId = res.getInt("program_id");
+            this.userId = res.getInt("user_id");
+            this.start = res.getTimestamp("start");
+            this.stop = res.getTimestamp("stop");
+            this.finished = res.getBoolean("finished");
         }
     }
 }
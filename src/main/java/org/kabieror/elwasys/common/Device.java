@@ -3,14 +3,16 @@ package org.kabieror.elwasys.common;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.PreparedStatement;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 /**
@@ -30,13 +32,13 @@ public class Device {
      */
     private final int id;
     /**
-     * Liste mit Programmen des Geräts.
+     * Liste mit Programmen des Geräts. Wird erst beim ersten Zugriff geladen.
      */
-    private final List<Program> programs;
+    private final Lazy<List<Program>> programs = new Lazy<>(this::loadPrograms);
     /**
-     * Liste der auf diesem Gerät erlaubten Benutzergruppen
+     * Liste der auf diesem Gerät erlaubten Benutzergruppen. Wird erst beim ersten Zugriff geladen.
      */
-    private final List<UserGroup> validUserGroups;
+    private final Lazy<List<UserGroup>> validUserGroups = new Lazy<>(this::loadValidGroups);
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     /**
      * Die Anzeige-Position des Geräts
@@ -80,17 +82,22 @@ public class Device {
      */
     private boolean enabled;
 
+    /**
+     * Die ID des Standorts des Geräts
+     */
+    private int locationId;
+
     /**
      * Der Standort des Geräts
      */
-    private Location location;
+    private final Lazy<Location> location = new Lazy<>(this::loadLocation);
 
     /**
      * Die aktuell laufende Programmausführung
      */
     private Execution currentExecution;
 
-    private LocalDateTime lastUpdateTime;
+    private volatile LocalDateTime lastUpdateTime;
 
     /**
      * Erstellt ein lokales Abbild eines Gerätes in der Datenbank.
@@ -98,11 +105,45 @@ public class Device {
     public Device(DataManager dataManager, ResultSet res) throws SQLException {
         this.dataManager = dataManager;
         this.id = res.getInt("id");
-        this.programs = new ArrayList<>();
-        this.validUserGroups = new ArrayList<>();
         this.update(res);
     }
 
+    /**
+     * Erstellt ein lokales Abbild eines Gerätes aus einem Abfrageergebnis und bereits geladenen Objekten.
+     */
+    Device(DataManager dataManager, ResultSet res, Location location, List<Program> programs,
+           List<UserGroup> validUserGroups) throws SQLException {
+        this.dataManager = dataManager;
+        this.id = res.getInt("id");
+        this.update(res, location, programs, validUserGroups);
+    }
+
+    /**
+     * Liest ein Gerät aus einer Momentaufnahme für den Warmstart. Standort, Programme und Benutzergruppen werden aus
+     * den bereits gelesenen Objekten aufgelöst.
+     */
+    Device(DataManager dataManager, DataInputStream in, Map<Integer, Location> locations,
+           Map<Integer, Program> programs, Map<Integer, UserGroup> groups) throws IOException {
+        this.dataManager = dataManager;
+        this.id = in.readInt();
+        this.name = WarmStartSnapshot.readString(in);
+        this.position = in.readInt();
+        this.locationId = in.readInt();
+        this.fhemName = WarmStartSnapshot.readString(in);
+        this.fhemSwitchName = WarmStartSnapshot.readString(in);
+        this.fhemPowerName = WarmStartSnapshot.readString(in);
+        this.autoEndPowerThreashold = in.readFloat();
+        this.autoEndWaitTime = Duration.ofSeconds(in.readLong());
+        this.enabled = in.readBoolean();
+        final Location location = locations.get(this.locationId);
+        if (location != null) {
+            this.location.set(location);
+        }
+        WarmStartSnapshot.readRelation(in, this.programs, programs);
+        WarmStartSnapshot.readRelation(in, this.validUserGroups, groups);
+        this.lastUpdateTime = LocalDateTime.now();
+    }
+
     /**
      * Holt ein Gerät anhand seiner ID aus der Datenbank
      *
@@ -113,8 +154,6 @@ public class Device {
     public Device(DataManager dataManager, int id) throws SQLException, NoDataFoundException {
         this.dataManager = dataManager;
         this.id = id;
-        this.programs = new ArrayList<>();
-        this.validUserGroups = new ArrayList<>();
         this.update();
     }
 
@@ -136,78 +175,32 @@ public class Device {
 
         this.name = name;
         this.position = position;
-        this.location = location;
+        this.locationId = location.getId();
+        this.location.set(location);
         this.fhemName = fhem_name;
         this.fhemSwitchName = fhem_switch_name;
         this.fhemPowerName = fhem_power_name;
         this.autoEndPowerThreashold = autoEndPowerThreashold;
         this.autoEndWaitTime = autoEndWaitTime;
         this.enabled = enabled;
-        this.programs = programs;
-        this.validUserGroups = validUserGroups;
-
-        final PreparedStatement s = this.dataManager.getConnection().prepareStatement(
-                "INSERT INTO devices (name, position, location_id, fhem_name, " +
-                        "fhem_switch_name, fhem_power_name, auto_end_power_threashold, auto_end_wait_time, " +
-                        "enabled) VALUES (?, ?, ?, ?, " + "?, ?, ?, ?, " + "?)", Statement.RETURN_GENERATED_KEYS);
-
-        int i = 1;
-        s.setString(i++, name);
-        s.setInt(i++, position);
-        s.setInt(i++, location.getId());
-        s.setString(i++, fhem_name);
-        s.setString(i++, fhem_switch_name);
-        s.setString(i++, fhem_power_name);
-        s.setFloat(i++, autoEndPowerThreashold);
-        s.setInt(i++, new Long(autoEndWaitTime.getSeconds()).intValue());
-        s.setBoolean(i++, enabled);
-        s.executeUpdate();
-
-        final ResultSet res = s.getGeneratedKeys();
-        if (res.next()) {
-            this.id = res.getInt(1);
-        } else {
-            throw new SQLException("No ID received by database.");
-        }
-
-        // Relationen herstellen
-        try {
+        this.programs.set(programs);
+        this.validUserGroups.set(validUserGroups);
+
+        // Gerät und Relationen gemeinsam anlegen. Schlägt etwas fehl, wird nichts davon gespeichert.
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            this.id = work.insert("INSERT INTO devices (name, position, location_id, fhem_name, " +
+                            "fhem_switch_name, fhem_power_name, auto_end_power_threashold, auto_end_wait_time, " +
+                            "enabled) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)", name, position, location.getId(), fhem_name,
+                    fhem_switch_name, fhem_power_name, autoEndPowerThreashold, (int) autoEndWaitTime.getSeconds(),
+                    enabled);
             for (final Program p : programs) {
-                this.dataManager.getConnection().prepareCall(
-                        "INSERT INTO device_program_rel (device_id, program_id) VALUES (" + this.id + ", " + p.getId() +
-                                ")").execute();
+                work.batch("INSERT INTO device_program_rel (device_id, program_id) VALUES (?, ?)", this.id, p.getId());
             }
             for (final UserGroup g : validUserGroups) {
-                this.dataManager.getConnection().prepareCall(
-                        "INSERT INTO devices_valid_user_groups (device_id, group_id) VALUES (" + this.id + ", " +
-                                g.getId() + ")").execute();
+                work.batch("INSERT INTO devices_valid_user_groups (device_id, group_id) VALUES (?, ?)", this.id,
+                        g.getId());
             }
-        } catch (final SQLException e) {
-            // Fehler. Alles zurücksetzen.
-            try {
-                this.dataManager.getConnection()
-                        .prepareCall("DELETE FROM device_program_rel WHERE device_id=" + this.id).execute();
-            } catch (final SQLException e1) {
-                // ignorieren und weiter.
-                this.logger.error("Could not delete newly created relations between this device and its programs", e1);
-            }
-            try {
-                this.dataManager.getConnection()
-                        .prepareCall("DELETE FROM devices_valid_user_groups WHERE device_id=" + this.id).execute();
-            } catch (final SQLException e1) {
-                // ignorieren und weiter.
-                this.logger
-                        .error("Could not delete newly created relations between this device and its valid user groups",
-                                e1);
-            }
-
-            try {
-                this.dataManager.getConnection().prepareCall("DELETE FROM devices WHERE id=" + this.id).execute();
-            } catch (final SQLException e1) {
-                // ignorieren und weiter.
-                this.logger.error("Could not delete the newly created device.");
-            }
-            throw e;
+            work.commit();
         }
     }
 
@@ -223,89 +216,39 @@ public class Device {
     public void modify(String name, int position, Location location, String fhemName, String fhemSwitchName,
                        String fhemPowerName, float autoEndPowerThreashold, Duration autoEndWaitTime, boolean enabled,
                        List<Program> programs, List<UserGroup> validUserGroups) throws SQLException {
-        final PreparedStatement s = this.dataManager.getConnection().prepareStatement(
-                "UPDATE devices SET name=?, position=?, location_id=?, fhem_name=?, fhem_switch_name=?, " +
-                        "fhem_power_name=?, " +
-                        "auto_end_power_threashold=?, auto_end_wait_time=?, enabled=? WHERE id=?");
-        {
-            int i = 1;
-            s.setString(i++, name);
-            s.setInt(i++, position);
-            s.setInt(i++, location.getId());
-            s.setString(i++, fhemName);
-            s.setString(i++, fhemSwitchName);
-            s.setString(i++, fhemPowerName);
-            s.setFloat(i++, autoEndPowerThreashold);
-            s.setInt(i++, new Long(autoEndWaitTime.getSeconds()).intValue());
-            s.setBoolean(i++, enabled);
-            s.setInt(i++, this.id);
+        // Nur tatsächlich geänderte Spalten und Relationen schreiben
+        final ColumnChanges changes = new ColumnChanges()
+                .set("name", this.name, name)
+                .set("position", this.position, position)
+                .set("location_id", this.locationId, location.getId())
+                .set("fhem_name", this.fhemName, fhemName)
+                .set("fhem_switch_name", this.fhemSwitchName, fhemSwitchName)
+                .set("fhem_power_name", this.fhemPowerName, fhemPowerName)
+                .set("auto_end_power_threashold", this.autoEndPowerThreashold, autoEndPowerThreashold)
+                .set("auto_end_wait_time", ColumnChanges.seconds(this.autoEndWaitTime),
+                        ColumnChanges.seconds(autoEndWaitTime))
+                .set("enabled", this.enabled, enabled);
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            changes.update(work, "devices", this.id);
+            work.replaceRelation("device_program_rel", "device_id", this.id, "program_id", this.programs.fetch(),
+                    programs, Program::getId);
+            work.replaceRelation("devices_valid_user_groups", "device_id", this.id, "group_id",
+                    this.validUserGroups.fetch(), validUserGroups, UserGroup::getId);
+            work.commit();
         }
 
-        s.execute();
-
         this.name = name;
         this.position = position;
-        this.location = location;
+        this.locationId = location.getId();
+        this.location.set(location);
         this.fhemName = fhemName;
         this.fhemSwitchName = fhemSwitchName;
         this.fhemPowerName = fhemPowerName;
         this.autoEndPowerThreashold = autoEndPowerThreashold;
         this.autoEndWaitTime = autoEndWaitTime;
         this.enabled = enabled;
-
-        // Programme aktualisieren
-        final List<Program> skippedPrograms = new Vector<>();
-        final int oldProgramsCount = this.programs.size();
-        for (final Program p : programs) {
-            if (this.programs.contains(p)) {
-                skippedPrograms.add(p);
-                continue;
-            }
-            this.dataManager.getConnection().prepareCall(
-                    "INSERT INTO device_program_rel (device_id, program_id) VALUES (" + this.id + ", " + p.getId() +
-                            ")").execute();
-            this.programs.add(p);
-        }
-
-        if (oldProgramsCount > skippedPrograms.size()) {
-            // Look for deleted programs
-            for (int i = 0; i < this.programs.size(); i++) {
-                if (!programs.contains(this.programs.get(i))) {
-                    this.dataManager.getConnection().prepareCall(
-                            "DELETE FROM device_program_rel WHERE device_id=" + this.id + " AND program_id=" +
-                                    this.programs.get(i).getId()).execute();
-                    this.programs.remove(i);
-                    i--;
-                }
-            }
-        }
-
-        // Benutzergruppen aktualisieren
-        final List<UserGroup> skippedGroups = new Vector<>();
-        final int oldGroupsCount = this.validUserGroups.size();
-        for (final UserGroup g : validUserGroups) {
-            if (this.validUserGroups.contains(g)) {
-                skippedGroups.add(g);
-                continue;
-            }
-            this.dataManager.getConnection().prepareCall(
-                    "INSERT INTO devices_valid_user_groups (device_id, group_id) VALUES (" + this.id + ", " +
-                            g.getId() + ")").execute();
-            this.validUserGroups.add(g);
-        }
-
-        if (oldGroupsCount > skippedGroups.size()) {
-            // Look for deleted groups
-            for (int i = 0; i < this.validUserGroups.size(); i++) {
-                if (!validUserGroups.contains(this.validUserGroups.get(i))) {
-                    this.dataManager.getConnection().prepareCall(
-                            "DELETE FROM devices_valid_user_groups WHERE device_id=" + this.id + " AND group_id=" +
-                                    this.validUserGroups.get(i).getId()).execute();
-                    this.validUserGroups.remove(i);
-                    i--;
-                }
-            }
-        }
+        this.programs.set(new ArrayList<>(programs));
+        this.validUserGroups.set(new ArrayList<>(validUserGroups));
     }
 
     /**
@@ -315,7 +258,7 @@ public class Device {
      */
     public void delete() throws SQLException {
         // Gerät löschen
-        this.dataManager.getConnection().prepareCall("DELETE FROM devices WHERE id=" + this.id).execute();
+        this.dataManager.getQueryExecutor().update("DELETE FROM devices WHERE id=?", this.id);
     }
 
     /**
@@ -326,63 +269,124 @@ public class Device {
     public void update() throws SQLException, NoDataFoundException {
         // Only update after some time again
         if (this.lastUpdateTime != null &&
-                Duration.between(this.lastUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(Device.class)).isNegative()) {
             return;
         }
+        this.reload();
+    }
+
+    /**
+     * Liest die Daten des Geräts unabhängig vom Zeitpunkt der letzten Aktualisierung neu aus der Datenbank
+     */
+    void reload() throws SQLException, NoDataFoundException {
         this.lastUpdateTime = LocalDateTime.now();
 
-        final ResultSet res = this.dataManager.getConnection().prepareCall("SELECT * FROM devices WHERE id=" + this.id)
-                .executeQuery();
-        if (!res.next()) {
+        final Boolean found = this.dataManager.getQueryExecutor()
+                .queryFirst("SELECT * FROM devices WHERE id=?", res -> {
+                    this.update(res);
+                    return true;
+                }, this.id);
+        if (found == null) {
             throw new NoDataFoundException(
                     String.format("Das Gerät '%1s' wurde aus der Datenbank gelöscht.", this.name));
         }
-        this.update(res);
+        // Bereits verwendete Relationen gleich mitladen, damit der nächste Zugriff nicht auf die Datenbank wartet
+        this.location.refresh();
+        this.programs.refresh();
+        this.validUserGroups.refresh();
     }
 
     /**
-     * Aktualisiert die Daten des Geräts mit denen aus einem Abfrageergebnis
+     * Aktualisiert die Daten des Geräts mit denen aus einem Abfrageergebnis. Programme und Benutzergruppen bleiben
+     * erhalten, bis {@link #reload()} sie neu lädt. Nur ein geänderter Standort wird beim nächsten Zugriff geladen.
      *
      * @param res Das Abfrageergebnis, mit denen die Daten des Gerätes aktualisiert werden sollen
      * @throws SQLException
      */
     public void update(ResultSet res) throws SQLException {
+        final int previousLocationId = this.locationId;
+        this.updateFields(res);
+        if (this.locationId != previousLocationId) {
+            this.location.invalidate();
+        }
+    }
+
+    /**
+     * Aktualisiert die Daten des Geräts mit denen aus einem Abfrageergebnis und bereits geladenen Objekten, ohne
+     * weitere Abfragen auszuführen.
+     *
+     * @param res             Das Abfrageergebnis, mit denen die Daten des Gerätes aktualisiert werden sollen
+     * @param location        Der Standort des Geräts
+     * @param programs        Die Programme des Geräts
+     * @param validUserGroups Die Benutzergruppen, die das Gerät verwenden dürfen
+     */
+    void update(ResultSet res, Location location, List<Program> programs, List<UserGroup> validUserGroups)
+            throws SQLException {
+        this.lastUpdateTime = LocalDateTime.now();
+        this.updateFields(res);
+        this.location.set(location);
+        this.programs.set(new ArrayList<>(programs));
+        this.validUserGroups.set(new ArrayList<>(validUserGroups));
+    }
+
+    private void updateFields(ResultSet res) throws SQLException {
         this.name = res.getString("name");
         this.position = res.getInt("position");
+        this.locationId = res.getInt("location_id");
         this.fhemName = res.getString("fhem_name");
         this.fhemSwitchName = res.getString("fhem_switch_name");
         this.fhemPowerName = res.getString("fhem_power_name");
         this.autoEndPowerThreashold = res.getFloat("auto_end_power_threashold");
         this.autoEndWaitTime = Duration.ofSeconds(res.getInt("auto_end_wait_time"));
         this.enabled = res.getBoolean("enabled");
-        this.location = this.dataManager.getLocation(res.getInt("location_id"));
+    }
 
-        this.updatePrograms();
-        this.updateValidGroups();
+    /**
+     * Schreibt das Gerät in eine Momentaufnahme für den Warmstart.
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(this.id);
+        WarmStartSnapshot.writeString(out, this.name);
+        out.writeInt(this.position);
+        out.writeInt(this.locationId);
+        WarmStartSnapshot.writeString(out, this.fhemName);
+        WarmStartSnapshot.writeString(out, this.fhemSwitchName);
+        WarmStartSnapshot.writeString(out, this.fhemPowerName);
+        out.writeFloat(this.autoEndPowerThreashold);
+        out.writeLong(this.autoEndWaitTime.getSeconds());
+        out.writeBoolean(this.enabled);
+        WarmStartSnapshot.writeRelation(out, this.programs, Program::getId);
+        WarmStartSnapshot.writeRelation(out, this.validUserGroups, UserGroup::getId);
     }
 
-    private void updatePrograms() throws SQLException {
-        ResultSet res = this.dataManager.getConnection()
-                .prepareCall("SELECT program_id FROM device_program_rel WHERE device_id=" + this.id).executeQuery();
-        this.programs.clear();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                this.programs.add(this.dataManager.getProgramById(res.getInt("program_id")));
-            }
-        }
+    int getLocationId() {
+        return this.locationId;
     }
 
-    private void updateValidGroups() throws SQLException {
-        ResultSet res = this.dataManager.getConnection()
-                .prepareCall("SELECT group_id FROM devices_valid_user_groups WHERE device_id=" + this.id)
-                .executeQuery();
-        this.validUserGroups.clear();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                this.validUserGroups.add(this.dataManager.getUserGroupById(res.getInt("group_id")));
-            }
-        }
+    private Location loadLocation() throws SQLException {
+        return this.dataManager.getLocation(this.locationId);
+    }
+
+    private List<Program> loadPrograms() throws SQLException {
+        final List<Integer> ids = this.dataManager.getQueryExecutor()
+                .query("SELECT program_id FROM device_program_rel WHERE device_id=?", res -> res.getInt("program_id"),
+                        this.id);
+        return new ArrayList<>(this.dataManager.getProgramsById(ids));
+    }
+
+    private List<UserGroup> loadValidGroups() throws SQLException {
+        final List<Integer> ids = this.dataManager.getQueryExecutor()
+                .query("SELECT group_id FROM devices_valid_user_groups WHERE device_id=?",
+                        res -> res.getInt("group_id"), this.id);
+        return new ArrayList<>(this.dataManager.getUserGroupsById(ids));
+    }
+
+    /**
+     * Markiert die Daten des Geräts als veraltet. Der nächste Aufruf von {@link #update()} liest sie erneut.
+     */
+    void invalidate() {
+        this.lastUpdateTime = null;
     }
 
     public int getId() {
@@ -418,11 +422,11 @@ public class Device {
     }
 
     public List<Program> getPrograms() {
-        return this.programs;
+        return this.programs.get();
     }
 
     public List<UserGroup> getValidUserGroups() {
-        return this.validUserGroups;
+        return this.validUserGroups.get();
     }
 
     /**
@@ -432,7 +436,7 @@ public class Device {
      */
     public List<Program> getPrograms(User user) {
         List<Program> res = new Vector<>();
-        for (Program p : this.programs) {
+        for (Program p : this.programs.get()) {
             if (p.getValidUserGroups().contains(user.getGroup())) {
                 res.add(p);
             }
@@ -445,7 +449,16 @@ public class Device {
     }
 
     public Location getLocation() {
-        return this.location;
+        return this.location.get();
+    }
+
+    /**
+     * Gibt den Standort zurück, sofern er schon einmal geladen wurde, ohne dafür die Datenbank zu fragen.
+     *
+     * @return Der Standort, oder null, wenn er noch nicht geladen wurde
+     */
+    Location getKnownLocation() {
+        return this.location.peek();
     }
 
     public Execution getCurrentExecution() {
@@ -1,9 +1,14 @@
 package org.kabieror.elwasys.common;
 
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.sql.*;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
 
 public class Execution {
 
@@ -52,7 +57,17 @@ public class Execution {
      */
     private boolean deleted = false;
 
-    private LocalDateTime lastUpdateTime;
+    private volatile LocalDateTime lastUpdateTime;
+
+    /**
+     * Zeichnet eine Ausführung ohne Datenbank auf, oder null, wenn sie nicht aufgezeichnet wird
+     */
+    private final OfflineJournal journal;
+
+    /**
+     * Kennzeichnet eine Ausführung ohne Datenbank im Journal
+     */
+    private final UUID offlineId;
 
     /**
      * Erstellt eine neue Ausführung
@@ -61,6 +76,8 @@ public class Execution {
      */
     public Execution(DataManager dataManager, Device d, Program p, User u) throws SQLException {
         this.dataManager = dataManager;
+        this.journal = null;
+        this.offlineId = null;
 
         this.device = d;
         this.program = p;
@@ -68,21 +85,9 @@ public class Execution {
 
         this.finished = false;
 
-        final PreparedStatement s = dataManager.getConnection()
-                .prepareStatement("INSERT INTO executions (device_id, program_id, user_id) VALUES (?, ?, ?)",
-                        Statement.RETURN_GENERATED_KEYS);
-        s.setInt(1, d.getId());
-        s.setInt(2, p.getId());
-        s.setInt(3, u.getId());
-
-        s.executeUpdate();
-
-        final ResultSet res = s.getGeneratedKeys();
-        if (res.next()) {
-            this.id = res.getInt(1);
-        } else {
-            throw new SQLException("No ID received by database.");
-        }
+        this.id = this.dataManager.getQueryExecutor()
+                .insert("INSERT INTO executions (device_id, program_id, user_id) VALUES (?, ?, ?)", d.getId(),
+                        p.getId(), u.getId());
     }
 
     /**
@@ -93,6 +98,8 @@ public class Execution {
      */
     public Execution(DataManager dataManager, ResultSet res, Device d, Program p, User u) throws SQLException {
         this.dataManager = dataManager;
+        this.journal = null;
+        this.offlineId = null;
 
         this.id = res.getInt("id");
         this.device = d;
@@ -102,15 +109,36 @@ public class Execution {
         this.update(res);
     }
 
+    /**
+     * Erstellt eine Ausführung aus bereits gelesenen Werten.
+     */
+    Execution(DataManager dataManager, int id, Device d, Program p, User u, Timestamp start, Timestamp stop,
+              boolean finished) throws SQLException {
+        this.dataManager = dataManager;
+        this.journal = null;
+        this.offlineId = null;
+
+        this.id = id;
+        this.device = d;
+        this.program = p;
+        this.user = u;
+
+        this.update(start, stop, finished);
+    }
+
     /**
      * Erstellt eine Ausführung ohne Auswirkung auf die Datenbank
+     *
+     * @param journal Zeichnet Start, Ende und Bezahlung der Ausführung auf, oder null
      */
-    private Execution(Device d, Program p, User u) {
+    private Execution(Device d, Program p, User u, OfflineJournal journal) {
         this.dataManager = null;
         this.id = -1;
         this.device = d;
         this.program = p;
         this.user = u;
+        this.journal = journal;
+        this.offlineId = UUID.randomUUID();
     }
 
     /**
@@ -123,7 +151,21 @@ public class Execution {
      * @return Die erstelle Programmausführung
      */
     public static Execution getOfflineExecution(Device d, Program p, User u) {
-        return new Execution(d, p, u);
+        return new Execution(d, p, u, null);
+    }
+
+    /**
+     * Gibt eine Programmausführung zurück, die sich erst dann in der Datenbank spiegelt, wenn das Journal nachgetragen
+     * wird. Bis dahin werden Start, Ende und Bezahlung im Journal aufgezeichnet.
+     *
+     * @param d       Das Gerät der Ausführung
+     * @param p       Das Programm der Ausführung
+     * @param u       Der ausführende Benutzer
+     * @param journal Das Journal, in dem die Ausführung aufgezeichnet wird
+     * @return Die erstelle Programmausführung
+     */
+    public static Execution getOfflineExecution(Device d, Program p, User u, OfflineJournal journal) {
+        return new Execution(d, p, u, journal);
     }
 
     /**
@@ -133,9 +175,16 @@ public class Execution {
      * @throws SQLException
      */
     public void update(ResultSet res) throws SQLException {
+        this.update(res.getTimestamp("start"), res.getTimestamp("stop"), res.getBoolean("finished"));
+    }
+
+    /**
+     * Aktualisiert die Daten der Ausführung mit bereits gelesenen Werten
+     *
+     * @throws SQLException Wenn die Ausführung gelöscht wurde
+     */
+    void update(Timestamp startTS, Timestamp stopTS, boolean finished) throws SQLException {
         this.assertNotDeleted();
-        final Timestamp startTS = res.getTimestamp("start");
-        final Timestamp stopTS = res.getTimestamp("stop");
 
         if (startTS != null) {
             this.startDate = startTS.toLocalDateTime();
@@ -144,7 +193,7 @@ public class Execution {
             this.endDate = stopTS.toLocalDateTime();
         }
 
-        this.finished = res.getBoolean("finished");
+        this.finished = finished;
     }
 
     /**
@@ -153,17 +202,27 @@ public class Execution {
     public void update() throws SQLException {
         // Only update after some time again
         if (this.lastUpdateTime != null &&
-                Duration.between(this.lastUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(Execution.class)).isNegative()) {
             return;
         }
+        this.reload();
+    }
+
+    /**
+     * Liest die Ausführung sofort neu aus der Datenbank
+     */
+    void reload() throws SQLException {
         this.lastUpdateTime = LocalDateTime.now();
 
-        final ResultSet res =
-                this.dataManager.getConnection().prepareCall("SELECT * FROM executions WHERE id=" + this.id)
-                        .executeQuery();
-        res.next();
-        this.update(res);
+        final Boolean found = this.dataManager.getQueryExecutor()
+                .queryFirst("SELECT * FROM executions WHERE id=?", res -> {
+                    this.update(res);
+                    return true;
+                }, this.id);
+        if (found == null) {
+            throw new SQLException("The execution " + this.id + " does not exist in the database.");
+        }
     }
 
     /**
@@ -175,6 +234,13 @@ public class Execution {
         return !this.finished && this.startDate != null;
     }
 
+    /**
+     * Gibt an, ob die Ausführung abgeschlossen ist. Noch nicht gestartete Ausführungen gelten als nicht abgeschlossen.
+     */
+    boolean isFinished() {
+        return this.finished;
+    }
+
     /**
      * Beendet die Ausführung
      *
@@ -186,15 +252,22 @@ public class Execution {
         this.endDate = LocalDateTime.now();
         if (this.id >= 0) {
             try {
-                final PreparedStatement s = this.dataManager.getConnection()
-                        .prepareStatement("UPDATE executions SET stop=?, finished=TRUE WHERE id=" + this.id);
-                s.setTimestamp(1, Timestamp.valueOf(this.endDate));
-                s.execute();
+                this.dataManager.getQueryExecutor().update("UPDATE executions SET stop=?, finished=TRUE WHERE id=?",
+                        Timestamp.valueOf(this.endDate), this.id);
             } catch (final SQLException e) {
                 this.finished = false;
                 this.endDate = null;
                 throw e;
             }
+            this.dataManager.getRunningExecutionRegistry().ended(this);
+        } else if (this.journal != null) {
+            try {
+                this.journal.executionStopped(this);
+            } catch (final IOException e) {
+                this.finished = false;
+                this.endDate = null;
+                throw new SQLException("Could not record the end of an offline execution.", e);
+            }
         }
     }
 
@@ -209,18 +282,32 @@ public class Execution {
         if (this.startDate != null) {
             return;
         }
-        this.startDate = LocalDateTime.now();
+        // Auf die Genauigkeit der Datenbank kürzen, damit der Startzeitpunkt als Fortsetzungspunkt taugt
+        this.startDate = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
         if (this.id >= 0) {
-            try {
-                final PreparedStatement s =
-                        this.dataManager.getConnection().prepareStatement("UPDATE executions SET start=? WHERE id=?");
-                s.setTimestamp(1, Timestamp.valueOf(this.startDate));
-                s.setInt(2, this.id);
-                s.execute();
-            } catch (final SQLException e) {
+            // Start und Reservierung gemeinsam schreiben, damit keine Ausführung ohne Reservierung läuft. Den
+            // höchstmöglichen Preis reservieren. Die Datenbank gibt die Reservierung frei, sobald die Ausführung
+            // abgeschlossen ist.
+            try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+                work.update("UPDATE executions SET start=? WHERE id=?", Timestamp.valueOf(this.startDate), this.id);
+                final BigDecimal hold = this.program.getPrice(this.program.getMaxDuration(), this.user);
+                if (hold.signum() > 0) {
+                    work.update("INSERT INTO credit_holds (execution_id, user_id, amount) VALUES (?, ?, ?) " +
+                            "ON CONFLICT (execution_id) DO NOTHING", this.id, this.user.getId(), hold);
+                }
+                work.commit();
+            } catch (final SQLException | RuntimeException e) {
                 this.startDate = null;
                 throw e;
             }
+            this.dataManager.getRunningExecutionRegistry().started(this);
+        } else if (this.journal != null) {
+            try {
+                this.journal.executionStarted(this);
+            } catch (final IOException e) {
+                this.startDate = null;
+                throw new SQLException("Could not record the start of an offline execution.", e);
+            }
         }
     }
 
@@ -234,16 +321,19 @@ public class Execution {
         this.endDate = null;
         this.finished = false;
         if (this.id >= 0) {
-            final PreparedStatement s = this.dataManager.getConnection()
-                    .prepareStatement("UPDATE executions SET start=?, stop=?, finished=? WHERE id=?");
-            s.setTimestamp(1, null);
-            s.setTimestamp(2, null);
-            s.setBoolean(3, true);
-            s.setInt(4, this.id);
-            s.execute();
+            this.dataManager.getQueryExecutor()
+                    .update("UPDATE executions SET start=NULL, stop=NULL, finished=? WHERE id=?", true, this.id);
+            this.dataManager.getRunningExecutionRegistry().ended(this);
         }
     }
 
+    /**
+     * Markiert die Daten der Ausführung als veraltet
+     */
+    void invalidate() {
+        this.lastUpdateTime = null;
+    }
+
     /**
      * Gibt die ID der Ausführung zurück
      *
@@ -365,6 +455,20 @@ public class Execution {
         }
     }
 
+    /**
+     * Gibt das Journal zurück, in dem diese Ausführung ohne Datenbank aufgezeichnet wird, oder null
+     */
+    OfflineJournal getJournal() {
+        return this.journal;
+    }
+
+    /**
+     * Gibt die Kennung zurück, unter der diese Ausführung im Journal aufgezeichnet wird
+     */
+    UUID getOfflineId() {
+        return this.offlineId;
+    }
+
     /**
      * Gibt das Gerät zurück, auf dem die Programmausführung läuft
      *
@@ -421,8 +525,9 @@ public class Execution {
      */
     public void delete() throws SQLException {
         if (!this.deleted && this.id >= 0) {
-            this.dataManager.getConnection().prepareCall("DELETE FROM executions WHERE id=" + this.id).execute();
+            this.dataManager.getQueryExecutor().update("DELETE FROM executions WHERE id=?", this.id);
             this.deleted = true;
+            this.dataManager.getRunningExecutionRegistry().ended(this);
         }
     }
 
@@ -0,0 +1,163 @@
+package org.kabieror.elwasys.common;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Beschreibt eine Abfrage über Programmausführungen.
+ * <p>
+ * Alle gesetzten Filter werden mit UND verknüpft. Die Ergebnisse sind stets absteigend nach Startzeitpunkt und ID
+ * sortiert. Mit {@link #after(Execution)} und {@link #limit(int)} lassen sich die Ergebnisse seitenweise abrufen,
+ * wobei jede Seite unabhängig von ihrer Position gleich schnell geladen wird.
+ * <p>
+ * Beispiel:
+ * <pre>
+ * dataManager.getExecutions(new ExecutionQuery().location(l).finished(true).startedBetween(from, to).limit(50));
+ * </pre>
+ *
+ * @author Oliver Kabierschke
+ */
+public class ExecutionQuery {
+
+    private Integer deviceId;
+    private Integer userId;
+    private Integer locationId;
+    private Integer programId;
+    private Boolean finished;
+    private LocalDateTime startedFrom;
+    private LocalDateTime startedUntil;
+    private LocalDateTime afterStart;
+    private int afterId;
+    private int limit = 0;
+
+    /**
+     * Nur Ausführungen auf dem gegebenen Gerät
+     */
+    public ExecutionQuery device(Device device) {
+        this.deviceId = device.getId();
+        return this;
+    }
+
+    /**
+     * Nur Ausführungen des gegebenen Benutzers
+     */
+    public ExecutionQuery user(User user) {
+        this.userId = user.getId();
+        return this;
+    }
+
+    /**
+     * Nur Ausführungen auf Geräten am gegebenen Standort
+     */
+    public ExecutionQuery location(Location location) {
+        this.locationId = location.getId();
+        return this;
+    }
+
+    /**
+     * Nur Ausführungen des gegebenen Programms
+     */
+    public ExecutionQuery program(Program program) {
+        this.programId = program.getId();
+        return this;
+    }
+
+    /**
+     * Nur abgeschlossene bzw. nur nicht abgeschlossene Ausführungen
+     */
+    public ExecutionQuery finished(boolean finished) {
+        this.finished = finished;
+        return this;
+    }
+
+    /**
+     * Nur Ausführungen, die im gegebenen Zeitraum gestartet wurden. Ausführungen ohne Startzeitpunkt werden dabei
+     * nicht berücksichtigt.
+     *
+     * @param from  Der Beginn des Zeitraums (einschließlich) oder null für unbeschränkt
+     * @param until Das Ende des Zeitraums (ausschließlich) oder null für unbeschränkt
+     */
+    public ExecutionQuery startedBetween(LocalDateTime from, LocalDateTime until) {
+        this.startedFrom = from;
+        this.startedUntil = until;
+        return this;
+    }
+
+    /**
+     * Setzt die Abfrage nach der gegebenen Ausführung fort, z.B. nach der letzten Ausführung der vorigen Seite.
+     * Ausführungen ohne Startzeitpunkt können nicht als Fortsetzungspunkt dienen.
+     */
+    public ExecutionQuery after(Execution execution) {
+        if (execution.getStartDate() == null) {
+            throw new IllegalArgumentException("Cannot continue after an execution that has not been started.");
+        }
+        this.afterStart = execution.getStartDate();
+        this.afterId = execution.getId();
+        return this;
+    }
+
+    /**
+     * Begrenzt die Anzahl der Ergebnisse
+     *
+     * @param limit Die maximale Anzahl der Ergebnisse oder 0 für unbegrenzt
+     */
+    public ExecutionQuery limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Erzeugt den auf {@code SELECT * FROM executions} folgenden Teil der Abfrage.
+     *
+     * @param params Nimmt die Werte der Platzhalter in der Reihenfolge ihres Auftretens auf
+     */
+    String toCondition(List<Object> params) {
+        final List<String> conditions = new ArrayList<>();
+        // Nicht gestartete Ausführungen sind nur angelegt und gehören nicht zum Verlauf
+        conditions.add("start IS NOT NULL");
+        if (this.deviceId != null) {
+            conditions.add("device_id=?");
+            params.add(this.deviceId);
+        }
+        if (this.userId != null) {
+            conditions.add("user_id=?");
+            params.add(this.userId);
+        }
+        if (this.locationId != null) {
+            conditions.add("device_id IN (SELECT id FROM devices WHERE location_id=?)");
+            params.add(this.locationId);
+        }
+        if (this.programId != null) {
+            conditions.add("program_id=?");
+            params.add(this.programId);
+        }
+        if (this.finished != null) {
+            conditions.add("finished=?");
+            params.add(this.finished);
+        }
+        if (this.startedFrom != null) {
+            conditions.add("start>=?");
+            params.add(Timestamp.valueOf(this.startedFrom));
+        }
+        if (this.startedUntil != null) {
+            conditions.add("start<?");
+            params.add(Timestamp.valueOf(this.startedUntil));
+        }
+        if (this.afterStart != null) {
+            conditions.add("(start, id) < (?, ?)");
+            params.add(Timestamp.valueOf(this.afterStart));
+            params.add(this.afterId);
+        }
+
+        final StringBuilder sql = new StringBuilder("WHERE ");
+        sql.append(String.join(" AND ", conditions));
+        sql.append(" ORDER BY start DESC, id DESC");
+        if (this.limit > 0) {
+            sql.append(" LIMIT ?");
+            params.add(this.limit);
+        }
+        return sql.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package org.kabieror.elwasys.common;
+
+/**
+ * Wird über Änderungsbenachrichtigungen der Datenbank informiert, nachdem der {@link DataManager} seine
+ * Zwischenspeicher angepasst hat.
+ *
+ * @author Oliver Kabierschke
+ */
+interface IChangeObserver {
+
+    /**
+     * Ein Datensatz wurde geändert.
+     *
+     * @param table   Die Tabelle des geänderten Datensatzes
+     * @param deleted Ob der Datensatz gelöscht wurde
+     * @param id      Die ID des geänderten Datensatzes
+     */
+    void changed(String table, boolean deleted, int id);
+
+    /**
+     * Es könnten Benachrichtigungen verpasst worden sein, z.B. während die Verbindung zur Datenbank unterbrochen war.
+     */
+    void changesLost();
+}
@@ -0,0 +1,22 @@
+package org.kabieror.elwasys.common;
+
+import java.sql.SQLException;
+
+/**
+ * Verarbeitet die abgebildeten Zeilen eines Abfrageergebnisses eine nach der anderen, ohne dass das gesamte Ergebnis
+ * im Speicher gehalten werden muss.
+ *
+ * @param <T> Der Typ der abgebildeten Zeilen
+ * @author Oliver Kabierschke
+ */
+@FunctionalInterface
+public interface IRowHandler<T> {
+
+    /**
+     * Verarbeitet eine abgebildete Zeile.
+     *
+     * @param row Die abgebildete Zeile
+     * @throws SQLException Wenn die Verarbeitung fehlschlägt. Die Abfrage wird dann abgebrochen.
+     */
+    void handle(T row) throws SQLException;
+}
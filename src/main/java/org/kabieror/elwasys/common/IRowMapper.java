@@ -0,0 +1,24 @@
+package org.kabieror.elwasys.common;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Bildet die aktuelle Zeile eines Abfrageergebnisses auf ein Objekt ab.
+ *
+ * @param <T> Der Typ des erzeugten Objekts
+ * @author Oliver Kabierschke
+ */
+@FunctionalInterface
+public interface IRowMapper<T> {
+
+    /**
+     * Erzeugt ein Objekt aus der aktuellen Zeile. Der Mapper darf next() nicht aufrufen und das Abfrageergebnis nicht
+     * über seinen Aufruf hinaus verwenden.
+     *
+     * @param res Das Abfrageergebnis, dessen aktuelle Zeile abgebildet werden soll
+     * @return Das erzeugte Objekt
+     * @throws SQLException Wenn beim Lesen der Zeile ein Fehler auftritt
+     */
+    T map(ResultSet res) throws SQLException;
+}
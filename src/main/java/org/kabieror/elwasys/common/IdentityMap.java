@@ -0,0 +1,426 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Hält zu jeder ID höchstens ein Objekt eines Typs vor, auch wenn mehrere Threads gleichzeitig auf den Datenmanager
+ * zugreifen.
+ * <p>
+ * Lesende Zugriffe auf bereits geladene Objekte kommen ohne Sperre aus. Muss ein Objekt erst aus der Datenbank geladen
+ * werden, so wird nur der Streifen der Sperren belegt, auf den die ID fällt. Threads, die dieselbe ID laden wollen,
+ * warten aufeinander und erhalten dasselbe Objekt, während Objekte mit anderen IDs parallel geladen werden können.
+ * Die Sperren sind wiedereintrittsfähig, sodass ein Ladevorgang selbst wieder Objekte desselben Typs laden darf.
+ * <p>
+ * Bereits geladene Objekte werden beim Zugriff über ihre ID sofort zurückgegeben. Nähert sich ihre Gültigkeitsdauer dem
+ * Ende, so werden sie im Hintergrund neu geladen, während der Aufrufer den bisherigen Stand erhält.
+ * <p>
+ * Ist eine maximale Größe gesetzt, so werden bei deren Überschreitung die am längsten nicht verwendeten Objekte
+ * verdrängt. Angeheftete Objekte, z.B. laufende Ausführungen, bleiben stets erhalten, damit sie nicht von einem zweiten
+ * Objekt mit derselben ID abgelöst werden, während sie noch verwendet werden.
+ *
+ * @param <T> Der Typ der verwalteten Objekte
+ * @author Oliver Kabierschke
+ */
+class IdentityMap<T> {
+
+    /**
+     * Die Anzahl der Sperren, auf die die IDs verteilt werden. Muss eine Zweierpotenz sein.
+     */
+    private static final int STRIPES = 16;
+
+    /**
+     * Der Anteil der Gültigkeitsdauer, nach dem ein Objekt im Hintergrund neu geladen wird
+     */
+    private static final double REFRESH_AHEAD_FACTOR = 0.75;
+
+    /**
+     * Der Anteil der maximalen Größe, der beim Verdrängen zusätzlich frei gemacht wird, damit nicht bei jedem neuen
+     * Objekt verdrängt werden muss
+     */
+    private static final double EVICTION_HEADROOM = 0.1;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ConcurrentHashMap<Integer, Entry<T>> entries = new ConcurrentHashMap<>();
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    /**
+     * Fasst gleichzeitige Lade- und Aktualisierungsvorgänge derselben ID zusammen
+     */
+    private final SingleFlight<Integer, T> flights = new SingleFlight<>();
+
+    /**
+     * Liefert die Gültigkeitsdauer geladener Objekte
+     */
+    private final Supplier<Duration> ttl;
+
+    /**
+     * Lädt ein bereits bekanntes Objekt neu aus der Datenbank
+     */
+    private final IRefresher<T> reloader;
+
+    private final CacheRefresher refresher;
+
+    /**
+     * Die maximale Anzahl abgelegter Objekte oder 0, wenn die Größe nicht beschränkt ist
+     */
+    private final int maximumSize;
+
+    /**
+     * Liefert zu Beginn jeder Verdrängung, welche Objekte angeheftet sind und daher nicht verdrängt werden dürfen
+     */
+    private final Supplier<Predicate<T>> pinned;
+
+    /**
+     * Verhindert, dass mehrere Threads gleichzeitig verdrängen
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param ttl         Liefert die Gültigkeitsdauer geladener Objekte
+     * @param reloader    Lädt ein bereits bekanntes Objekt neu aus der Datenbank
+     * @param refresher   Führt das Neuladen im Hintergrund aus
+     * @param maximumSize Die maximale Anzahl abgelegter Objekte oder 0, wenn die Größe nicht beschränkt ist
+     * @param pinned      Liefert zu Beginn jeder Verdrängung, welche Objekte angeheftet sind, z.B. anhand einer
+     *                    einmal gesammelten Menge von IDs
+     */
+    IdentityMap(Supplier<Duration> ttl, IRefresher<T> reloader, CacheRefresher refresher, int maximumSize,
+                Supplier<Predicate<T>> pinned) {
+        for (int i = 0; i < STRIPES; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+        this.ttl = ttl;
+        this.reloader = reloader;
+        this.refresher = refresher;
+        this.maximumSize = maximumSize;
+        this.pinned = pinned;
+        refresher.register(this);
+    }
+
+    /**
+     * Gibt das Objekt mit der gegebenen ID zurück, ohne es zu laden oder zu aktualisieren.
+     *
+     * @return Das Objekt oder null, wenn es nicht geladen wurde
+     */
+    T get(int id) {
+        final Entry<T> entry = this.entries.get(id);
+        return entry != null ? entry.entity : null;
+    }
+
+    /**
+     * Gibt an, ob das Objekt mit der gegebenen ID bereits geladen wurde.
+     */
+    boolean contains(int id) {
+        return this.entries.containsKey(id);
+    }
+
+    /**
+     * Gibt das Objekt mit der gegebenen ID zurück. Ist es bereits bekannt, so wird es ohne Zugriff auf die Datenbank
+     * zurückgegeben und bei Bedarf im Hintergrund neu geladen. Andernfalls wird es geladen und abgelegt.
+     *
+     * @param id     Die ID des Objekts
+     * @param loader Lädt das Objekt, wenn es noch nicht bekannt ist
+     * @return Das Objekt oder null, wenn es nicht in der Datenbank existiert
+     * @throws SQLException Wenn beim Laden ein Fehler auftritt
+     */
+    T getOrLoad(int id, ILoader<T> loader) throws SQLException {
+        final Entry<T> entry = this.entries.get(id);
+        if (entry != null) {
+            this.hits.increment();
+            entry.accessedAt = System.nanoTime();
+            if (this.isDueForRefresh(entry)) {
+                this.scheduleReload(id, entry);
+            }
+            return entry.entity;
+        }
+        this.misses.increment();
+        return this.flights.execute(id, () -> this.load(id, loader));
+    }
+
+    /**
+     * Gibt das Objekt mit der gegebenen ID zurück. Ist es bereits bekannt, so wird es aktualisiert. Andernfalls wird
+     * es geladen und abgelegt, wobei ein gleichzeitig von einem anderen Thread geladenes Objekt Vorrang hat.
+     * <p>
+     * Fragen mehrere Threads gleichzeitig nach derselben ID, so wird nur einmal geladen bzw. aktualisiert. Alle Threads
+     * erhalten dasselbe Ergebnis oder denselben Fehler.
+     *
+     * @param id        Die ID des Objekts
+     * @param loader    Lädt das Objekt, wenn es noch nicht bekannt ist
+     * @param refresher Aktualisiert ein bereits bekanntes Objekt, z.B. aus einem vorliegenden Abfrageergebnis
+     * @return Das Objekt oder null, wenn es nicht (mehr) in der Datenbank existiert
+     * @throws SQLException Wenn beim Laden oder Aktualisieren ein Fehler auftritt
+     */
+    T getOrLoad(int id, ILoader<T> loader, IRefresher<T> refresher) throws SQLException {
+        return this.flights.execute(id, () -> {
+            final Entry<T> entry = this.entries.get(id);
+            if (entry != null) {
+                this.hits.increment();
+                entry.accessedAt = System.nanoTime();
+                return this.refresh(id, entry, refresher);
+            }
+            this.misses.increment();
+            return this.load(id, loader);
+        });
+    }
+
+    /**
+     * Legt ein neu erstelltes Objekt ab.
+     */
+    void put(int id, T entity) {
+        this.entries.put(id, new Entry<>(entity));
+        this.evictIfNeeded();
+    }
+
+    /**
+     * Entfernt das Objekt mit der gegebenen ID, z.B. weil es aus der Datenbank gelöscht wurde.
+     */
+    void remove(int id) {
+        this.entries.remove(id);
+    }
+
+    /**
+     * Gibt eine Momentaufnahme aller abgelegten Objekte zurück.
+     */
+    Collection<T> values() {
+        final List<T> result = new ArrayList<>();
+        for (final Entry<T> entry : this.entries.values()) {
+            result.add(entry.entity);
+        }
+        return result;
+    }
+
+    /**
+     * Gibt die aktuellen Kennzahlen des Zwischenspeichers zurück.
+     */
+    CacheStatistics getStatistics() {
+        return new CacheStatistics(this.hits.sum(), this.misses.sum(), this.evictions.sum(), this.entries.size(),
+                this.maximumSize);
+    }
+
+    /**
+     * Markiert das Objekt mit der gegebenen ID als veraltet, sodass es beim nächsten Zugriff neu geladen wird.
+     */
+    void invalidate(int id) {
+        final Entry<T> entry = this.entries.get(id);
+        if (entry != null) {
+            entry.invalidate();
+        }
+    }
+
+    /**
+     * Markiert alle abgelegten Objekte als veraltet.
+     */
+    void invalidateAll() {
+        for (final Entry<T> entry : this.entries.values()) {
+            entry.invalidate();
+        }
+    }
+
+    /**
+     * Lädt alle Objekte im Hintergrund neu, die innerhalb ihrer Gültigkeitsdauer verwendet wurden und bald veralten.
+     * Selten verwendete Objekte werden erst beim nächsten Zugriff neu geladen.
+     */
+    void refreshAhead() {
+        final long now = System.nanoTime();
+        final long ttlNanos = this.ttl.get().toNanos();
+        for (final Map.Entry<Integer, Entry<T>> e : this.entries.entrySet()) {
+            final Entry<T> entry = e.getValue();
+            if (now - entry.accessedAt < ttlNanos && this.isDueForRefresh(entry)) {
+                this.scheduleReload(e.getKey(), entry);
+            }
+        }
+    }
+
+    private boolean isDueForRefresh(Entry<T> entry) {
+        if (entry.stale) {
+            return true;
+        }
+        final long refreshAfter = (long) (this.ttl.get().toNanos() * REFRESH_AHEAD_FACTOR);
+        return System.nanoTime() - entry.refreshedAt >= refreshAfter;
+    }
+
+    /**
+     * Lädt ein bekanntes Objekt im Hintergrund neu, sofern dies nicht bereits geschieht.
+     */
+    private void scheduleReload(int id, Entry<T> entry) {
+        if (!entry.reloading.compareAndSet(false, true)) {
+            return;
+        }
+        final boolean submitted = this.refresher.submit(() -> {
+            try {
+                this.flights.execute(id, () -> this.refresh(id, entry, this.reloader));
+            } catch (final SQLException e) {
+                this.logger.warn("Could not refresh cached object " + id + ". Working with old data.", e);
+            } finally {
+                entry.reloading.set(false);
+            }
+        });
+        if (!submitted) {
+            entry.reloading.set(false);
+        }
+    }
+
+    /**
+     * Aktualisiert ein bekanntes Objekt. Wurde es aus der Datenbank gelöscht, so wird es entfernt.
+     *
+     * @return Das Objekt oder null, wenn es gelöscht wurde
+     */
+    private T refresh(int id, Entry<T> entry, IRefresher<T> refresher) throws SQLException {
+        final long startedAt = System.nanoTime();
+        final int invalidations = entry.invalidations.get();
+        try {
+            refresher.refresh(entry.entity);
+        } catch (final NoDataFoundException e) {
+            // Das Objekt wurde aus der Datenbank gelöscht
+            this.entries.remove(id, entry);
+            return null;
+        }
+        entry.refreshedAt = startedAt;
+        // Eine während des Ladens eingetroffene Invalidierung könnte nicht berücksichtigt worden sein
+        if (entry.invalidations.get() == invalidations) {
+            entry.stale = false;
+        }
+        return entry.entity;
+    }
+
+    /**
+     * Lädt ein noch nicht bekanntes Objekt und legt es ab.
+     */
+    private T load(int id, ILoader<T> loader) throws SQLException {
+        final ReentrantLock lock = this.lockFor(id);
+        final T loaded;
+        lock.lock();
+        try {
+            final Entry<T> existing = this.entries.get(id);
+            if (existing != null) {
+                // Ein anderer Thread hat das Objekt in der Zwischenzeit geladen
+                return existing.entity;
+            }
+            try {
+                loaded = loader.load();
+            } catch (final NoDataFoundException e) {
+                return null;
+            }
+            if (loaded == null) {
+                return null;
+            }
+            final Entry<T> previous = this.entries.putIfAbsent(id, new Entry<>(loaded));
+            if (previous != null) {
+                return previous.entity;
+            }
+        } finally {
+            lock.unlock();
+        }
+        this.evictIfNeeded();
+        return loaded;
+    }
+
+    /**
+     * Verdrängt die am längsten nicht verwendeten, nicht angehefteten Objekte, sobald die maximale Größe überschritten
+     * ist. Verdrängt bereits ein anderer Thread, so kehrt die Methode sofort zurück.
+     */
+    private void evictIfNeeded() {
+        if (this.maximumSize <= 0 || this.entries.size() <= this.maximumSize || !this.evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            final int target = this.maximumSize - (int) (this.maximumSize * EVICTION_HEADROOM);
+            final Predicate<T> pinned = this.pinned.get();
+            final List<Map.Entry<Integer, Entry<T>>> candidates = new ArrayList<>();
+            for (final Map.Entry<Integer, Entry<T>> e : this.entries.entrySet()) {
+                if (!pinned.test(e.getValue().entity)) {
+                    candidates.add(e);
+                }
+            }
+            // Die Zeitpunkte vorab festhalten, da sie sich während des Sortierens ändern können
+            final Map<Integer, Long> accessedAt = new HashMap<>();
+            for (final Map.Entry<Integer, Entry<T>> e : candidates) {
+                accessedAt.put(e.getKey(), e.getValue().accessedAt);
+            }
+            candidates.sort(Comparator.comparingLong(e -> accessedAt.get(e.getKey())));
+            for (final Map.Entry<Integer, Entry<T>> e : candidates) {
+                if (this.entries.size() <= target) {
+                    break;
+                }
+                if (this.entries.remove(e.getKey(), e.getValue())) {
+                    this.evictions.increment();
+                }
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    private ReentrantLock lockFor(int id) {
+        // Auch die höherwertigen Bits der ID in die Auswahl des Streifens einbeziehen
+        final int h = id ^ (id >>> 16);
+        return this.locks[h & (STRIPES - 1)];
+    }
+
+    /**
+     * Ein abgelegtes Objekt samt der Zeitpunkte seiner letzten Aktualisierung und seiner letzten Verwendung
+     */
+    private static class Entry<T> {
+        private final T entity;
+        private final AtomicBoolean reloading = new AtomicBoolean(false);
+        private final AtomicInteger invalidations = new AtomicInteger();
+        private volatile boolean stale = false;
+        private volatile long refreshedAt;
+        private volatile long accessedAt;
+
+        private Entry(T entity) {
+            this.entity = entity;
+            this.refreshedAt = System.nanoTime();
+            this.accessedAt = this.refreshedAt;
+        }
+
+        private void invalidate() {
+            this.invalidations.incrementAndGet();
+            this.stale = true;
+        }
+    }
+
+    /**
+     * Lädt ein Objekt aus der Datenbank.
+     */
+    @FunctionalInterface
+    interface ILoader<T> {
+        /**
+         * @return Das geladene Objekt oder null, wenn es nicht existiert
+         */
+        T load() throws SQLException, NoDataFoundException;
+    }
+
+    /**
+     * Aktualisiert ein bereits geladenes Objekt.
+     */
+    @FunctionalInterface
+    interface IRefresher<T> {
+        /**
+         * @throws NoDataFoundException Wenn das Objekt aus der Datenbank gelöscht wurde
+         */
+        void refresh(T entity) throws SQLException, NoDataFoundException;
+    }
+}
@@ -0,0 +1,140 @@
+package org.kabieror.elwasys.common;
+
+import java.sql.SQLException;
+
+/**
+ * Hält eine Beziehung oder einen abgeleiteten Wert eines Objekts, der erst beim ersten Zugriff aus der Datenbank
+ * geladen wird.
+ * <p>
+ * Wer nur die einfachen Spalten eines Objekts liest, verursacht so keine weiteren Abfragen. Lädt das besitzende
+ * Objekt sich im Hintergrund neu, so wird ein bereits geladener Wert mit {@link #refresh()} gleich mitgeladen und
+ * ausgetauscht, damit spätere Zugriffe nicht auf die Datenbank warten. Schlägt das Laden fehl, so erhält der Aufrufer
+ * den Fehler. Einen Platzhalter für einen nie geladenen Wert gibt es nicht, sodass z.B. Preise, Guthaben oder der
+ * Abgleich von Relationen nie mit einem leeren oder fehlenden Wert gerechnet werden.
+ *
+ * @param <T> Der Typ des Werts
+ * @author Oliver Kabierschke
+ */
+class Lazy<T> {
+
+    private final ILoader<T> loader;
+
+    private volatile T value;
+
+    private volatile boolean loaded = false;
+
+    /**
+     * Ob der Wert jemals geladen oder gesetzt wurde, auch wenn er inzwischen als veraltet markiert ist
+     */
+    private volatile boolean used = false;
+
+    /**
+     * Wird bei jeder Invalidierung und jedem gesetzten Wert erhöht, damit ein währenddessen geladener Wert nicht als
+     * aktuell gilt
+     */
+    private volatile int version = 0;
+
+    /**
+     * @param loader Lädt den Wert aus der Datenbank
+     */
+    Lazy(ILoader<T> loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Gibt den Wert zurück und lädt ihn bei Bedarf. Für Getter, die keine {@link SQLException} deklarieren.
+     *
+     * @return Der aktuelle Wert
+     * @throws UncheckedSQLException Wenn der Wert nicht geladen werden kann
+     */
+    T get() {
+        try {
+            return this.fetch();
+        } catch (final SQLException e) {
+            throw new UncheckedSQLException(e);
+        }
+    }
+
+    /**
+     * Gibt den Wert zurück und lädt ihn bei Bedarf.
+     *
+     * @return Der aktuelle Wert
+     * @throws SQLException Wenn der Wert nicht geladen werden kann
+     */
+    T fetch() throws SQLException {
+        if (this.loaded) {
+            return this.value;
+        }
+        synchronized (this) {
+            if (!this.loaded) {
+                final int startVersion = this.version;
+                this.value = this.loader.load();
+                this.loaded = this.version == startVersion;
+                this.used = true;
+            }
+            return this.value;
+        }
+    }
+
+    /**
+     * Gibt den zuletzt geladenen oder gesetzten Wert zurück, ohne die Datenbank zu fragen, auch wenn er als veraltet
+     * markiert ist.
+     *
+     * @return Der Wert, oder null, wenn er noch nie geladen wurde
+     */
+    T peek() {
+        return this.used ? this.value : null;
+    }
+
+    /**
+     * Setzt den Wert, z.B. wenn er bereits mit anderen Objekten zusammen geladen wurde.
+     */
+    synchronized void set(T value) {
+        this.version++;
+        this.value = value;
+        this.loaded = true;
+        this.used = true;
+    }
+
+    /**
+     * Lädt einen bereits verwendeten Wert sofort neu und tauscht ihn aus. Bis dahin erhalten Aufrufer den bisherigen
+     * Wert. Wurde der Wert noch nie verwendet, so wird er weiterhin erst beim ersten Zugriff geladen.
+     */
+    void refresh() throws SQLException {
+        if (!this.used) {
+            return;
+        }
+        final int startVersion = this.version;
+        final T refreshed = this.loader.load();
+        synchronized (this) {
+            // Eine zwischenzeitliche Invalidierung oder ein gesetzter Wert haben Vorrang
+            if (this.version == startVersion) {
+                this.value = refreshed;
+                this.loaded = true;
+            }
+        }
+    }
+
+    /**
+     * Markiert den Wert als veraltet, sodass er beim nächsten Zugriff neu geladen wird.
+     */
+    void invalidate() {
+        this.version++;
+        this.loaded = false;
+    }
+
+    /**
+     * Gibt an, ob der Wert geladen und nicht als veraltet markiert ist.
+     */
+    boolean isLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * Lädt den Wert aus der Datenbank.
+     */
+    @FunctionalInterface
+    interface ILoader<T> {
+        T load() throws SQLException;
+    }
+}
@@ -1,11 +1,17 @@
 package org.kabieror.elwasys.common;
 
-import java.sql.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
 
 /**
  * Diese Klasse stellt einen Standort dar, an dem Geräte stehen können.
@@ -17,12 +23,12 @@ public class Location {
     private final DataManager dataManager;
 
     private final int id;
-    private final List<UserGroup> validUserGroups;
+    private final Lazy<List<UserGroup>> validUserGroups = new Lazy<>(this::loadValidGroups);
     private String name;
     private String clientUid;
     private LocalDateTime clientLastSeen;
 
-    private LocalDateTime lastUpdateTime;
+    private volatile LocalDateTime lastUpdateTime;
 
     /**
      * Erstellt einen Standort anhand eines Datenbankeintrags
@@ -34,11 +40,42 @@ public class Location {
         this.dataManager = dataManager;
 
         this.id = res.getInt("id");
-        this.validUserGroups = new ArrayList<>();
 
         this.update(res);
     }
 
+    /**
+     * Erstellt einen Standort aus einem Abfrageergebnis und bereits geladenen Benutzergruppen
+     */
+    Location(DataManager dataManager, ResultSet res, List<UserGroup> validUserGroups) throws SQLException {
+        this.dataManager = dataManager;
+
+        this.id = res.getInt("id");
+
+        this.update(res, validUserGroups);
+    }
+
+    /**
+     * Liest einen Standort aus einer Momentaufnahme für den Warmstart
+     *
+     * @param dataManager Der Datenverwalter
+     * @param in          Die Momentaufnahme, an deren aktueller Stelle der Standort steht
+     * @param groups      Die bereits gelesenen Benutzergruppen
+     */
+    Location(DataManager dataManager, DataInputStream in, Map<Integer, UserGroup> groups) throws IOException {
+        this.dataManager = dataManager;
+
+        this.id = in.readInt();
+        this.name = WarmStartSnapshot.readString(in);
+        this.clientUid = WarmStartSnapshot.readString(in);
+        final long lastSeen = in.readLong();
+        if (lastSeen != Long.MIN_VALUE) {
+            this.clientLastSeen = LocalDateTime.ofEpochSecond(lastSeen, 0, ZoneOffset.UTC);
+        }
+        WarmStartSnapshot.readRelation(in, this.validUserGroups, groups);
+        this.lastUpdateTime = LocalDateTime.now();
+    }
+
     /**
      * Erstellt einen neuen Standort anhand eines Eintrags in der Datenbank
      *
@@ -49,7 +86,6 @@ public class Location {
         this.dataManager = dataManager;
 
         this.id = id;
-        this.validUserGroups = new ArrayList<>();
         this.update();
     }
 
@@ -63,19 +99,9 @@ public class Location {
         this.dataManager = dataManager;
 
         this.name = name;
-        this.validUserGroups = new ArrayList<>();
-
-        final PreparedStatement s = this.dataManager.getConnection()
-                .prepareStatement("INSERT INTO locations (name) VALUES (?)", Statement.RETURN_GENERATED_KEYS);
-        s.setString(1, name);
-        s.executeUpdate();
+        this.validUserGroups.set(new ArrayList<>());
 
-        final ResultSet res = s.getGeneratedKeys();
-        if (res.next()) {
-            this.id = res.getInt(1);
-        } else {
-            throw new SQLException("No ID received by database.");
-        }
+        this.id = this.dataManager.getQueryExecutor().insert("INSERT INTO locations (name) VALUES (?)", name);
     }
 
     /**
@@ -84,7 +110,7 @@ public class Location {
      * @throws SQLException
      */
     public void delete() throws SQLException {
-        this.dataManager.getConnection().prepareCall("DELETE FROM locations WHERE id=" + this.id).execute();
+        this.dataManager.getQueryExecutor().update("DELETE FROM locations WHERE id=?", this.id);
     }
 
     /**
@@ -97,20 +123,30 @@ public class Location {
     public void update() throws SQLException, NoDataFoundException {
         // Only update after some time again
         if (this.lastUpdateTime != null &&
-                Duration.between(this.lastUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(Location.class)).isNegative()) {
             return;
         }
+        this.reload();
+    }
+
+    /**
+     * Liest diesen Standort sofort neu aus der Datenbank, auch wenn er gerade erst aktualisiert wurde
+     */
+    void reload() throws SQLException, NoDataFoundException {
         this.lastUpdateTime = LocalDateTime.now();
 
-        final ResultSet res =
-                this.dataManager.getConnection().prepareCall("SELECT * FROM locations WHERE id=" + this.id)
-                        .executeQuery();
-        if (!res.next()) {
+        final Boolean found = this.dataManager.getQueryExecutor()
+                .queryFirst("SELECT * FROM locations WHERE id=?", res -> {
+                    this.update(res);
+                    return true;
+                }, this.id);
+        if (found == null) {
             throw new NoDataFoundException(
                     String.format("Der Standort '%1s' wurde aus der Datenbank gelöscht.", this.name));
         }
-        this.update(res);
+        // Die Benutzergruppen im selben Zug austauschen statt sie beim nächsten Zugriff zu laden
+        this.validUserGroups.refresh();
     }
 
     /**
@@ -121,26 +157,49 @@ public class Location {
      * @throws SQLException
      */
     public void update(ResultSet res) throws SQLException {
+        this.updateFields(res);
+        // Die Benutzergruppen werden von reload() ausgetauscht
+    }
+
+    /**
+     * Aktualisiert diesen Standort anhand eines Abfrageergebnisses und bereits geladener Benutzergruppen, ohne weitere
+     * Abfragen auszuführen.
+     *
+     * @param res             Das Abfrageergebnis, aus dem die Daten zum Aktualisieren bezogen werden sollen
+     * @param validUserGroups Die Benutzergruppen, die diesen Standort verwenden dürfen
+     */
+    void update(ResultSet res, List<UserGroup> validUserGroups) throws SQLException {
+        this.lastUpdateTime = LocalDateTime.now();
+        this.updateFields(res);
+        this.validUserGroups.set(new ArrayList<>(validUserGroups));
+    }
+
+    private void updateFields(ResultSet res) throws SQLException {
         this.name = res.getString("name");
         final Timestamp ts = res.getTimestamp("client_last_seen");
         if (ts != null) {
             this.clientLastSeen = ts.toLocalDateTime();
         }
         this.clientUid = res.getString("client_uid");
+    }
 
-        this.updateValidGroups();
+    /**
+     * Schreibt den Standort in eine Momentaufnahme für den Warmstart.
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(this.id);
+        WarmStartSnapshot.writeString(out, this.name);
+        WarmStartSnapshot.writeString(out, this.clientUid);
+        final LocalDateTime lastSeen = this.clientLastSeen;
+        out.writeLong(lastSeen != null ? lastSeen.toEpochSecond(ZoneOffset.UTC) : Long.MIN_VALUE);
+        WarmStartSnapshot.writeRelation(out, this.validUserGroups, UserGroup::getId);
     }
 
-    private void updateValidGroups() throws SQLException {
-        ResultSet res = this.dataManager.getConnection()
-                .prepareCall("SELECT group_id FROM locations_valid_user_groups WHERE location_id=" + this.id)
-                .executeQuery();
-        this.validUserGroups.clear();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                this.validUserGroups.add(this.dataManager.getUserGroupById(res.getInt("group_id")));
-            }
-        }
+    private List<UserGroup> loadValidGroups() throws SQLException {
+        final List<Integer> ids = this.dataManager.getQueryExecutor()
+                .query("SELECT group_id FROM locations_valid_user_groups WHERE location_id=?",
+                        res -> res.getInt("group_id"), this.id);
+        return new ArrayList<>(this.dataManager.getUserGroupsById(ids));
     }
 
     /**
@@ -149,45 +208,23 @@ public class Location {
      * @param name Der neue Name des Standorts
      */
     public void modify(String name, List<UserGroup> validUserGroups) throws SQLException {
-        final PreparedStatement s =
-                this.dataManager.getConnection().prepareStatement("UPDATE locations SET name=? WHERE id=?");
-        s.setString(1, name);
-        s.setInt(2, this.id);
-        s.execute();
-
-        this.name = name;
-
-        // Benutzergruppen aktualisieren
-        final List<UserGroup> skippedGroups = new Vector<>();
-        final int oldGroupsCount = this.validUserGroups.size();
-        for (final UserGroup g : validUserGroups) {
-            if (this.validUserGroups.contains(g)) {
-                skippedGroups.add(g);
-                continue;
-            }
-            this.dataManager.getConnection().prepareCall(
-                    "INSERT INTO locations_valid_user_groups (location_id, group_id) VALUES (" + this.id + ", " +
-                            g.getId() + ")").execute();
-            this.validUserGroups.add(g);
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            new ColumnChanges().set("name", this.name, name).update(work, "locations", this.id);
+            work.replaceRelation("locations_valid_user_groups", "location_id", this.id, "group_id",
+                    this.validUserGroups.fetch(), validUserGroups, UserGroup::getId);
+            work.commit();
         }
 
-        if (oldGroupsCount > skippedGroups.size()) {
-            // Look for deleted groups
-            for (int i = 0; i < this.validUserGroups.size(); i++) {
-                if (!validUserGroups.contains(this.validUserGroups.get(i))) {
-                    this.dataManager.getConnection().prepareCall(
-                            "DELETE FROM locations_valid_user_groups WHERE location_id=" + this.id + " AND group_id=" +
-                                    this.validUserGroups.get(i).getId()).execute();
-                    this.validUserGroups.remove(i);
-                    i--;
-                }
-            }
-        }
+        this.name = name;
+        this.validUserGroups.set(new ArrayList<>(validUserGroups));
     }
 
     /**
      * Registriert einen Client auf einen Ort. Die Registrierung muss spätestens
      * nach 5 Minuten aktualisiert werden, um gültig zu bleiben.
+     * <p>
+     * Erneuert ein bereits registrierter Client seine Registrierung, so wird nur sein Lebenszeichen verzögert
+     * geschrieben. Ein neuer Client wird sofort eingetragen.
      *
      * @param uid   Die Identifikationsnummer des Clients.
      * @throws LocationOccupiedException Falls der Ort bereits auf einen anderen Client registriert ist.
@@ -200,14 +237,16 @@ public class Location {
 
         final LocalDateTime lastSeen = LocalDateTime.now();
 
-        final PreparedStatement s = this.dataManager.getConnection().prepareStatement(
-                "UPDATE locations SET client_uid=?, client_last_seen=? WHERE id=?");
-        int i = 1;
-        s.setString(i++, uid);
-        s.setTimestamp(i++, Timestamp.valueOf(lastSeen));
-
-        s.setInt(i++, this.id);
-        s.execute();
+        if (uid.equals(this.clientUid)) {
+            // Nur das Lebenszeichen, und nur solange der Client noch eingetragen ist
+            this.dataManager.getWriteBehindQueue()
+                    .enqueue("UPDATE locations SET client_last_seen=? WHERE id=? AND client_uid=?", this.id,
+                            Timestamp.valueOf(lastSeen), this.id, uid);
+        } else {
+            this.dataManager.getQueryExecutor()
+                    .update("UPDATE locations SET client_uid=?, client_last_seen=? WHERE id=?", uid,
+                            Timestamp.valueOf(lastSeen), this.id);
+        }
 
         this.clientUid = uid;
         this.clientLastSeen = lastSeen;
@@ -220,11 +259,7 @@ public class Location {
      * @throws SQLException
      */
     public void releaseLocation() throws SQLException {
-        final PreparedStatement s =
-                this.dataManager.getConnection().prepareStatement("UPDATE locations SET client_uid=? WHERE id=?");
-        s.setString(1, null);
-        s.setInt(2, this.id);
-        s.execute();
+        this.dataManager.getQueryExecutor().update("UPDATE locations SET client_uid=NULL WHERE id=?", this.id);
 
         this.clientUid = null;
     }
@@ -242,6 +277,13 @@ public class Location {
         }
     }
 
+    /**
+     * Markiert diesen Standort als veraltet, sodass er beim nächsten Aufruf von {@link #update()} neu geladen wird
+     */
+    void invalidate() {
+        this.lastUpdateTime = null;
+    }
+
     public int getId() {
         return this.id;
     }
@@ -255,6 +297,6 @@ public class Location {
     }
 
     public List<UserGroup> getValidUserGroups() {
-        return validUserGroups;
+        return this.validUserGroups.get();
     }
 }
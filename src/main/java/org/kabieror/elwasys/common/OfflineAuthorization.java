@@ -0,0 +1,492 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hält eine lokale Momentaufnahme aller Daten, die ein Client an seinem Standort zum Anmelden per Karte braucht, sodass
+ * er Benutzer auch dann noch autorisieren kann, wenn die Datenbank nicht erreichbar ist.
+ * <p>
+ * Die Momentaufnahme enthält die Benutzer aller am Standort zugelassenen Gruppen mit ihren Kartennummern und ihrem
+ * verfügbaren Guthaben, die Gruppen mit ihren Rabatten sowie die zugelassenen Gruppen des Standorts, seiner Geräte und
+ * deren Programme. Sie liegt vollständig im Speicher, Abfragen kommen ohne Datenbank und ohne Sperren aus.
+ * <p>
+ * Beim ersten Mal und nachdem Änderungsbenachrichtigungen verpasst worden sein können, wird die Momentaufnahme
+ * vollständig geladen, danach in regelmäßigen Abständen nur um die seither gemeldeten Benutzer ergänzt. Ändern sich
+ * Gruppen, Geräte, Programme oder Standorte, so wird sie wieder vollständig geladen. Nach jeder Aktualisierung wird sie
+ * in eine Datei geschrieben und von dort beim nächsten Start gelesen, damit ein Client, der während eines Ausfalls der
+ * Datenbank neu startet, weiterhin Benutzer kennt.
+ *
+ * @author Oliver Kabierschke
+ */
+public class OfflineAuthorization implements AutoCloseable {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DataManager dataManager;
+
+    private final int locationId;
+
+    private final File file;
+
+    /**
+     * Der Betrag, um den ein Benutzer sein zuletzt bekanntes Guthaben ohne Datenbank unterschreiten darf
+     */
+    private final BigDecimal creditLimit;
+
+    private final IChangeObserver observer = new Observer();
+
+    private final ScheduledExecutorService refresher;
+
+    /**
+     * Die aktuelle Momentaufnahme. Sie wird nie verändert, sondern bei jeder Aktualisierung ersetzt.
+     */
+    private volatile Snapshot snapshot;
+
+    /**
+     * Ob die Momentaufnahme bei der nächsten Aktualisierung vollständig neu geladen werden muss
+     */
+    private volatile boolean fullRefreshNeeded = true;
+
+    /**
+     * Die Benutzer, die sich seit der letzten Aktualisierung geändert haben
+     */
+    private final Set<Integer> dirtyUsers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Erstellt die Autorisierung für einen Standort. Eine vorhandene Momentaufnahme dieses Standorts wird aus der
+     * Datei gelesen, die erste Aktualisierung beginnt sofort im Hintergrund.
+     *
+     * @param dataManager Der Datenmanager, über den die Momentaufnahme geladen wird
+     * @param config      Die Konfiguration mit Datei, Aktualisierungsabstand und Überziehungsrahmen
+     * @param location    Der Standort des Clients
+     */
+    public OfflineAuthorization(DataManager dataManager, ConfigurationManager config, Location location) {
+        this.dataManager = dataManager;
+        this.locationId = location.getId();
+        this.file = config.getOfflineSnapshotFile();
+        this.creditLimit = config.getOfflineCreditLimit();
+        this.snapshot = this.read();
+
+        dataManager.addChangeObserver(this.observer);
+
+        final Duration interval = config.getOfflineSnapshotRefreshInterval();
+        this.refresher = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("elwasys-offline-snapshot"));
+        this.refresher.scheduleWithFixedDelay(this::refreshQuietly, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gibt den Benutzer mit der gegebenen Kartennummer aus der Momentaufnahme zurück. Der Benutzer ist nicht an die
+     * Datenbank angebunden. Bezahlt er eine Ausführung ohne Datenbank, so wird sein Guthaben in der Momentaufnahme
+     * vermindert.
+     *
+     * @param cardId Die Kartennummer
+     * @return Der Benutzer, oder null, wenn die Karte unbekannt ist
+     */
+    public User getUser(String cardId) {
+        return this.snapshot.usersByCard.get(cardId);
+    }
+
+    /**
+     * Prüft anhand der Momentaufnahme, ob ein Benutzer ein Programm auf einem Gerät starten darf. Dazu muss er
+     * unblockiert sein, seine Gruppe muss am Standort, am Gerät und für das Programm zugelassen sein, und sein Guthaben
+     * muss zusammen mit dem Überziehungsrahmen den Preis des Programms bei maximaler Dauer decken.
+     *
+     * @param user    Der Benutzer
+     * @param device  Das Gerät
+     * @param program Das Programm
+     * @return Wahr, wenn der Benutzer das Programm starten darf
+     */
+    public boolean isAuthorized(User user, Device device, Program program) {
+        final Snapshot s = this.snapshot;
+        final User known = user != null ? s.users.get(user.getId()) : null;
+        if (known == null || known.isBlocked()) {
+            return false;
+        }
+        final int groupId = known.getGroup().getId();
+        if (!s.locationGroups.contains(groupId) ||
+                !s.deviceGroups.getOrDefault(device.getId(), Collections.emptySet()).contains(groupId) ||
+                !s.programGroups.getOrDefault(program.getId(), Collections.emptySet()).contains(groupId)) {
+            return false;
+        }
+        BigDecimal price = program.getPrice(program.getMaxDuration(), known);
+        if (price == null) {
+            price = BigDecimal.ZERO;
+        }
+        return known.getCredit().add(this.creditLimit).compareTo(price) >= 0;
+    }
+
+    /**
+     * Gibt zurück, wann die Momentaufnahme zuletzt aus der Datenbank aktualisiert wurde.
+     *
+     * @return Der Zeitpunkt, oder null, wenn noch keine Momentaufnahme vorliegt
+     */
+    public LocalDateTime getSnapshotTime() {
+        final long time = this.snapshot.time;
+        return time == 0 ? null : LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+    }
+
+    /**
+     * Aktualisiert die Momentaufnahme aus der Datenbank. Sofern möglich werden nur die seit der letzten Aktualisierung
+     * geänderten Benutzer gelesen.
+     *
+     * @throws SQLException Wenn die Datenbank nicht erreichbar ist. Die Momentaufnahme bleibt dann unverändert.
+     */
+    public synchronized void refresh() throws SQLException {
+        final Snapshot next;
+        if (this.fullRefreshNeeded || this.snapshot.time == 0 || !this.dataManager.isChangeListening()) {
+            this.fullRefreshNeeded = false;
+            this.dirtyUsers.clear();
+            try {
+                next = this.loadAll();
+            } catch (final SQLException e) {
+                this.fullRefreshNeeded = true;
+                throw e;
+            }
+        } else {
+            if (this.dirtyUsers.isEmpty()) {
+                return;
+            }
+            final List<Integer> ids = new ArrayList<>();
+            for (final Integer id : this.dirtyUsers) {
+                if (this.dirtyUsers.remove(id)) {
+                    ids.add(id);
+                }
+            }
+            final Snapshot current = this.snapshot;
+            try {
+                next = current.withUsers(ids, this.loadUsers(current.groups, current.locationGroups, ids));
+            } catch (final SQLException e) {
+                this.dirtyUsers.addAll(ids);
+                throw e;
+            }
+        }
+        this.snapshot = next;
+        this.write(next);
+    }
+
+    /**
+     * Beendet die Aktualisierung und schreibt die Momentaufnahme samt der seither ohne Datenbank bezahlten Beträge in
+     * die Datei.
+     */
+    @Override
+    public void close() {
+        this.dataManager.removeChangeObserver(this.observer);
+        this.refresher.shutdown();
+        try {
+            this.refresher.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final Snapshot s = this.snapshot;
+        if (s.time != 0) {
+            this.write(s);
+        }
+    }
+
+    private void refreshQuietly() {
+        try {
+            this.refresh();
+        } catch (final SQLException e) {
+            this.logger.debug("Could not refresh the offline authorization snapshot.", e);
+        } catch (final RuntimeException e) {
+            this.logger.warn("Refreshing the offline authorization snapshot failed.", e);
+        }
+    }
+
+    private Snapshot loadAll() throws SQLException {
+        final QueryExecutor executor = this.dataManager.getQueryExecutor();
+        final Map<Integer, UserGroup> groups = new HashMap<>();
+        for (final UserGroup g : executor.query("SELECT id, name, discount_type, discount_value FROM user_groups",
+                res -> new UserGroup(res.getInt("id"), res.getString("name"),
+                        UserGroup.toDiscountType(res.getString("discount_type")), res.getDouble("discount_value")))) {
+            groups.put(g.getId(), g);
+        }
+        final Set<Integer> locationGroups = new HashSet<>(
+                executor.query("SELECT group_id FROM locations_valid_user_groups WHERE location_id=?",
+                        res -> res.getInt("group_id"), this.locationId));
+        final Map<Integer, Set<Integer>> deviceGroups = this.loadPermissions(
+                "SELECT r.device_id, r.group_id FROM devices_valid_user_groups r " +
+                        "JOIN devices d ON d.id=r.device_id WHERE d.location_id=?");
+        final Map<Integer, Set<Integer>> programGroups = this.loadPermissions(
+                "SELECT r.program_id, r.group_id FROM programs_valid_user_groups r WHERE r.program_id IN " +
+                        "(SELECT dp.program_id FROM device_program_rel dp JOIN devices d ON d.id=dp.device_id " +
+                        "WHERE d.location_id=?)");
+        final Map<Integer, User> users = new HashMap<>();
+        for (final User u : this.loadUsers(groups, locationGroups, null)) {
+            users.put(u.getId(), u);
+        }
+        return new Snapshot(System.currentTimeMillis(), groups, locationGroups, deviceGroups, programGroups, users);
+    }
+
+    private Map<Integer, Set<Integer>> loadPermissions(String sql) throws SQLException {
+        final Map<Integer, Set<Integer>> permissions = new HashMap<>();
+        for (final int[] row : this.dataManager.getQueryExecutor()
+                .query(sql, res -> new int[]{res.getInt(1), res.getInt(2)}, this.locationId)) {
+            permissions.computeIfAbsent(row[0], k -> new HashSet<>()).add(row[1]);
+        }
+        return permissions;
+    }
+
+    /**
+     * Lädt die nicht gelöschten Benutzer der am Standort zugelassenen Gruppen samt ihrem verfügbaren Guthaben.
+     *
+     * @param ids Die IDs der zu ladenden Benutzer, oder null für alle
+     */
+    private List<User> loadUsers(Map<Integer, UserGroup> groups, Set<Integer> locationGroups, Collection<Integer> ids)
+            throws SQLException {
+        final int[] groupIds = locationGroups.stream().mapToInt(Integer::intValue).toArray();
+        final String sql = "SELECT u.id, u.name, u.card_ids, u.group_id, u.blocked, " +
+                "COALESCE(b.balance, 0) - COALESCE(h.amount, 0) AS credit FROM users u " +
+                "LEFT JOIN user_balances b ON b.user_id=u.id " +
+                "LEFT JOIN (SELECT user_id, SUM(amount) AS amount FROM credit_holds GROUP BY user_id) h " +
+                "ON h.user_id=u.id WHERE u.deleted=FALSE AND u.group_id = ANY(?)";
+        final IRowMapper<User> mapper = res -> {
+            final UserGroup group = groups.get(res.getInt("group_id"));
+            if (group == null) {
+                return null;
+            }
+            return new User(res.getInt("id"), res.getString("name"), group, res.getBigDecimal("credit"),
+                    res.getString("card_ids").split("\n"), res.getBoolean("blocked"));
+        };
+        final List<User> users;
+        if (ids == null) {
+            users = this.dataManager.getQueryExecutor().query(sql, mapper, groupIds);
+        } else {
+            users = this.dataManager.getQueryExecutor().query(sql + " AND u.id = ANY(?)", mapper, groupIds,
+                    ids.stream().mapToInt(Integer::intValue).toArray());
+        }
+        users.removeIf(u -> u == null);
+        return users;
+    }
+
+    /**
+     * Liest die Momentaufnahme dieses Standorts aus der Datei.
+     *
+     * @return Die gelesene Momentaufnahme, oder eine leere, wenn keine passende Datei vorhanden ist
+     */
+    private Snapshot read() {
+        if (!this.file.exists()) {
+            return Snapshot.EMPTY;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            if (in.readInt() != FORMAT_VERSION || in.readInt() != this.locationId) {
+                return Snapshot.EMPTY;
+            }
+            final long time = in.readLong();
+            final Map<Integer, UserGroup> groups = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                final int id = in.readInt();
+                groups.put(id, new UserGroup(id, in.readUTF(), DiscountType.valueOf(in.readUTF()), in.readDouble()));
+            }
+            final Set<Integer> locationGroups = readIds(in);
+            final Map<Integer, Set<Integer>> deviceGroups = readPermissions(in);
+            final Map<Integer, Set<Integer>> programGroups = readPermissions(in);
+            final Map<Integer, User> users = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                final int id = in.readInt();
+                final String name = in.readUTF();
+                final UserGroup group = groups.get(in.readInt());
+                final BigDecimal credit = new BigDecimal(in.readUTF());
+                final boolean blocked = in.readBoolean();
+                final String[] cardIds = new String[in.readInt()];
+                for (int c = 0; c < cardIds.length; c++) {
+                    cardIds[c] = in.readUTF();
+                }
+                if (group != null) {
+                    users.put(id, new User(id, name, group, credit, cardIds, blocked));
+                }
+            }
+            return new Snapshot(time, groups, locationGroups, deviceGroups, programGroups, users);
+        } catch (final IOException | IllegalArgumentException e) {
+            this.logger.warn("Could not read the offline authorization snapshot from " + this.file + ".", e);
+            return Snapshot.EMPTY;
+        }
+    }
+
+    /**
+     * Schreibt die Momentaufnahme zunächst in eine temporäre Datei und ersetzt damit die bisherige, sodass nach einem
+     * Absturz stets eine vollständige Datei vorliegt.
+     */
+    private synchronized void write(Snapshot s) {
+        final File tmp = new File(this.file.getPath() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(this.locationId);
+                out.writeLong(s.time);
+                out.writeInt(s.groups.size());
+                for (final UserGroup g : s.groups.values()) {
+                    out.writeInt(g.getId());
+                    out.writeUTF(g.getName() != null ? g.getName() : "");
+                    out.writeUTF(g.getDiscountType().name());
+                    out.writeDouble(g.getDiscountValue());
+                }
+                writeIds(out, s.locationGroups);
+                writePermissions(out, s.deviceGroups);
+                writePermissions(out, s.programGroups);
+                out.writeInt(s.users.size());
+                for (final User u : s.users.values()) {
+                    out.writeInt(u.getId());
+                    out.writeUTF(u.getName() != null ? u.getName() : "");
+                    out.writeInt(u.getGroup().getId());
+                    out.writeUTF(u.getCredit().toPlainString());
+                    out.writeBoolean(u.isBlocked());
+                    out.writeInt(u.getCardIds().length);
+                    for (final String cardId : u.getCardIds()) {
+                        out.writeUTF(cardId);
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            this.logger.warn("Could not write the offline authorization snapshot to " + this.file + ".", e);
+        }
+    }
+
+    private static Set<Integer> readIds(DataInputStream in) throws IOException {
+        final Set<Integer> ids = new HashSet<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            ids.add(in.readInt());
+        }
+        return ids;
+    }
+
+    private static Map<Integer, Set<Integer>> readPermissions(DataInputStream in) throws IOException {
+        final Map<Integer, Set<Integer>> permissions = new HashMap<>();
+        for (int i = in.readInt(); i > 0; i--) {
+            permissions.put(in.readInt(), readIds(in));
+        }
+        return permissions;
+    }
+
+    private static void writeIds(DataOutputStream out, Set<Integer> ids) throws IOException {
+        out.writeInt(ids.size());
+        for (final int id : ids) {
+            out.writeInt(id);
+        }
+    }
+
+    private static void writePermissions(DataOutputStream out, Map<Integer, Set<Integer>> permissions)
+            throws IOException {
+        out.writeInt(permissions.size());
+        for (final Map.Entry<Integer, Set<Integer>> entry : permissions.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeIds(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Merkt geänderte Benutzer für die nächste Aktualisierung vor. Änderungen an Gruppen, Geräten und Programmen können
+     * die Zulassungen betreffen und erzwingen daher ein vollständiges Laden.
+     * <p>
+     * Meldungen zu Standorten werden übergangen: Die Zeilen der Standorte enthalten nichts, was in die Zulassungen
+     * eingeht, und werden von jedem Client regelmäßig mit seinem Lebenszeichen geändert. Geänderte Zulassungen eines
+     * Standorts meldet die Datenbank zusätzlich als Änderung der betroffenen Gruppe.
+     */
+    private class Observer implements IChangeObserver {
+        @Override
+        public void changed(String table, boolean deleted, int id) {
+            switch (table) {
+                case "users":
+                    OfflineAuthorization.this.dirtyUsers.add(id);
+                    break;
+                case "user_groups":
+                case "devices":
+                case "programs":
+                    OfflineAuthorization.this.fullRefreshNeeded = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void changesLost() {
+            OfflineAuthorization.this.fullRefreshNeeded = true;
+        }
+    }
+
+    /**
+     * Ein unveränderlicher Stand der Daten zur Autorisierung
+     */
+    private static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(0, Collections.emptyMap(), Collections.emptySet(),
+                Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+
+        /**
+         * Der Zeitpunkt des Ladens aus der Datenbank in Millisekunden, oder 0, wenn noch nichts geladen wurde
+         */
+        private final long time;
+        private final Map<Integer, UserGroup> groups;
+        private final Set<Integer> locationGroups;
+        private final Map<Integer, Set<Integer>> deviceGroups;
+        private final Map<Integer, Set<Integer>> programGroups;
+        private final Map<Integer, User> users;
+        private final Map<String, User> usersByCard = new HashMap<>();
+
+        private Snapshot(long time, Map<Integer, UserGroup> groups, Set<Integer> locationGroups,
+                         Map<Integer, Set<Integer>> deviceGroups, Map<Integer, Set<Integer>> programGroups,
+                         Map<Integer, User> users) {
+            this.time = time;
+            this.groups = groups;
+            this.locationGroups = locationGroups;
+            this.deviceGroups = deviceGroups;
+            this.programGroups = programGroups;
+            this.users = users;
+            for (final User u : users.values()) {
+                for (final String cardId : u.getCardIds()) {
+                    if (!cardId.isEmpty()) {
+                        this.usersByCard.put(cardId, u);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gibt eine Kopie zurück, in der die gegebenen Benutzer durch ihren neu geladenen Stand ersetzt sind. Benutzer,
+         * die nicht mehr geladen wurden, sind gelöscht oder nicht mehr zugelassen und entfallen.
+         */
+        private Snapshot withUsers(Collection<Integer> ids, List<User> loaded) {
+            final Map<Integer, User> users = new HashMap<>(this.users);
+            users.keySet().removeAll(ids);
+            for (final User u : loaded) {
+                users.put(u.getId(), u);
+            }
+            return new Snapshot(System.currentTimeMillis(), this.groups, this.locationGroups, this.deviceGroups,
+                    this.programGroups, users);
+        }
+    }
+}
@@ -0,0 +1,554 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Ein lokales Journal, das festhält, was ein Client ohne Verbindung zur Datenbank getan hat, und es nachträgt, sobald
+ * die Datenbank wieder erreichbar ist.
+ * <p>
+ * Aufgezeichnet werden Start und Ende von Ausführungen, die mit
+ * {@link Execution#getOfflineExecution(Device, Program, User, OfflineJournal)} erstellt wurden, sowie deren Bezahlung.
+ * Die Einträge werden nur angehängt. Jeder Eintrag trägt eine Prüfsumme, sodass ein beim Absturz nur teilweise
+ * geschriebener Eintrag beim Öffnen erkannt und verworfen wird. Die Datei wird in den Speicher abgebildet. Ein Eintrag
+ * gilt erst als aufgezeichnet, wenn er auf den Datenträger geschrieben wurde. Gleichzeitig angehängte Einträge werden
+ * dabei gemeinsam geschrieben.
+ * <p>
+ * Mit {@link #replayWhenConnected(DataManager, Duration)} trägt das Journal sich selbst nach, sobald die Verbindung
+ * für Änderungsbenachrichtigungen wieder aufgebaut ist, und versucht es zusätzlich in regelmäßigen Abständen, z.B. wenn
+ * keine Benachrichtigungen verwendet werden. Beim Nachtragen wird jeder Eintrag in einer eigenen Transaktion zusammen
+ * mit seiner ID in {@code offline_journal_applied} vermerkt. Bereits nachgetragene Einträge werden übersprungen, sodass
+ * das Nachtragen nach einem Abbruch gefahrlos wiederholt werden kann.
+ *
+ * @author Oliver Kabierschke
+ */
+public class OfflineJournal implements AutoCloseable {
+
+    /**
+     * Länge und Prüfsumme vor jedem Eintrag
+     */
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte EXECUTION_STARTED = 1;
+    private static final byte EXECUTION_STOPPED = 2;
+    private static final byte PAYMENT = 3;
+
+    /**
+     * Die Klassen der SQL-Zustände für fehlerhafte Daten und verletzte Integritätsbedingungen
+     */
+    private static final String DATA_EXCEPTION_CLASS = "22";
+    private static final String INTEGRITY_VIOLATION_CLASS = "23";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Die Position, an der der nächste Eintrag geschrieben wird
+     */
+    private int writePosition;
+
+    /**
+     * Die Position, bis zu der alle Einträge auf den Datenträger geschrieben sind
+     */
+    private int syncedPosition;
+
+    /**
+     * Wird gehalten, während Einträge auf den Datenträger geschrieben werden
+     */
+    private final Object syncLock = new Object();
+
+    /**
+     * Verhindert, dass dieselben Einträge gleichzeitig mehrfach nachgetragen werden
+     */
+    private final Object replayLock = new Object();
+
+    /**
+     * Stößt das Nachtragen an, sobald die Verbindung für Änderungsbenachrichtigungen wieder aufgebaut ist
+     */
+    private final IChangeObserver reconnectObserver = new ReconnectObserver();
+
+    /**
+     * Die Datenbank, in die selbstständig nachgetragen wird, oder null
+     */
+    private DataManager replayTarget;
+
+    /**
+     * Trägt im Hintergrund nach, oder null, solange nicht selbstständig nachgetragen wird
+     */
+    private ScheduledExecutorService replayer;
+
+    /**
+     * Öffnet das Journal an dem in der Konfiguration angegebenen Ort.
+     */
+    public OfflineJournal(ConfigurationManager config) throws IOException {
+        this(config.getOfflineJournalFile(), config.getOfflineJournalSize());
+    }
+
+    /**
+     * Öffnet ein Journal oder legt es an.
+     *
+     * @param file     Die Datei des Journals
+     * @param capacity Die Größe der Datei in Bytes und damit die Menge an Einträgen, die höchstens vorgehalten werden
+     */
+    public OfflineJournal(File file, int capacity) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(capacity, this.channel.size()));
+
+        // Das Ende des Journals suchen. Ein unvollständiger Eintrag am Ende wird verworfen.
+        int position = 0;
+        while (this.readRecord(position) != null) {
+            position += HEADER_SIZE + this.buffer.getInt(position);
+        }
+        if (this.readRecord(position) == null && position + 4 <= this.buffer.capacity() &&
+                this.buffer.getInt(position) != 0) {
+            this.logger.warn("Discarding an incomplete entry at the end of the offline journal " + file + ".");
+        }
+        this.writePosition = position;
+        this.markEnd();
+        this.buffer.force();
+        this.syncedPosition = position;
+    }
+
+    /**
+     * Gibt an, ob das Journal keine noch nachzutragenden Einträge enthält.
+     */
+    public synchronized boolean isEmpty() {
+        return this.writePosition == 0;
+    }
+
+    /**
+     * Zeichnet den Start einer Ausführung ohne Datenbank auf.
+     */
+    void executionStarted(Execution e) throws IOException {
+        final LocalDateTime start = e.getStartDate();
+        this.append(EXECUTION_STARTED, e.getOfflineId(), b -> {
+            b.putInt(e.getDevice().getId());
+            b.putInt(e.getProgram().getId());
+            b.putInt(e.getUser().getId());
+            putDateTime(b, start);
+        });
+    }
+
+    /**
+     * Zeichnet das Ende einer Ausführung ohne Datenbank auf.
+     */
+    void executionStopped(Execution e) throws IOException {
+        final LocalDateTime stop = e.getEndDate();
+        this.append(EXECUTION_STOPPED, e.getOfflineId(), b -> putDateTime(b, stop));
+    }
+
+    /**
+     * Zeichnet die Bezahlung einer Ausführung ohne Datenbank auf.
+     */
+    void payment(User user, Execution e, BigDecimal amount, String description) throws IOException {
+        this.append(PAYMENT, e.getOfflineId(), b -> {
+            b.putInt(user.getId());
+            putString(b, amount.toPlainString());
+            // Die Länge eines Eintrags ist begrenzt
+            putString(b, description.length() > 500 ? description.substring(0, 500) : description);
+        });
+    }
+
+    /**
+     * Trägt alle aufgezeichneten Einträge in die Datenbank nach und leert das Journal danach. Bricht das Nachtragen
+     * ab, z.B. weil die Verbindung verloren geht, so bleiben alle Einträge erhalten und werden beim nächsten Versuch
+     * erneut geprüft.
+     * <p>
+     * Ein Eintrag, der sich niemals nachtragen lässt, z.B. weil sein Gerät inzwischen gelöscht wurde, hält die übrigen
+     * nicht auf. Er wird samt Fehler in {@code offline_journal_applied} vermerkt und übersprungen.
+     *
+     * @return Die Anzahl der nachgetragenen Einträge, ohne die bereits zuvor nachgetragenen und die übersprungenen
+     * @throws SQLException Wenn ein Eintrag vorübergehend nicht nachgetragen werden kann
+     */
+    public int replay(DataManager dataManager) throws SQLException {
+        return this.replay(entry -> this.applyOrSkip(dataManager, entry));
+    }
+
+    /**
+     * Übergibt alle aufgezeichneten Einträge in der Reihenfolge ihrer Aufzeichnung und leert das Journal danach bis
+     * zum letzten übergebenen Eintrag.
+     *
+     * @param applier Trägt einen Eintrag nach
+     * @return Die Anzahl der nachgetragenen Einträge
+     * @throws SQLException Wenn ein Eintrag nicht nachgetragen werden kann. Das Journal bleibt dann unverändert.
+     */
+    int replay(IEntryApplier applier) throws SQLException {
+        synchronized (this.replayLock) {
+            return this.replayLocked(applier);
+        }
+    }
+
+    /**
+     * Trägt das Journal von nun an selbstständig in die gegebene Datenbank nach: sofort, sobald die Verbindung für
+     * Änderungsbenachrichtigungen (wieder) aufgebaut ist, und ansonsten in regelmäßigen Abständen, solange Einträge
+     * vorliegen. Fehlschläge werden beim nächsten Anlass wiederholt.
+     *
+     * @param dataManager Die Datenbank
+     * @param interval    Der Abstand zwischen zwei Versuchen
+     */
+    public synchronized void replayWhenConnected(DataManager dataManager, Duration interval) {
+        if (this.replayer != null) {
+            throw new IllegalStateException("The offline journal is already replayed automatically.");
+        }
+        this.replayTarget = dataManager;
+        this.replayer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("elwasys-journal-replay"));
+        dataManager.addChangeObserver(this.reconnectObserver);
+        this.replayer.scheduleWithFixedDelay(this::replayQuietly, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Beendet das selbstständige Nachtragen, schreibt ausstehende Einträge und schließt die Datei.
+     */
+    @Override
+    public void close() throws IOException {
+        final ScheduledExecutorService replayer;
+        synchronized (this) {
+            replayer = this.replayer;
+            if (replayer != null) {
+                this.replayTarget.removeChangeObserver(this.reconnectObserver);
+            }
+        }
+        if (replayer != null) {
+            replayer.shutdown();
+            try {
+                replayer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.sync(Integer.MAX_VALUE);
+        this.channel.close();
+    }
+
+    private void replayQuietly() {
+        if (this.isEmpty()) {
+            return;
+        }
+        try {
+            this.replay(this.replayTarget);
+        } catch (final SQLException e) {
+            this.logger.debug("Could not replay the offline journal yet.", e);
+        } catch (final RuntimeException e) {
+            this.logger.warn("Replaying the offline journal failed.", e);
+        }
+    }
+
+    private int replayLocked(IEntryApplier applier) throws SQLException {
+        final int end;
+        final List<ByteBuffer> records = new ArrayList<>();
+        synchronized (this) {
+            end = this.writePosition;
+            int position = 0;
+            while (position < end) {
+                records.add(this.readRecord(position));
+                position += HEADER_SIZE + this.buffer.getInt(position);
+            }
+        }
+
+        int applied = 0;
+        for (final ByteBuffer record : records) {
+            if (applier.apply(record)) {
+                applied++;
+            }
+        }
+        if (applied > 0) {
+            this.logger.info("Replayed " + applied + " entries of the offline journal.");
+        }
+        this.discard(end);
+        return applied;
+    }
+
+    /**
+     * Trägt einen Eintrag nach. Scheitert dies dauerhaft, so wird der Eintrag mit dem Fehler als erledigt vermerkt.
+     *
+     * @return Falsch, wenn der Eintrag bereits nachgetragen war oder übersprungen wurde
+     */
+    private boolean applyOrSkip(DataManager dataManager, ByteBuffer record) throws SQLException {
+        try {
+            return this.apply(dataManager, record.duplicate());
+        } catch (final SQLException e) {
+            if (!isPermanent(e)) {
+                throw e;
+            }
+            final UUID eventId = new UUID(record.getLong(1), record.getLong(9));
+            this.logger.error("Skipping entry " + eventId + " of the offline journal that cannot be replayed.", e);
+            try (UnitOfWork work = dataManager.beginUnitOfWork()) {
+                this.markApplied(work, eventId, "Not replayed: " + e.getMessage());
+                work.commit();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Gibt an, ob ein Fehler beim Nachtragen auch bei einer Wiederholung wieder auftreten würde, z.B. weil gegen eine
+     * Integritätsbedingung verstoßen wird. Verbindungsabbrüche, fehlende Rechte und ähnliches gelten als vorübergehend.
+     */
+    static boolean isPermanent(SQLException e) {
+        final String state = e.getSQLState();
+        return state != null && (state.startsWith(DATA_EXCEPTION_CLASS) || state.startsWith(INTEGRITY_VIOLATION_CLASS));
+    }
+
+    /**
+     * Trägt einen Eintrag in einer eigenen Transaktion nach.
+     *
+     * @return Falsch, wenn der Eintrag bereits nachgetragen war
+     */
+    private boolean apply(DataManager dataManager, ByteBuffer record) throws SQLException {
+        final byte type = record.get();
+        final UUID eventId = new UUID(record.getLong(), record.getLong());
+        final UUID executionId = new UUID(record.getLong(), record.getLong());
+
+        try (UnitOfWork work = dataManager.beginUnitOfWork()) {
+            String note = null;
+            switch (type) {
+                case EXECUTION_STARTED: {
+                    final int deviceId = record.getInt();
+                    final int programId = record.getInt();
+                    final int userId = record.getInt();
+                    final Timestamp start = Timestamp.valueOf(getDateTime(record));
+                    if (userId < 0) {
+                        // Anonyme Ausführungen können keinem Benutzer zugeordnet werden
+                        note = "Anonymous execution of program " + programId + " on device " + deviceId +
+                                " started at " + start + ".";
+                    }
+                    if (!this.markApplied(work, eventId, note)) {
+                        return false;
+                    }
+                    if (userId >= 0) {
+                        work.update("INSERT INTO executions (device_id, program_id, user_id, start, offline_id) " +
+                                "VALUES (?, ?, ?, ?, ?) ON CONFLICT (offline_id) DO NOTHING", deviceId, programId,
+                                userId, start, executionId);
+                    }
+                    break;
+                }
+                case EXECUTION_STOPPED: {
+                    final Timestamp stop = Timestamp.valueOf(getDateTime(record));
+                    if (!this.markApplied(work, eventId, null)) {
+                        return false;
+                    }
+                    work.update("UPDATE executions SET stop=?, finished=TRUE WHERE offline_id=?", stop, executionId);
+                    break;
+                }
+                case PAYMENT: {
+                    final int userId = record.getInt();
+                    final BigDecimal amount = new BigDecimal(getString(record));
+                    final String description = getString(record);
+                    if (!this.markApplied(work, eventId, null)) {
+                        return false;
+                    }
+                    work.update("INSERT INTO credit_accounting (user_id, execution_id, amount, description) " +
+                                    "VALUES (?, (SELECT id FROM executions WHERE offline_id=?), ?, ?)", userId,
+                            executionId, amount.negate(), description);
+                    break;
+                }
+                default:
+                    // Z.B. ein Eintrag einer neueren Version, der sich niemals nachtragen lässt
+                    throw new SQLException("Unknown entry type " + type + " in the offline journal.",
+                            DATA_EXCEPTION_CLASS + "000");
+            }
+            work.commit();
+            return true;
+        }
+    }
+
+    /**
+     * Vermerkt einen Eintrag als nachgetragen.
+     *
+     * @return Falsch, wenn der Eintrag bereits früher nachgetragen wurde
+     */
+    private boolean markApplied(UnitOfWork work, UUID eventId, String note) throws SQLException {
+        return work.update("INSERT INTO offline_journal_applied (event_id, note) VALUES (?, ?) " +
+                "ON CONFLICT (event_id) DO NOTHING", eventId, note) > 0;
+    }
+
+    /**
+     * Hängt einen Eintrag an und wartet, bis er auf den Datenträger geschrieben ist.
+     */
+    private void append(byte type, UUID executionId, IPayloadWriter payload) throws IOException {
+        final ByteBuffer record = ByteBuffer.allocate(4096);
+        record.put(type);
+        final UUID eventId = UUID.randomUUID();
+        record.putLong(eventId.getMostSignificantBits());
+        record.putLong(eventId.getLeastSignificantBits());
+        record.putLong(executionId.getMostSignificantBits());
+        record.putLong(executionId.getLeastSignificantBits());
+        payload.write(record);
+        record.flip();
+
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.limit());
+
+        final int end;
+        synchronized (this) {
+            if (this.writePosition + HEADER_SIZE + record.limit() + 4 > this.buffer.capacity()) {
+                throw new IOException("The offline journal is full.");
+            }
+            final int position = this.writePosition;
+            this.buffer.putInt(position + 4, (int) crc.getValue());
+            for (int i = 0; i < record.limit(); i++) {
+                this.buffer.put(position + HEADER_SIZE + i, record.get(i));
+            }
+            this.buffer.putInt(position, record.limit());
+            this.writePosition = position + HEADER_SIZE + record.limit();
+            this.markEnd();
+            end = this.writePosition;
+        }
+        this.sync(end);
+    }
+
+    /**
+     * Schreibt das Journal mindestens bis zur gegebenen Position auf den Datenträger. Wer wartet, während ein anderer
+     * Thread schreibt, findet seinen Eintrag danach meist schon geschrieben vor.
+     */
+    private void sync(int upTo) {
+        synchronized (this.syncLock) {
+            final int target;
+            synchronized (this) {
+                if (this.syncedPosition >= Math.min(upTo, this.writePosition)) {
+                    return;
+                }
+                target = this.writePosition;
+            }
+            this.buffer.force();
+            synchronized (this) {
+                this.syncedPosition = Math.max(this.syncedPosition, target);
+            }
+        }
+    }
+
+    /**
+     * Entfernt die Einträge vor der gegebenen Position, z.B. weil sie nachgetragen wurden. Später angehängte Einträge
+     * rücken an den Anfang.
+     */
+    private synchronized void discard(int end) {
+        final int remaining = this.writePosition - end;
+        for (int i = 0; i < remaining; i++) {
+            this.buffer.put(i, this.buffer.get(end + i));
+        }
+        this.writePosition = remaining;
+        this.markEnd();
+        this.buffer.force();
+        this.syncedPosition = remaining;
+    }
+
+    /**
+     * Markiert das Ende des Journals, damit dahinter liegende Reste älterer Einträge nicht gelesen werden.
+     */
+    private void markEnd() {
+        if (this.writePosition + 4 <= this.buffer.capacity()) {
+            this.buffer.putInt(this.writePosition, 0);
+        }
+    }
+
+    /**
+     * Liest den Eintrag an der gegebenen Position.
+     *
+     * @return Der Inhalt des Eintrags oder null, wenn dort kein vollständiger Eintrag steht
+     */
+    private ByteBuffer readRecord(int position) {
+        if (position + HEADER_SIZE > this.buffer.capacity()) {
+            return null;
+        }
+        final int length = this.buffer.getInt(position);
+        if (length <= 0 || position + HEADER_SIZE + length > this.buffer.capacity()) {
+            return null;
+        }
+        final byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = this.buffer.get(position + HEADER_SIZE + i);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(content, 0, length);
+        if ((int) crc.getValue() != this.buffer.getInt(position + 4)) {
+            return null;
+        }
+        return ByteBuffer.wrap(content);
+    }
+
+    private static void putDateTime(ByteBuffer b, LocalDateTime value) {
+        b.putLong(value.toEpochSecond(ZoneOffset.UTC));
+        b.putInt(value.getNano());
+    }
+
+    private static LocalDateTime getDateTime(ByteBuffer b) {
+        return LocalDateTime.ofEpochSecond(b.getLong(), b.getInt(), ZoneOffset.UTC);
+    }
+
+    private static void putString(ByteBuffer b, String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        b.putShort((short) bytes.length);
+        b.put(bytes);
+    }
+
+    private static String getString(ByteBuffer b) {
+        final byte[] bytes = new byte[b.getShort() & 0xFFFF];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Trägt nach, sobald der Datenmanager meldet, dass Benachrichtigungen verpasst worden sein könnten. Das geschieht
+     * jedes Mal, wenn die Verbindung dafür aufgebaut wurde.
+     */
+    private class ReconnectObserver implements IChangeObserver {
+        @Override
+        public void changed(String table, boolean deleted, int id) {
+        }
+
+        @Override
+        public void changesLost() {
+            try {
+                OfflineJournal.this.replayer.execute(OfflineJournal.this::replayQuietly);
+            } catch (final RejectedExecutionException e) {
+                // Das Journal wird gerade geschlossen
+            }
+        }
+    }
+
+    /**
+     * Trägt einen Eintrag des Journals nach.
+     */
+    @FunctionalInterface
+    interface IEntryApplier {
+        /**
+         * @param entry Der Inhalt des Eintrags, beginnend mit seinem Typ
+         * @return Falsch, wenn der Eintrag bereits nachgetragen war
+         */
+        boolean apply(ByteBuffer entry) throws SQLException;
+    }
+
+    /**
+     * Schreibt den typabhängigen Teil eines Eintrags.
+     */
+    @FunctionalInterface
+    private interface IPayloadWriter {
+        void write(ByteBuffer b);
+    }
+}
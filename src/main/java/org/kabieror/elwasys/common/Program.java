@@ -3,18 +3,19 @@ package org.kabieror.elwasys.common;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigDecimal;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.time.temporal.UnsupportedTemporalTypeException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
 
 /**
  * Ein Gerät (Device) kann mehrere Programme haben.
@@ -31,7 +32,10 @@ public class Program {
      * Die ID des Programms
      */
     private final int id;
-    private final List<UserGroup> validUserGroups;
+    /**
+     * Die Benutzergruppen, die das Programm verwenden dürfen. Werden erst beim ersten Zugriff geladen.
+     */
+    private final Lazy<List<UserGroup>> validUserGroups = new Lazy<>(this::loadValidGroups);
     private Logger logger = LoggerFactory.getLogger(this.getClass());
     /**
      * Der Name des Programms
@@ -82,22 +86,53 @@ public class Program {
      */
     private ChronoUnit timeUnit;
 
-    private LocalDateTime lastUpdateTime;
+    private volatile LocalDateTime lastUpdateTime;
 
     public Program(DataManager dataManager, int id) throws SQLException, NoDataFoundException {
         this.dataManager = dataManager;
         this.id = id;
-        this.validUserGroups = new ArrayList<>();
         this.update();
     }
 
     public Program(DataManager dataManager, ResultSet res) throws SQLException {
         this.dataManager = dataManager;
         this.id = res.getInt("id");
-        this.validUserGroups = new ArrayList<>();
         this.update(res);
     }
 
+    /**
+     * Erstellt ein Programm aus einem Abfrageergebnis und bereits geladenen Benutzergruppen
+     */
+    Program(DataManager dataManager, ResultSet res, List<UserGroup> validUserGroups) throws SQLException {
+        this.dataManager = dataManager;
+        this.id = res.getInt("id");
+        this.update(res, validUserGroups);
+    }
+
+    /**
+     * Liest ein Programm aus einer Momentaufnahme für den Warmstart
+     *
+     * @param in     Die Momentaufnahme, an deren aktueller Stelle das Programm steht
+     * @param groups Die bereits gelesenen Benutzergruppen
+     */
+    Program(DataManager dataManager, DataInputStream in, Map<Integer, UserGroup> groups) throws IOException {
+        this.dataManager = dataManager;
+        this.id = in.readInt();
+        this.name = WarmStartSnapshot.readString(in);
+        this.type = ProgramType.valueOf(in.readUTF());
+        this.enabled = in.readBoolean();
+        this.autoEnd = in.readBoolean();
+        this.earliestAutoEnd = Duration.ofSeconds(in.readLong());
+        this.maxDuration = Duration.ofSeconds(in.readLong());
+        this.freeDuration = Duration.ofSeconds(in.readLong());
+        this.flagfall = WarmStartSnapshot.readDecimal(in);
+        this.rate = WarmStartSnapshot.readDecimal(in);
+        final String timeUnitStr = WarmStartSnapshot.readString(in);
+        this.timeUnit = timeUnitStr != null ? ChronoUnit.valueOf(timeUnitStr) : null;
+        WarmStartSnapshot.readRelation(in, this.validUserGroups, groups);
+        this.lastUpdateTime = LocalDateTime.now();
+    }
+
     /**
      * Erstellt ein neues Programm in der Datenbank
      */
@@ -116,57 +151,21 @@ public class Program {
         this.autoEnd = autoEnd;
         this.earliestAutoEnd = earliestAutoEnd;
         this.enabled = enabled;
-        this.validUserGroups = validUserGroups;
-
-        final PreparedStatement s = dataManager.getConnection().prepareStatement(
-                "INSERT INTO programs (name, type, flagfall, rate, time_unit, max_duration, free_duration, auto_end, " +
-                        "earliest_auto_end, enabled) VALUES (?, ?::PROGRAM_TYPE, ?, ?, ?::TIME_UNIT_TYPE, ?, ?, ?, ?," +
-                        " ?)", Statement.RETURN_GENERATED_KEYS);
-        int i = 1;
-        s.setString(i++, name);
-        s.setString(i++, this.getTypeString(type));
-        s.setBigDecimal(i++, flagfall);
-        s.setBigDecimal(i++, rate);
-        s.setString(i++, this.getTimeUnitString(timeUnit));
-        s.setInt(i++, new Long(maxDuration.getSeconds()).intValue());
-        s.setInt(i++, new Long(freeDuration.getSeconds()).intValue());
-        s.setBoolean(i++, this.autoEnd);
-        s.setInt(i++, new Long(this.earliestAutoEnd.getSeconds()).intValue());
-        s.setBoolean(i++, enabled);
-        s.executeUpdate();
-
-        final ResultSet res = s.getGeneratedKeys();
-        if (res.next()) {
-            this.id = res.getInt(1);
-        } else {
-            throw new SQLException("No ID received by database.");
-        }
+        this.validUserGroups.set(validUserGroups);
 
-        // Relationen herstellen
-        try {
-            for (final UserGroup g : validUserGroups) {
-                this.dataManager.getConnection().prepareCall(
-                        "INSERT INTO programs_valid_user_groups (program_id, group_id) VALUES (" + this.id + ", " +
-                                g.getId() + ")").execute();
-            }
-        } catch (final SQLException e) {
-            // Fehler. Alles zurücksetzen.
-            try {
-                this.dataManager.getConnection()
-                        .prepareCall("DELETE FROM programs_valid_user_groups WHERE program_id=" + this.id).execute();
-            } catch (final SQLException e1) {
-                // ignorieren und weiter.
-                this.logger.error("Could not delete newly created relations between this program and its valid user " +
-                        "groups", e1);
-            }
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            this.id = work.insert("INSERT INTO programs (name, type, flagfall, rate, time_unit, max_duration, " +
+                            "free_duration, auto_end, earliest_auto_end, enabled) VALUES (?, ?::PROGRAM_TYPE, ?, ?, " +
+                            "?::TIME_UNIT_TYPE, ?, ?, ?, ?, ?)", name, this.getTypeString(type), flagfall, rate,
+                    this.getTimeUnitString(timeUnit), (int) maxDuration.getSeconds(), (int) freeDuration.getSeconds(),
+                    this.autoEnd, (int) this.earliestAutoEnd.getSeconds(), enabled);
 
-            try {
-                this.dataManager.getConnection().prepareCall("DELETE FROM programs WHERE id=" + this.id).execute();
-            } catch (final SQLException e1) {
-                // ignorieren und weiter.
-                this.logger.error("Could not delete the newly created program.");
+            // Relationen herstellen
+            for (final UserGroup g : validUserGroups) {
+                work.batch("INSERT INTO programs_valid_user_groups (program_id, group_id) VALUES (?, ?)", this.id,
+                        g.getId());
             }
-            throw e;
+            work.commit();
         }
     }
 
@@ -181,7 +180,7 @@ public class Program {
         this.autoEnd = autoEnd;
         this.earliestAutoEnd = Duration.ZERO;
         this.enabled = true;
-        this.validUserGroups = new ArrayList<>();
+        this.validUserGroups.set(new ArrayList<>());
     }
 
     /**
@@ -203,28 +202,56 @@ public class Program {
     public void update() throws SQLException, NoDataFoundException {
         // Only update after some time again
         if (this.lastUpdateTime != null &&
-                Duration.between(this.lastUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(Program.class)).isNegative()) {
             return;
         }
+        this.reload();
+    }
+
+    /**
+     * Liest das Programm ohne Rücksicht auf die letzte Aktualisierung neu aus der Datenbank
+     */
+    void reload() throws SQLException, NoDataFoundException {
         this.lastUpdateTime = LocalDateTime.now();
 
-        final ResultSet res = this.dataManager.getConnection().prepareCall("SELECT * FROM programs WHERE id=" + this.id)
-                .executeQuery();
-        if (!res.next()) {
+        final Boolean found = this.dataManager.getQueryExecutor()
+                .queryFirst("SELECT * FROM programs WHERE id=?", res -> {
+                    this.update(res);
+                    return true;
+                }, this.id);
+        if (found == null) {
             throw new NoDataFoundException(
                     String.format("Das Programm '%1s' wurde aus der Datenbank gelöscht.", this.name));
         }
-        this.update(res);
+        this.validUserGroups.refresh();
     }
 
     /**
-     * Aktualisiert die Daten des Geräts mit denen aus der Datenbank
+     * Aktualisiert die Daten des Geräts mit denen aus der Datenbank. Die Benutzergruppen bleiben erhalten, bis
+     * {@link #reload()} sie neu lädt.
      *
      * @param res Das Abfrageergebnis mit denen das Gerät aktualisiert werden soll
      * @throws SQLException
      */
     public void update(ResultSet res) throws SQLException {
+        this.updateFields(res);
+    }
+
+    /**
+     * Aktualisiert die Daten des Programms mit denen aus einem Abfrageergebnis und bereits geladenen Benutzergruppen,
+     * ohne weitere Abfragen auszuführen.
+     *
+     * @param res             Das Abfrageergebnis, mit dem das Programm aktualisiert werden soll
+     * @param validUserGroups Die Benutzergruppen, die das Programm verwenden dürfen
+     */
+    void update(ResultSet res, List<UserGroup> validUserGroups) throws SQLException {
+        this.lastUpdateTime = LocalDateTime.now();
+        this.updateFields(res);
+        this.validUserGroups.set(new ArrayList<>(validUserGroups));
+    }
+
+    private void updateFields(ResultSet res) throws SQLException {
         this.name = res.getString("name");
         this.maxDuration = Duration.ofSeconds(res.getInt("max_duration"));
         this.freeDuration = Duration.ofSeconds(res.getInt("free_duration"));
@@ -263,20 +290,13 @@ public class Program {
                 this.logger.warn("The time unit of program " + this.id + " is not set.");
             }
         }
-
-        this.updateValidGroups();
     }
 
-    private void updateValidGroups() throws SQLException {
-        ResultSet res = this.dataManager.getConnection()
-                .prepareCall("SELECT group_id FROM programs_valid_user_groups WHERE program_id=" + this.id)
-                .executeQuery();
-        this.validUserGroups.clear();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                this.validUserGroups.add(this.dataManager.getUserGroupById(res.getInt("group_id")));
-            }
-        }
+    private List<UserGroup> loadValidGroups() throws SQLException {
+        final List<Integer> ids = this.dataManager.getQueryExecutor()
+                .query("SELECT group_id FROM programs_valid_user_groups WHERE program_id=?",
+                        res -> res.getInt("group_id"), this.id);
+        return new ArrayList<>(this.dataManager.getUserGroupsById(ids));
     }
 
     /**
@@ -294,23 +314,25 @@ public class Program {
     public void modify(String name, ProgramType type, BigDecimal flagfall, BigDecimal rate, ChronoUnit timeUnit,
                        Duration maxDuration, Duration freeDuration, Boolean autoEnd, Duration earliestAutoEnd,
                        Boolean enabled, List<UserGroup> validUserGroups) throws SQLException {
-        final PreparedStatement s = this.dataManager.getConnection().prepareStatement(
-                "UPDATE programs SET name=?, type=?::PROGRAM_TYPE, flagfall=?, " +
-                        "rate=?, time_unit=?::TIME_UNIT_TYPE, max_duration=?, free_duration=?, auto_end=?, " +
-                        "earliest_auto_end=?, enabled=? WHERE id=?");
-        int i = 1;
-        s.setString(i++, name);
-        s.setString(i++, this.getTypeString(type));
-        s.setBigDecimal(i++, flagfall);
-        s.setBigDecimal(i++, rate);
-        s.setString(i++, this.getTimeUnitString(timeUnit));
-        s.setInt(i++, new Long(maxDuration.getSeconds()).intValue());
-        s.setInt(i++, new Long(freeDuration.getSeconds()).intValue());
-        s.setBoolean(i++, autoEnd);
-        s.setInt(i++, new Long(earliestAutoEnd.getSeconds()).intValue());
-        s.setBoolean(i++, enabled);
-        s.setInt(i++, this.id);
-        s.execute();
+        final ColumnChanges changes = new ColumnChanges()
+                .set("name", this.name, name)
+                .set("type", "?::PROGRAM_TYPE", this.getTypeString(this.type), this.getTypeString(type))
+                .set("flagfall", this.flagfall, flagfall)
+                .set("rate", this.rate, rate)
+                .set("time_unit", "?::TIME_UNIT_TYPE", this.getTimeUnitString(this.timeUnit),
+                        this.getTimeUnitString(timeUnit))
+                .set("max_duration", ColumnChanges.seconds(this.maxDuration), ColumnChanges.seconds(maxDuration))
+                .set("free_duration", ColumnChanges.seconds(this.freeDuration), ColumnChanges.seconds(freeDuration))
+                .set("auto_end", this.autoEnd, autoEnd)
+                .set("earliest_auto_end", ColumnChanges.seconds(this.earliestAutoEnd),
+                        ColumnChanges.seconds(earliestAutoEnd))
+                .set("enabled", this.enabled, enabled);
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            changes.update(work, "programs", this.id);
+            work.replaceRelation("programs_valid_user_groups", "program_id", this.id, "group_id",
+                    this.validUserGroups.fetch(), validUserGroups, UserGroup::getId);
+            work.commit();
+        }
 
         this.name = name;
         this.type = type;
@@ -322,33 +344,7 @@ public class Program {
         this.autoEnd = autoEnd;
         this.earliestAutoEnd = earliestAutoEnd;
         this.enabled = enabled;
-
-        // Benutzergruppen aktualisieren
-        final List<UserGroup> skippedGroups = new Vector<>();
-        final int oldGroupsCount = this.validUserGroups.size();
-        for (final UserGroup g : validUserGroups) {
-            if (this.validUserGroups.contains(g)) {
-                skippedGroups.add(g);
-                continue;
-            }
-            this.dataManager.getConnection().prepareCall(
-                    "INSERT INTO programs_valid_user_groups (program_id, group_id) VALUES (" + this.id + ", " +
-                            g.getId() + ")").execute();
-            this.validUserGroups.add(g);
-        }
-
-        if (oldGroupsCount > skippedGroups.size()) {
-            // Look for deleted groups
-            for (i = 0; i < this.validUserGroups.size(); i++) {
-                if (!validUserGroups.contains(this.validUserGroups.get(i))) {
-                    this.dataManager.getConnection().prepareCall(
-                            "DELETE FROM programs_valid_user_groups WHERE program_id=" + this.id + " AND group_id=" +
-                                    this.validUserGroups.get(i).getId()).execute();
-                    this.validUserGroups.remove(i);
-                    i--;
-                }
-            }
-        }
+        this.validUserGroups.set(new ArrayList<>(validUserGroups));
     }
 
     /**
@@ -410,6 +406,31 @@ public class Program {
         return this.flagfall.add(this.rate.multiply(factor));
     }
 
+    /**
+     * Schreibt das Programm in eine Momentaufnahme für den Warmstart.
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(this.id);
+        WarmStartSnapshot.writeString(out, this.name);
+        out.writeUTF(this.type.name());
+        out.writeBoolean(this.enabled);
+        out.writeBoolean(this.autoEnd);
+        out.writeLong(this.earliestAutoEnd.getSeconds());
+        out.writeLong(this.maxDuration.getSeconds());
+        out.writeLong(this.freeDuration.getSeconds());
+        WarmStartSnapshot.writeDecimal(out, this.flagfall);
+        WarmStartSnapshot.writeDecimal(out, this.rate);
+        WarmStartSnapshot.writeString(out, this.timeUnit != null ? this.timeUnit.name() : null);
+        WarmStartSnapshot.writeRelation(out, this.validUserGroups, UserGroup::getId);
+    }
+
+    /**
+     * Markiert die Daten des Programms als veraltet. Der nächste Aufruf von {@link #update()} liest sie erneut.
+     */
+    void invalidate() {
+        this.lastUpdateTime = null;
+    }
+
     public int getId() {
         return this.id;
     }
@@ -455,7 +476,7 @@ public class Program {
     }
 
     public List<UserGroup> getValidUserGroups() {
-        return this.validUserGroups;
+        return this.validUserGroups.get();
     }
 
     /**
@@ -504,6 +525,6 @@ public class Program {
      * @throws SQLException
      */
     public void delete() throws SQLException {
-        this.dataManager.getConnection().prepareCall("DELETE FROM programs WHERE id=" + this.id).execute();
+        this.dataManager.getQueryExecutor().update("DELETE FROM programs WHERE id=?", this.id);
     }
 }
@@ -0,0 +1,209 @@
+package org.kabieror.elwasys.common;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Führt parametrisierte SQL-Anweisungen aus und schließt Anweisungen und Abfrageergebnisse, sobald sie abgearbeitet
+ * sind.
+ * <p>
+ * Alle Anweisungen werden als PreparedStatement mit gebundenen Parametern ausgeführt, sodass der SQL-Text einer
+ * Anweisung unabhängig von ihren Werten gleich bleibt. Der Datenbanktreiber hält je Verbindung einen Cache
+ * serverseitig vorbereiteter Anweisungen, der über den SQL-Text adressiert wird. Wiederholte Abfragen werden so nicht
+ * erneut geparst und geplant.
+ * <p>
+ * Ganzzahl-Arrays (int[]) werden als SQL-Array gebunden, sodass sich mit {@code id = ANY(?)} viele Zeilen in einer
+ * einzigen Abfrage laden lassen.
+ *
+ * @author Oliver Kabierschke
+ */
+public class QueryExecutor {
+
+    private final DataManager dataManager;
+
+    /**
+     * Ob Abfragen von einem Lesereplikat beantwortet werden dürfen
+     */
+    private final boolean replica;
+
+    QueryExecutor(DataManager dataManager) {
+        this(dataManager, false);
+    }
+
+    /**
+     * @param replica Ob Abfragen von einem Lesereplikat beantwortet werden dürfen. Ändernde Anweisungen gehen stets an
+     *                den Primärserver.
+     */
+    QueryExecutor(DataManager dataManager, boolean replica) {
+        this.dataManager = dataManager;
+        this.replica = replica;
+    }
+
+    /**
+     * Führt eine Abfrage aus und bildet jede Zeile des Ergebnisses ab.
+     *
+     * @param sql    Die Abfrage mit Platzhaltern
+     * @param mapper Bildet eine Zeile auf ein Objekt ab
+     * @param params Die Werte der Platzhalter
+     * @return Die abgebildeten Zeilen in der Reihenfolge des Abfrageergebnisses
+     */
+    public <T> List<T> query(String sql, IRowMapper<T> mapper, Object... params) throws SQLException {
+        final List<T> result = new ArrayList<>();
+        try (Connection c = this.connectForQuery(); PreparedStatement s = c.prepareStatement(sql)) {
+            bind(s, params);
+            try (ResultSet res = s.executeQuery()) {
+                while (res.next()) {
+                    result.add(mapper.map(res));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Führt eine Abfrage aus und bildet die erste Zeile des Ergebnisses ab.
+     *
+     * @param sql    Die Abfrage mit Platzhaltern
+     * @param mapper Bildet eine Zeile auf ein Objekt ab
+     * @param params Die Werte der Platzhalter
+     * @return Die abgebildete erste Zeile oder null, wenn das Ergebnis leer ist
+     */
+    public <T> T queryFirst(String sql, IRowMapper<T> mapper, Object... params) throws SQLException {
+        try (Connection c = this.connectForQuery(); PreparedStatement s = c.prepareStatement(sql)) {
+            bind(s, params);
+            s.setMaxRows(1);
+            try (ResultSet res = s.executeQuery()) {
+                if (res.next()) {
+                    return mapper.map(res);
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Führt eine Abfrage aus und reicht jede abgebildete Zeile an einen Verarbeiter weiter, während das Ergebnis in
+     * Portionen von der Datenbank gelesen wird. So lassen sich auch sehr große Ergebnisse mit konstantem Speicherbedarf
+     * verarbeiten.
+     * <p>
+     * Der Datenbanktreiber liest nur innerhalb einer Transaktion in Portionen. Ist für die Verbindung Autocommit
+     * aktiv, so wird die Abfrage daher in einer eigenen Transaktion ausgeführt.
+     *
+     * @param sql       Die Abfrage mit Platzhaltern
+     * @param fetchSize Die Anzahl der Zeilen, die auf einmal von der Datenbank gelesen werden
+     * @param mapper    Bildet eine Zeile auf ein Objekt ab
+     * @param handler   Verarbeitet die abgebildeten Zeilen in der Reihenfolge des Abfrageergebnisses
+     * @param params    Die Werte der Platzhalter
+     */
+    public <T> void stream(String sql, int fetchSize, IRowMapper<T> mapper, IRowHandler<T> handler, Object... params)
+            throws SQLException {
+        try (Connection c = this.connectForQuery()) {
+            final boolean autoCommit = c.getAutoCommit();
+            if (autoCommit) {
+                c.setAutoCommit(false);
+            }
+            boolean success = false;
+            try (PreparedStatement s = c.prepareStatement(sql)) {
+                bind(s, params);
+                s.setFetchSize(fetchSize);
+                try (ResultSet res = s.executeQuery()) {
+                    while (res.next()) {
+                        handler.handle(mapper.map(res));
+                    }
+                }
+                success = true;
+            } finally {
+                if (autoCommit) {
+                    try {
+                        if (success) {
+                            c.commit();
+                        } else {
+                            c.rollback();
+                        }
+                    } finally {
+                        c.setAutoCommit(true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Führt eine ändernde Anweisung aus.
+     *
+     * @param sql    Die Anweisung mit Platzhaltern
+     * @param params Die Werte der Platzhalter
+     * @return Die Anzahl der betroffenen Zeilen
+     */
+    public int update(String sql, Object... params) throws SQLException {
+        try (Connection c = this.dataManager.getConnection(); PreparedStatement s = c.prepareStatement(sql)) {
+            bind(s, params);
+            final int count = s.executeUpdate();
+            this.dataManager.recordWrite();
+            return count;
+        }
+    }
+
+    /**
+     * Führt eine einfügende oder ändernde Anweisung aus und bildet die von der Datenbank erzeugten Werte der ersten
+     * betroffenen Zeile ab.
+     *
+     * @param sql       Die Anweisung mit Platzhaltern
+     * @param keyMapper Bildet die erzeugten Werte ab, z.B. die ID der neuen Zeile
+     * @param params    Die Werte der Platzhalter
+     * @return Die abgebildeten erzeugten Werte
+     * @throws SQLException Wenn die Datenbank keine erzeugten Werte zurück liefert
+     */
+    public <T> T insert(String sql, IRowMapper<T> keyMapper, Object... params) throws SQLException {
+        try (Connection c = this.dataManager.getConnection();
+             PreparedStatement s = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            bind(s, params);
+            s.executeUpdate();
+            this.dataManager.recordWrite();
+            try (ResultSet res = s.getGeneratedKeys()) {
+                if (res.next()) {
+                    return keyMapper.map(res);
+                }
+                throw new SQLException("No ID received by database.");
+            }
+        }
+    }
+
+    /**
+     * Führt eine einfügende Anweisung aus und gibt die erzeugte ID der neuen Zeile zurück.
+     *
+     * @param sql    Die Anweisung mit Platzhaltern
+     * @param params Die Werte der Platzhalter
+     * @return Die ID der neuen Zeile
+     */
+    public int insert(String sql, Object... params) throws SQLException {
+        return this.insert(sql, res -> res.getInt(1), params);
+    }
+
+    private Connection connectForQuery() throws SQLException {
+        return this.replica ? this.dataManager.getReadConnection() : this.dataManager.getConnection();
+    }
+
+    /**
+     * Bindet die Werte an die Platzhalter einer Anweisung.
+     */
+    static void bind(PreparedStatement s, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] instanceof int[]) {
+                final int[] values = (int[]) params[i];
+                final Integer[] boxed = new Integer[values.length];
+                for (int j = 0; j < values.length; j++) {
+                    boxed[j] = values[j];
+                }
+                s.setArray(i + 1, s.getConnection().createArrayOf("integer", boxed));
+            } else {
+                s.setObject(i + 1, params[i]);
+            }
+        }
+    }
+}
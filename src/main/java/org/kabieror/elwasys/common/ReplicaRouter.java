@@ -0,0 +1,194 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verteilt lesende Abfragen auf Lesereplikate der Datenbank, sofern deren Rückstand auf den Primärserver eine
+ * Höchstgrenze nicht überschreitet.
+ * <p>
+ * Der Rückstand jedes Replikats wird in regelmäßigen Abständen gemessen. Abfragen gehen reihum an die Replikate, deren
+ * letzte Messung innerhalb der Grenze lag. Ist keines verfügbar, so antwortet der Primärserver.
+ * <p>
+ * Damit ein Thread seine eigenen Änderungen sieht, liest er nach einer Änderung so lange vom Primärserver, bis jedes
+ * verwendete Replikat sie sicher erhalten hat. Hält ein Thread gerade eine Verbindung zum Primärserver, z.B. innerhalb
+ * einer {@link UnitOfWork}, so liest er ebenfalls dort.
+ *
+ * @author Oliver Kabierschke
+ */
+class ReplicaRouter {
+
+    /**
+     * Misst den Rückstand eines Replikats in Sekunden. Hat es alles Empfangene eingespielt, so gilt es als aktuell,
+     * auch wenn auf dem Primärserver seit Längerem nichts geändert wurde.
+     */
+    private static final String LAG_QUERY = "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 " +
+            "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+            "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ConnectionPool primary;
+
+    private final List<Replica> replicas = new ArrayList<>();
+
+    /**
+     * Der höchste zulässige Rückstand eines Replikats in Sekunden
+     */
+    private final double maxLagSeconds;
+
+    /**
+     * Wie lange ein Thread nach einer Änderung vom Primärserver liest
+     */
+    private final long stickyNanos;
+
+    /**
+     * Der Zeitpunkt der letzten Änderung des aktuellen Threads
+     */
+    private final ThreadLocal<Long> lastWrite = new ThreadLocal<>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final ScheduledExecutorService checker;
+
+    /**
+     * @param primary      Der Verbindungspool des Primärservers
+     * @param servers      Die Replikate als {@code host[:port]}
+     * @param database     Der Name der Datenbank
+     * @param dbProperties Die Verbindungseigenschaften, wie für den Primärserver
+     * @param config       Die Konfiguration mit Poolgröße und höchstem Rückstand
+     */
+    ReplicaRouter(ConnectionPool primary, List<String> servers, String database, Properties dbProperties,
+                  ConfigurationManager config) {
+        this.primary = primary;
+        for (int i = 0; i < servers.size(); i++) {
+            final String url = "jdbc:postgresql://" + servers.get(i) + "/" + database;
+            this.replicas.add(new Replica(servers.get(i),
+                    new ConnectionPool("elwasys-replica-" + (i + 1), url, dbProperties, config)));
+        }
+        final Duration maxLag = config.getDatabaseReplicaMaxLag();
+        this.maxLagSeconds = maxLag.toMillis() / 1000.0;
+        // Zwischen zwei Messungen kann der Rückstand bis zur nächsten Messung unbemerkt wachsen
+        final long checkMillis = Math.max(1000, maxLag.toMillis() / 2);
+        this.stickyNanos = TimeUnit.MILLISECONDS.toNanos(maxLag.toMillis() + checkMillis);
+
+        this.checker = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("elwasys-replica-check"));
+        this.checker.scheduleWithFixedDelay(this::check, 0, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leiht eine Verbindung für eine lesende Abfrage aus, und zwar von einem ausreichend aktuellen Replikat oder,
+     * falls keines verfügbar ist oder der Thread eben geändert hat, vom Primärserver.
+     */
+    Connection getConnection() throws SQLException {
+        if (this.primary.isBoundToCurrentThread() || this.isRecentWriter()) {
+            return this.primary.getConnection();
+        }
+        // Verschachtelte Abfragen eines Threads bleiben beim selben Replikat
+        for (final Replica r : this.replicas) {
+            if (r.pool.isBoundToCurrentThread()) {
+                return r.pool.getConnection();
+            }
+        }
+        for (int attempt = 0; attempt < this.replicas.size(); attempt++) {
+            final Replica r = this.replicas.get(Math.floorMod(this.next.getAndIncrement(), this.replicas.size()));
+            if (!r.available) {
+                continue;
+            }
+            try {
+                return r.pool.getConnection();
+            } catch (final SQLException e) {
+                this.setAvailable(r, false, e);
+            }
+        }
+        return this.primary.getConnection();
+    }
+
+    /**
+     * Vermerkt, dass der aktuelle Thread eben auf dem Primärserver geändert hat.
+     */
+    void recordWrite() {
+        this.lastWrite.set(System.nanoTime());
+    }
+
+    /**
+     * Beendet die Messungen und schließt die Verbindungen zu allen Replikaten.
+     */
+    void shutdown() {
+        this.checker.shutdownNow();
+        for (final Replica r : this.replicas) {
+            r.pool.shutdown();
+        }
+    }
+
+    private boolean isRecentWriter() {
+        final Long writtenAt = this.lastWrite.get();
+        if (writtenAt == null) {
+            return false;
+        }
+        if (System.nanoTime() - writtenAt < this.stickyNanos) {
+            return true;
+        }
+        this.lastWrite.remove();
+        return false;
+    }
+
+    private void check() {
+        for (final Replica r : this.replicas) {
+            try (Connection c = r.pool.getConnection(); PreparedStatement s = c.prepareStatement(LAG_QUERY);
+                 ResultSet res = s.executeQuery()) {
+                res.next();
+                final double lag = res.getDouble(1);
+                final boolean known = !res.wasNull();
+                r.lagSeconds = known ? lag : Double.NaN;
+                this.setAvailable(r, known && lag <= this.maxLagSeconds, null);
+            } catch (final SQLException e) {
+                r.lagSeconds = Double.NaN;
+                this.setAvailable(r, false, e);
+            }
+        }
+    }
+
+    private void setAvailable(Replica r, boolean available, SQLException cause) {
+        if (r.available == available) {
+            return;
+        }
+        r.available = available;
+        if (available) {
+            this.logger.info("Routing reads to replica " + r.server + " again (lag " + r.lagSeconds + " s).");
+        } else if (cause != null) {
+            this.logger.warn("Replica " + r.server + " is unreachable. Reading from the primary instead.", cause);
+        } else {
+            this.logger.warn("Replica " + r.server + " lags behind by " + r.lagSeconds + " s. Reading from the " +
+                    "primary instead.");
+        }
+    }
+
+    /**
+     * Ein Lesereplikat samt seinem zuletzt gemessenen Zustand
+     */
+    private static class Replica {
+        private final String server;
+        private final ConnectionPool pool;
+        private volatile boolean available = false;
+        private volatile double lagSeconds = Double.NaN;
+
+        private Replica(String server, ConnectionPool pool) {
+            this.server = server;
+            this.pool = pool;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.kabieror.elwasys.common;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.sql.SQLException;
+
+/**
+ * Veröffentlicht die Zeilen einer Abfrage an Abonnenten nach Reactive Streams, und zwar nur so schnell, wie diese sie
+ * anfordern.
+ * <p>
+ * Jedes Abonnement führt die Abfrage erneut aus, und zwar auf einem eigenen Hintergrund-Thread, der die Verbindung
+ * zur Datenbank bis zum Ende des Abonnements hält. Die Zeilen werden über einen serverseitigen Cursor in Portionen
+ * gelesen. Solange der Abonnent keine weiteren Zeilen anfordert, wartet der Thread, ohne weiter zu lesen. Im Speicher
+ * liegt daher höchstens eine Portion, unabhängig von der Größe der Tabelle.
+ * <p>
+ * Unter Java 9 und neuer lässt sich ein solcher Publisher mit {@code FlowAdapters.toFlowPublisher} aus
+ * {@code org.reactivestreams:reactive-streams} als {@code java.util.concurrent.Flow.Publisher} verwenden.
+ *
+ * @param <T> Der Typ der veröffentlichten Zeilen
+ * @author Oliver Kabierschke
+ */
+class RowPublisher<T> implements Publisher<T> {
+
+    private static final DaemonThreadFactory THREADS = new DaemonThreadFactory("elwasys-publisher");
+
+    private final IRowSource<T> source;
+
+    /**
+     * @param source Führt die Abfrage aus und reicht die Zeilen weiter
+     */
+    RowPublisher(IRowSource<T> source) {
+        this.source = source;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("The subscriber must not be null.");
+        }
+        final CursorSubscription subscription = new CursorSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        THREADS.newThread(subscription).start();
+    }
+
+    /**
+     * Führt eine Abfrage aus und reicht jede Zeile des Ergebnisses an einen Verarbeiter weiter.
+     */
+    @FunctionalInterface
+    interface IRowSource<T> {
+        void stream(IRowHandler<T> handler) throws SQLException;
+    }
+
+    /**
+     * Wird geworfen, um die Abfrage nach dem Kündigen eines Abonnements abzubrechen.
+     */
+    private static class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private CancelledException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * Ein Abonnement, das die Abfrage auf seinem eigenen Thread ausführt und jede Zeile erst dann liest, wenn sie
+     * angefordert wurde
+     */
+    private class CursorSubscription implements Subscription, Runnable {
+        private final Subscriber<? super T> subscriber;
+
+        /**
+         * Die Anzahl der angeforderten, aber noch nicht gelieferten Zeilen
+         */
+        private long demand = 0;
+
+        private boolean cancelled = false;
+
+        /**
+         * Eine ungültige Anforderung, die dem Abonnenten als Fehler gemeldet wird
+         */
+        private IllegalArgumentException invalidRequest;
+
+        private CursorSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (this.cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                this.invalidRequest = new IllegalArgumentException("The number of requested rows must be positive.");
+                this.cancelled = true;
+            } else {
+                this.demand += n;
+                if (this.demand < 0) {
+                    this.demand = Long.MAX_VALUE;
+                }
+            }
+            this.notifyAll();
+        }
+
+        @Override
+        public synchronized void cancel() {
+            this.cancelled = true;
+            this.notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Die Verbindung erst öffnen, wenn tatsächlich Zeilen angefordert werden
+                this.awaitDemand(false);
+                RowPublisher.this.source.stream(row -> {
+                    this.awaitDemand(true);
+                    this.subscriber.onNext(row);
+                });
+                if (!this.isCancelled()) {
+                    this.subscriber.onComplete();
+                }
+            } catch (final CancelledException e) {
+                final IllegalArgumentException invalid = this.getInvalidRequest();
+                if (invalid != null) {
+                    this.subscriber.onError(invalid);
+                }
+            } catch (final Throwable e) {
+                if (!this.isCancelled()) {
+                    this.cancel();
+                    this.subscriber.onError(e);
+                }
+            }
+        }
+
+        /**
+         * Wartet, bis mindestens eine Zeile angefordert ist.
+         *
+         * @param take Ob die Zeile als geliefert verbucht werden soll
+         * @throws CancelledException Wenn das Abonnement gekündigt wurde
+         */
+        private synchronized void awaitDemand(boolean take) {
+            while (this.demand == 0 && !this.cancelled) {
+                try {
+                    this.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    this.cancelled = true;
+                }
+            }
+            if (this.cancelled) {
+                throw new CancelledException();
+            }
+            if (take && this.demand != Long.MAX_VALUE) {
+                this.demand--;
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        private synchronized IllegalArgumentException getInvalidRequest() {
+            return this.invalidRequest;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hält die laufenden Ausführungen je Gerät und je Benutzer im Speicher, sodass sich ohne Abfrage beantworten lässt,
+ * was auf einem Gerät läuft und was ein Benutzer gerade ausführt.
+ * <p>
+ * Die laufenden Ausführungen eines Standorts werden einmalig mit einer Abfrage geladen. Danach pflegen
+ * {@link Execution#start()}, {@link Execution#stop()}, {@link Execution#reset()} und {@link Execution#delete()} das
+ * Verzeichnis selbst. Ändern andere Clients eine Ausführung, so wird diese nach der Änderungsbenachrichtigung im
+ * Hintergrund neu gelesen und eingetragen bzw. ausgetragen. Gingen Benachrichtigungen verloren, so werden alle
+ * geladenen Standorte neu geladen. Die aktuelle Ausführung eines Geräts ({@link Device#getCurrentExecution()}) wird
+ * dabei mitgeführt.
+ * <p>
+ * Ausführungen ohne Datenbank werden nicht erfasst.
+ *
+ * @author Oliver Kabierschke
+ */
+class RunningExecutionRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DataManager dataManager;
+
+    /**
+     * Die IDs der Standorte, deren laufende Ausführungen vollständig erfasst sind
+     */
+    private final Set<Integer> locations = ConcurrentHashMap.newKeySet();
+
+    private final Map<Integer, Execution> byDevice = new ConcurrentHashMap<>();
+
+    private final Map<Integer, Set<Execution>> byUser = new ConcurrentHashMap<>();
+
+    private final IChangeObserver observer = new Observer();
+
+    RunningExecutionRegistry(DataManager dataManager) {
+        this.dataManager = dataManager;
+        dataManager.addChangeObserver(this.observer);
+    }
+
+    /**
+     * Ersetzt die erfassten Ausführungen eines Standorts. Anschließend werden Fragen zu den Geräten dieses Standorts
+     * aus dem Speicher beantwortet.
+     *
+     * @param locationId Die ID des Standorts
+     * @param running    Alle nicht abgeschlossenen, gestarteten Ausführungen auf den Geräten des Standorts
+     */
+    synchronized void load(int locationId, List<Execution> running) {
+        for (final Execution e : new ArrayList<>(this.byDevice.values())) {
+            if (e.getDevice().getLocationId() == locationId && !running.contains(e)) {
+                this.remove(e);
+            }
+        }
+        for (final Execution e : running) {
+            this.add(e);
+        }
+        this.locations.add(locationId);
+    }
+
+    /**
+     * Gibt an, ob die laufenden Ausführungen auf einem Gerät vollständig erfasst sind und aus dem Speicher beantwortet
+     * werden dürfen. Ohne Änderungsbenachrichtigungen erfährt das Verzeichnis nichts von Ausführungen anderer Clients,
+     * daher muss dann die Datenbank gefragt werden.
+     */
+    boolean covers(Device device) {
+        return this.dataManager.isChangeListening() && this.isLoaded(device);
+    }
+
+    /**
+     * Gibt an, ob die laufenden Ausführungen der Benutzer an den geladenen Standorten aus dem Speicher beantwortet
+     * werden dürfen. Wie bei {@link #covers(Device)} setzt dies Änderungsbenachrichtigungen voraus.
+     */
+    boolean coversUsers() {
+        return this.dataManager.isChangeListening();
+    }
+
+    /**
+     * Gibt die IDs der geladenen Standorte zurück.
+     */
+    Set<Integer> getLocationIds() {
+        return new HashSet<>(this.locations);
+    }
+
+    /**
+     * Gibt an, ob der Standort eines Geräts geladen wurde.
+     */
+    private boolean isLoaded(Device device) {
+        return this.locations.contains(device.getLocationId());
+    }
+
+    /**
+     * Gibt die auf einem Gerät laufende Ausführung zurück. Ausführungen, deren Höchstdauer abgelaufen ist, zählen
+     * nicht.
+     *
+     * @return Die Ausführung, oder null, wenn auf dem Gerät nichts läuft
+     */
+    Execution getByDevice(Device device) {
+        final Execution e = this.byDevice.get(device.getId());
+        return e != null && !e.isExpired() ? e : null;
+    }
+
+    /**
+     * Gibt die laufenden Ausführungen eines Benutzers an den erfassten Standorten zurück, einschließlich derer, deren
+     * Höchstdauer abgelaufen ist.
+     */
+    List<Execution> getByUser(User user) {
+        final Set<Execution> executions = this.byUser.get(user.getId());
+        return executions != null ? new ArrayList<>(executions) : Collections.emptyList();
+    }
+
+    /**
+     * Trägt eine Ausführung ein, nachdem sie gestartet wurde.
+     */
+    synchronized void started(Execution e) {
+        if (e.getId() >= 0) {
+            this.add(e);
+        }
+    }
+
+    /**
+     * Trägt eine Ausführung aus, nachdem sie beendet, zurückgesetzt oder gelöscht wurde.
+     */
+    synchronized void ended(Execution e) {
+        if (e.getId() >= 0) {
+            this.remove(e);
+        }
+    }
+
+    private void add(Execution e) {
+        final Execution previous = this.byDevice.get(e.getDevice().getId());
+        if (previous != null && previous != e) {
+            if (!previous.isExpired() && e.isExpired()) {
+                // Eine abgelaufene, noch nicht abgerechnete Ausführung verdrängt keine laufende
+                this.addToUser(e);
+                return;
+            }
+            this.removeFromUser(previous);
+        }
+        this.byDevice.put(e.getDevice().getId(), e);
+        this.addToUser(e);
+        e.getDevice().onExecutionStarted(e);
+    }
+
+    private void remove(Execution e) {
+        if (this.byDevice.remove(e.getDevice().getId(), e) && e.getDevice().getCurrentExecution() == e) {
+            e.getDevice().onExecutionEnded();
+        }
+        this.removeFromUser(e);
+    }
+
+    private void addToUser(Execution e) {
+        this.byUser.computeIfAbsent(e.getUser().getId(), k -> ConcurrentHashMap.newKeySet()).add(e);
+    }
+
+    private void removeFromUser(Execution e) {
+        this.byUser.computeIfPresent(e.getUser().getId(), (k, executions) -> {
+            executions.remove(e);
+            return executions.isEmpty() ? null : executions;
+        });
+    }
+
+    /**
+     * Liest eine von einem anderen Client geänderte Ausführung neu und trägt sie ein bzw. aus.
+     */
+    private void reload(int id) throws SQLException {
+        final Execution e = this.dataManager.reloadExecution(id);
+        synchronized (this) {
+            if (e == null) {
+                for (final Execution known : new ArrayList<>(this.byDevice.values())) {
+                    if (known.getId() == id) {
+                        this.remove(known);
+                    }
+                }
+            } else if (e.isRunning() && this.isLoaded(e.getDevice())) {
+                this.add(e);
+            } else {
+                this.remove(e);
+            }
+        }
+    }
+
+    /**
+     * Hält das Verzeichnis über Änderungen anderer Clients aktuell, sobald ein Standort geladen ist.
+     */
+    private class Observer implements IChangeObserver {
+        @Override
+        public void changed(String table, boolean deleted, int id) {
+            if (!"executions".equals(table) || RunningExecutionRegistry.this.locations.isEmpty()) {
+                return;
+            }
+            RunningExecutionRegistry.this.dataManager.async().run(dm -> RunningExecutionRegistry.this.reload(id))
+                    .exceptionally(e -> {
+                        RunningExecutionRegistry.this.logger
+                                .warn("Could not reload execution " + id + " after a change notification.", e);
+                        return null;
+                    });
+        }
+
+        @Override
+        public void changesLost() {
+            for (final int locationId : RunningExecutionRegistry.this.locations) {
+                RunningExecutionRegistry.this.dataManager.async()
+                        .run(dm -> dm.loadRunningExecutions(dm.getLocation(locationId)))
+                        .exceptionally(e -> {
+                            RunningExecutionRegistry.this.logger
+                                    .warn("Could not reload the running executions of location " + locationId + ".",
+                                            e);
+                            return null;
+                        });
+            }
+        }
+    }
+}
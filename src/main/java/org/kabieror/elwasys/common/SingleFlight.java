@@ -0,0 +1,91 @@
+package org.kabieror.elwasys.common;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Fasst gleichzeitige Aufrufe mit demselben Schlüssel zu einem einzigen Aufruf zusammen.
+ * <p>
+ * Der erste Thread führt den Aufruf aus. Alle Threads, die währenddessen mit demselben Schlüssel hinzukommen, warten
+ * auf sein Ende und erhalten dasselbe Ergebnis bzw. dieselbe Ausnahme. Ruft der ausführende Thread selbst erneut mit
+ * demselben Schlüssel auf, so wird der innere Aufruf direkt ausgeführt.
+ *
+ * @param <K> Der Typ der Schlüssel
+ * @param <V> Der Typ der Ergebnisse
+ * @author Oliver Kabierschke
+ */
+class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, Flight<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Führt einen Aufruf aus oder schließt sich einem laufenden Aufruf mit demselben Schlüssel an.
+     *
+     * @param key  Der Schlüssel, unter dem gleichzeitige Aufrufe zusammengefasst werden
+     * @param call Der auszuführende Aufruf
+     * @return Das Ergebnis des Aufrufs
+     * @throws SQLException Wenn der Aufruf mit einem Fehler endet
+     */
+    V execute(K key, ICall<V> call) throws SQLException {
+        final Flight<V> own = new Flight<>();
+        final Flight<V> running = this.flights.putIfAbsent(key, own);
+        if (running != null) {
+            if (running.owner == Thread.currentThread()) {
+                return call.call();
+            }
+            return running.await();
+        }
+
+        try {
+            final V result = call.call();
+            own.result.complete(result);
+            return result;
+        } catch (final SQLException | RuntimeException | Error e) {
+            own.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.flights.remove(key, own);
+        }
+    }
+
+    /**
+     * Ein Aufruf, der sich mit anderen zusammenfassen lässt.
+     */
+    @FunctionalInterface
+    interface ICall<V> {
+        V call() throws SQLException;
+    }
+
+    /**
+     * Ein laufender Aufruf
+     */
+    private static class Flight<V> {
+        private final Thread owner = Thread.currentThread();
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        /**
+         * Wartet auf das Ende des Aufrufs und gibt sein Ergebnis zurück.
+         */
+        private V await() throws SQLException {
+            try {
+                return this.result.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a concurrent load.", e);
+            } catch (final ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    final SQLException sqlCause = (SQLException) cause;
+                    throw new SQLException(sqlCause.getMessage(), sqlCause.getSQLState(), sqlCause.getErrorCode(),
+                            sqlCause);
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw (Error) cause;
+                }
+            }
+        }
+    }
+}
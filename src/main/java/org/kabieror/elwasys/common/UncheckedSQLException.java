@@ -0,0 +1,24 @@
+package org.kabieror.elwasys.common;
+
+import java.sql.SQLException;
+
+/**
+ * Diese Ausnahme wird geworfen, wenn ein erst beim Zugriff geladener Wert, z.B. das Guthaben oder die Gruppe eines
+ * Benutzers, nicht aus der Datenbank geladen werden kann. Sie umhüllt den eigentlichen Fehler, damit die Getter der
+ * Objekte keine {@link SQLException} deklarieren müssen.
+ *
+ * @author Oliver Kabierschke
+ */
+public class UncheckedSQLException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedSQLException(SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
@@ -0,0 +1,212 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * Fasst alle Anweisungen einer logischen Änderung zu einer Transaktion zusammen.
+ * <p>
+ * Anweisungen, deren Ergebnis nicht benötigt wird, z.B. das Anlegen und Entfernen von Relationen, werden mit
+ * {@link #batch(String, Object...)} gesammelt und je SQL-Text als JDBC-Batch in einem Zug an die Datenbank geschickt.
+ * Vor jeder sofort ausgeführten Anweisung und beim Abschließen werden die gesammelten Batches in der Reihenfolge
+ * gesendet, in der ihr SQL-Text zuerst vorkam.
+ * <p>
+ * Die Arbeitseinheit hält die Verbindung des aktuellen Threads. Alle Aufrufe des {@link QueryExecutor} auf diesem
+ * Thread laufen daher bis zum Schließen in derselben Transaktion. Wird eine Arbeitseinheit innerhalb einer bereits
+ * laufenden Transaktion begonnen, so schließt sie sich dieser an und überlässt ihr Abschluss und Zurücksetzen.
+ * <p>
+ * Verwendung:
+ * <pre>
+ * try (UnitOfWork work = dataManager.beginUnitOfWork()) {
+ *     work.update("UPDATE devices SET name=? WHERE id=?", name, id);
+ *     work.batch("INSERT INTO device_program_rel (device_id, program_id) VALUES (?, ?)", id, programId);
+ *     work.commit();
+ * }
+ * </pre>
+ * Wird die Arbeitseinheit ohne {@link #commit()} geschlossen, so werden alle ihre Änderungen verworfen.
+ *
+ * @author Oliver Kabierschke
+ */
+public class UnitOfWork implements AutoCloseable {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DataManager dataManager;
+
+    private final Connection connection;
+
+    /**
+     * Ob die Arbeitseinheit die Transaktion selbst begonnen hat und daher auch abschließen muss
+     */
+    private final boolean ownsTransaction;
+
+    /**
+     * Die gesammelten Batches je SQL-Text in der Reihenfolge ihres ersten Auftretens
+     */
+    private final Map<String, PreparedStatement> batches = new LinkedHashMap<>();
+
+    private boolean committed = false;
+
+    UnitOfWork(DataManager dataManager) throws SQLException {
+        this.dataManager = dataManager;
+        this.connection = dataManager.getConnection();
+        try {
+            this.ownsTransaction = this.connection.getAutoCommit();
+            if (this.ownsTransaction) {
+                this.connection.setAutoCommit(false);
+            }
+        } catch (final SQLException e) {
+            this.connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Merkt eine Anweisung vor, deren Ergebnis nicht benötigt wird. Sie wird zusammen mit allen anderen Anweisungen
+     * desselben SQL-Texts gesendet.
+     *
+     * @param sql    Die Anweisung mit Platzhaltern
+     * @param params Die Werte der Platzhalter
+     */
+    public void batch(String sql, Object... params) throws SQLException {
+        PreparedStatement s = this.batches.get(sql);
+        if (s == null) {
+            s = this.connection.prepareStatement(sql);
+            this.batches.put(sql, s);
+        }
+        QueryExecutor.bind(s, params);
+        s.addBatch();
+    }
+
+    /**
+     * Führt eine ändernde Anweisung sofort aus, nachdem alle vorgemerkten Anweisungen gesendet wurden.
+     *
+     * @param sql    Die Anweisung mit Platzhaltern
+     * @param params Die Werte der Platzhalter
+     * @return Die Anzahl der betroffenen Zeilen
+     */
+    public int update(String sql, Object... params) throws SQLException {
+        this.flush();
+        return this.dataManager.getQueryExecutor().update(sql, params);
+    }
+
+    /**
+     * Führt eine einfügende Anweisung sofort aus, nachdem alle vorgemerkten Anweisungen gesendet wurden.
+     *
+     * @param sql    Die Anweisung mit Platzhaltern
+     * @param params Die Werte der Platzhalter
+     * @return Die ID der neuen Zeile
+     */
+    public int insert(String sql, Object... params) throws SQLException {
+        this.flush();
+        return this.dataManager.getQueryExecutor().insert(sql, params);
+    }
+
+    /**
+     * Gleicht die Einträge einer Relationstabelle ab. Es werden nur die Einträge angelegt bzw. entfernt, die sich
+     * zwischen den Mengen der bisherigen und der neuen IDs unterscheiden.
+     *
+     * @param table        Die Relationstabelle
+     * @param ownerColumn  Die Spalte mit der ID des besitzenden Objekts
+     * @param ownerId      Die ID des besitzenden Objekts
+     * @param memberColumn Die Spalte mit der ID der zugeordneten Objekte
+     * @param current      Die bisher zugeordneten Objekte
+     * @param target       Die künftig zugeordneten Objekte
+     * @param id           Gibt die ID eines zugeordneten Objekts zurück
+     * @return Wahr, wenn sich die Zuordnung geändert hat
+     */
+    public <T> boolean replaceRelation(String table, String ownerColumn, int ownerId, String memberColumn,
+                                       Collection<T> current, Collection<T> target, ToIntFunction<T> id)
+            throws SQLException {
+        final Set<Integer> currentIds = new HashSet<>();
+        for (final T member : current) {
+            currentIds.add(id.applyAsInt(member));
+        }
+        final Set<Integer> targetIds = new LinkedHashSet<>();
+        for (final T member : target) {
+            targetIds.add(id.applyAsInt(member));
+        }
+
+        boolean changed = false;
+        for (final int memberId : targetIds) {
+            if (!currentIds.contains(memberId)) {
+                this.batch("INSERT INTO " + table + " (" + ownerColumn + ", " + memberColumn + ") VALUES (?, ?)",
+                        ownerId, memberId);
+                changed = true;
+            }
+        }
+        for (final int memberId : currentIds) {
+            if (!targetIds.contains(memberId)) {
+                this.batch("DELETE FROM " + table + " WHERE " + ownerColumn + "=? AND " + memberColumn + "=?",
+                        ownerId, memberId);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Sendet alle vorgemerkten Anweisungen an die Datenbank.
+     */
+    public void flush() throws SQLException {
+        for (final PreparedStatement s : this.batches.values()) {
+            try {
+                s.executeBatch();
+            } finally {
+                s.close();
+            }
+        }
+        this.batches.clear();
+    }
+
+    /**
+     * Sendet alle vorgemerkten Anweisungen und schließt die Transaktion ab.
+     */
+    public void commit() throws SQLException {
+        this.flush();
+        if (this.ownsTransaction) {
+            this.connection.commit();
+        }
+        this.dataManager.recordWrite();
+        this.committed = true;
+    }
+
+    /**
+     * Verwirft alle Änderungen, sofern die Arbeitseinheit nicht abgeschlossen wurde, und gibt die Verbindung zurück.
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            for (final PreparedStatement s : this.batches.values()) {
+                try {
+                    s.close();
+                } catch (final SQLException e) {
+                    this.logger.warn("Could not close a pending batch statement.", e);
+                }
+            }
+            this.batches.clear();
+            if (this.ownsTransaction) {
+                try {
+                    if (!this.committed) {
+                        this.connection.rollback();
+                    }
+                } finally {
+                    this.connection.setAutoCommit(true);
+                }
+            }
+        } finally {
+            this.connection.close();
+        }
+    }
+}
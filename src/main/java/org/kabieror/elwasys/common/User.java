@@ -4,6 +4,7 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
@@ -44,7 +45,7 @@ public class User {
      * Die ID des Benutzers
      */
     private final int id;
-    private LocalDateTime lastUpdateTime;
+    private volatile LocalDateTime lastUpdateTime;
     /**
      * Der Name des Benutzers
      */
@@ -60,15 +61,20 @@ public class User {
      */
     private String username;
 
+    /**
+     * Die ID der Gruppe des Benutzers
+     */
+    private int groupId;
+
     /**
      * Die Gruppe des Benutzers
      */
-    private UserGroup group;
+    private final Lazy<UserGroup> group = new Lazy<>(this::loadGroup);
 
     /**
-     * Das Guthaben des Benutzers in Cent
+     * Das verfügbare Guthaben des Benutzers. Wird erst bei Bedarf aus der Datenbank gelesen.
      */
-    private BigDecimal credit;
+    private final Lazy<BigDecimal> credit = new Lazy<>(this::queryCredit);
 
     /**
      * Die ID der Karte vom Benutzer
@@ -143,8 +149,8 @@ public class User {
     public User(DataManager dataManager, ResultSet res, UserGroup group) throws SQLException {
         this.dataManager = dataManager;
         this.id = res.getInt("id");
-        this.group = group;
         this.load(res);
+        this.group.set(group);
     }
 
     /**
@@ -162,7 +168,8 @@ public class User {
         this.dataManager = dataManager;
         this.name = name;
         this.username = username.toLowerCase();
-        this.group = group;
+        this.groupId = group.getId();
+        this.group.set(group);
         this.email = email;
         this.blocked = blocked;
         this.cardIds = cardIds;
@@ -173,33 +180,18 @@ public class User {
         this.pushIonicId = "";
         this.pushEnabled = true;
 
-        final PreparedStatement s = dataManager.getConnection().prepareStatement(
-                "INSERT INTO users (name, username, email, card_ids, blocked, is_admin, email_notification, group_id, push_notification, app_id)" +
-                        " VALUES " +
-                        "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-        int i = 1;
-        s.setString(i++, name);
-        s.setString(i++, username.toLowerCase());
-        s.setString(i++, email);
-        s.setString(i++, StringUtils.join(cardIds, "\n"));
-        s.setBoolean(i++, blocked);
-        s.setBoolean(i++, isAdmin);
-        s.setBoolean(i++, emailNotification);
-        s.setInt(i++, group.getId());
         // Halte Push-Einstellung nur lokal
-        s.setBoolean(i++, true);
-        s.setString(i++, this.pushIonicId);
-        s.executeUpdate();
-
-        final ResultSet res = s.getGeneratedKeys();
-        if (res.next()) {
-            this.id = res.getInt(1);
-            this.authKey = res.getString(AUTH_KEY_KEY);
-        } else {
-            throw new SQLException("No ID received by database.");
-        }
+        this.id = dataManager.getQueryExecutor().insert(
+                "INSERT INTO users (name, username, email, card_ids, blocked, is_admin, email_notification, " +
+                        "group_id, push_notification, app_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", res -> {
+                    this.authKey = res.getString(AUTH_KEY_KEY);
+                    return res.getInt(1);
+                }, name, username.toLowerCase(), email, StringUtils.join(cardIds, "\n"), blocked, isAdmin,
+                emailNotification, group.getId(), true, this.pushIonicId);
+        dataManager.getCardIndex().update(this.id, this.cardIds, false);
 
-        this.loadCredit();
+        // Ein neuer Benutzer hat noch keine Buchungen
+        this.credit.set(new BigDecimal("0.00"));
     }
 
     /**
@@ -211,15 +203,41 @@ public class User {
         this.dataManager = null;
         this.id = -1;
         this.name = name;
-        this.credit = BigDecimal.ZERO;
+        this.credit.set(BigDecimal.ZERO);
         this.isAdmin = false;
         this.emailNotification = false;
         this.pushEnabled = false;
-        this.group = new UserGroup("Offline Gruppe", DiscountType.None, 1f);
+        this.group.set(new UserGroup("Offline Gruppe", DiscountType.None, 1f));
         this.authKey = "";
         this.pushEnabled = false;
     }
 
+    /**
+     * Erstellt die Kopie eines gespeicherten Benutzers ohne Anbindung zur Datenbank. Sie trägt nur, was zum Anmelden
+     * und Bezahlen an einem Gerät nötig ist.
+     *
+     * @param id      Die ID des Benutzers
+     * @param name    Der Name des Benutzers
+     * @param group   Die Gruppe des Benutzers
+     * @param credit  Das zuletzt bekannte verfügbare Guthaben
+     * @param cardIds Die Kartennummern des Benutzers
+     * @param blocked Ob der Benutzer blockiert ist
+     */
+    User(int id, String name, UserGroup group, BigDecimal credit, String[] cardIds, boolean blocked) {
+        this.dataManager = null;
+        this.id = id;
+        this.name = name;
+        this.groupId = group.getId();
+        this.group.set(group);
+        this.credit.set(credit);
+        this.cardIds = cardIds;
+        this.blocked = blocked;
+        this.isAdmin = false;
+        this.emailNotification = false;
+        this.pushEnabled = false;
+        this.authKey = "";
+    }
+
     /**
      * Erstellt einen anonymen Benutzer
      *
@@ -248,30 +266,35 @@ public class User {
     public void update() throws NoDataFoundException, SQLException {
         // Only update after some time again
         if (this.lastUpdateTime != null &&
-                Duration.between(this.lastUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(User.class)).isNegative()) {
             return;
         }
+        this.reload();
+    }
+
+    /**
+     * Liest die Daten des Benutzers sofort neu aus der Datenbank
+     */
+    void reload() throws NoDataFoundException, SQLException {
         this.lastUpdateTime = LocalDateTime.now();
 
         this.load();
+        // Bereits verwendetes Guthaben und Gruppe gleich mitladen, damit der nächste Zugriff nicht auf die Datenbank
+        // wartet
+        this.credit.refresh();
+        this.group.refresh();
     }
 
     /**
-     * Aktualisiert die Daten des Benutzers mit denen aus einem Abfrageergebnis
+     * Aktualisiert die Daten des Benutzers mit denen aus einem Abfrageergebnis. Guthaben und Gruppe bleiben erhalten,
+     * bis {@link #reload()} sie neu lädt. Nur eine geänderte Gruppe wird beim nächsten Zugriff geladen.
      *
      * @param res Das Abfrageergebnis, mit dem der Benutzer aktualisiert werden soll
      * @throws SQLException
      */
     public void update(ResultSet res) throws SQLException {
         this.load(res);
-        try {
-            this.group.update();
-        } catch (NoDataFoundException e) {
-            this.logger.warn(String
-                    .format("The group '%1s' (%2d) of user '%3s' (%4d) does not exist any more. Working with old data.",
-                            this.group.getName(), this.group.getId(), this.name, this.id));
-        }
     }
 
     /**
@@ -285,21 +308,22 @@ public class User {
      */
     public void modify(String name, String username, String email, String[] cardIds, boolean blocked, boolean isAdmin,
                        boolean emailNotification, UserGroup userGroup, boolean pushEnabled) throws SQLException {
-        final PreparedStatement s = this.dataManager.getConnection().prepareStatement(
-                "UPDATE users SET name=?, username=?, email=?, card_ids=?, blocked=?, is_admin=?, " +
-                        "email_notification=?, group_id=?, push_notification=? WHERE id=?");
-        int i = 1;
-        s.setString(i++, name);
-        s.setString(i++, username.toLowerCase());
-        s.setString(i++, email);
-        s.setString(i++, StringUtils.join(cardIds, "\n"));
-        s.setBoolean(i++, blocked);
-        s.setBoolean(i++, isAdmin);
-        s.setBoolean(i++, emailNotification);
-        s.setInt(i++, userGroup.getId());
-        s.setBoolean(i++, pushEnabled);
-        s.setInt(i++, this.id);
-        s.execute();
+        final ColumnChanges changes = new ColumnChanges()
+                .set("name", this.name, name)
+                .set("username", this.username, username.toLowerCase())
+                .set("email", this.email, email)
+                .set("card_ids", StringUtils.join(this.cardIds, "\n"), StringUtils.join(cardIds, "\n"))
+                .set("blocked", this.blocked, blocked)
+                .set("is_admin", this.isAdmin, isAdmin)
+                .set("email_notification", this.emailNotification, emailNotification)
+                .set("group_id", this.groupId, userGroup.getId())
+                .set("push_notification", this.pushEnabled, pushEnabled);
+        if (!changes.isEmpty()) {
+            try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+                changes.update(work, "users", this.id);
+                work.commit();
+            }
+        }
 
         this.name = name;
         this.username = username.toLowerCase();
@@ -309,36 +333,33 @@ public class User {
         this.isAdmin = isAdmin;
         this.emailNotification = emailNotification;
         this.pushEnabled = pushEnabled;
-        this.group = userGroup;
+        this.groupId = userGroup.getId();
+        this.group.set(userGroup);
+        this.dataManager.getCardIndex().update(this.id, this.cardIds, this.deleted);
     }
 
     private void setPasswordResetKey(String key) throws SQLException {
-        final PreparedStatement s =
-                this.dataManager.getConnection().prepareStatement("UPDATE users SET password_reset_key=? WHERE id=?");
-        s.setString(1, key);
-        s.setInt(2, this.id);
-        s.execute();
+        this.dataManager.getQueryExecutor().update("UPDATE users SET password_reset_key=? WHERE id=?", key, this.id);
 
         this.passwordResetKey = key;
     }
 
     private void setPasswordResetTimeout(LocalDateTime timeout) throws SQLException {
-        final PreparedStatement s = this.dataManager.getConnection()
-                .prepareStatement("UPDATE users SET password_reset_timeout=? WHERE id=?");
-        s.setTimestamp(1, Timestamp.valueOf(timeout));
-        s.setInt(2, this.id);
-        s.execute();
+        this.dataManager.getQueryExecutor()
+                .update("UPDATE users SET password_reset_timeout=? WHERE id=?", Timestamp.valueOf(timeout), this.id);
 
         this.passwordResetTimeout = timeout;
     }
 
     /**
-     * Aktualisiert das Datum des letzten Logins auf das gegenwärtige.
+     * Aktualisiert das Datum des letzten Logins auf das gegenwärtige. Die Änderung wird verzögert zusammen mit anderen
+     * geschrieben.
      *
      * @throws SQLException
      */
     public void updateLastLogin() throws SQLException {
-        this.dataManager.getConnection().prepareCall("UPDATE users SET last_login=now() WHERE id=" + this.id).execute();
+        this.dataManager.getWriteBehindQueue().enqueue("UPDATE users SET last_login=? WHERE id=?", this.id,
+                Timestamp.valueOf(LocalDateTime.now()), this.id);
     }
 
     /**
@@ -348,11 +369,11 @@ public class User {
      * @throws SQLException         Wenn beim Laden der Daten ein Fehler auftritt
      */
     private void load() throws NoDataFoundException, SQLException {
-        final ResultSet res =
-                this.dataManager.getConnection().prepareCall("SELECT * FROM users WHERE id=" + this.id).executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
+        final Boolean found = this.dataManager.getQueryExecutor().queryFirst("SELECT * FROM users WHERE id=?", res -> {
             this.load(res);
-        } else {
+            return true;
+        }, this.id);
+        if (found == null) {
             throw new NoDataFoundException(
                     String.format("Der Benutzer '%1s' wurde aus der Datenbank gelöscht.", this.name));
         }
@@ -372,6 +393,7 @@ public class User {
         this.blocked = res.getBoolean(BLOCKED_KEY);
         this.isAdmin = res.getBoolean(IS_ADMIN_KEY);
         this.deleted = res.getBoolean(DELETED_KEY);
+        this.dataManager.getCardIndex().update(this.id, this.cardIds, this.deleted);
         this.password = res.getString(PASSWORD_KEY);
         this.emailNotification = res.getBoolean(EMAIL_NOTIFICATION_KEY);
         this.pushoverUserKey = res.getString(PUSHOVER_USER_KEY_KEY);
@@ -386,43 +408,43 @@ public class User {
         if (ts != null) {
             this.passwordResetTimeout = ts.toLocalDateTime();
         }
-        this.loadCredit();
-
-        this.group = this.dataManager.getUserGroupById(res.getInt("group_id"));
+        // Guthaben und Gruppe bleiben erhalten, bis reload() sie neu lädt. Nur eine geänderte Gruppe wird beim
+        // nächsten Zugriff geladen.
+        final int previousGroupId = this.groupId;
+        this.groupId = res.getInt("group_id");
+        if (this.groupId != previousGroupId) {
+            this.group.invalidate();
+        }
     }
 
     /**
-     * Lädt das Guthaben des Benutzers aus der Datenbank
+     * Lädt das verfügbare Guthaben des Benutzers aus der Datenbank. Das Guthaben wird von der Datenbank mit jeder
+     * Buchung fortgeschrieben, davon werden die Reservierungen laufender Ausführungen abgezogen.
      *
      * @throws SQLException
      */
-    private synchronized void loadCredit() throws SQLException {
-        this.credit = null;
+    private void loadCredit() throws SQLException {
+        this.credit.set(this.queryCredit());
+    }
 
-        ResultSet res = this.dataManager.getConnection()
-                .prepareCall("SELECT SUM(amount) AS credit FROM credit_accounting WHERE user_id=" + this.id)
-                .executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
-            this.credit = res.getBigDecimal(CREDIT_KEY);
-        }
+    private BigDecimal queryCredit() throws SQLException {
+        final BigDecimal credit = this.dataManager.getQueryExecutor()
+                .queryFirst("SELECT COALESCE((SELECT balance FROM user_balances WHERE user_id=?), 0) - " +
+                                "COALESCE((SELECT SUM(amount) FROM credit_holds WHERE user_id=?), 0) AS credit",
+                        res -> res.getBigDecimal(CREDIT_KEY), this.id, this.id);
+        return credit != null ? credit : new BigDecimal("0.00");
+    }
 
-        if (this.credit == null) {
-            this.credit = new BigDecimal("0.00");
-        }
+    private UserGroup loadGroup() throws SQLException {
+        return this.dataManager.getUserGroupById(this.groupId);
+    }
 
-        // Kosten laufender Programme vom Guthaben abziehen
-        res = this.dataManager.getConnection()
-                .prepareCall("SELECT program_id FROM executions WHERE finished=FALSE AND user_id=" + this.id)
-                .executeQuery();
-        while (res.next()) {
-            final Program prog = this.dataManager.getProgramById(res.getInt("program_id"));
-            if (prog == null) {
-                this.logger.error("Invalid entry in the database: Execution #" + res.getInt("id")
-                    + " has no program set.");
-                continue;
-            }
-            this.credit = this.credit.subtract(prog.getPrice(prog.getMaxDuration(), this));
-        }
+    /**
+     * Markiert die Daten des Benutzers samt Guthaben als veraltet, sodass sie beim nächsten Aufruf von
+     * {@link #update()} neu geladen werden.
+     */
+    void invalidate() {
+        this.lastUpdateTime = null;
     }
 
     public int getId() {
@@ -438,7 +460,7 @@ public class User {
     }
 
     public UserGroup getGroup() {
-        return group;
+        return this.group.get();
     }
 
     public String getEmail() {
@@ -446,7 +468,22 @@ public class User {
     }
 
     public BigDecimal getCredit() {
-        return this.credit;
+        return this.credit.get();
+    }
+
+    /**
+     * Gibt das verbuchte Guthaben des Benutzers zu einem vergangenen Zeitpunkt zurück. Die Datenbank rechnet dazu vom
+     * letzten Stützpunkt vor dem Zeitpunkt aus weiter. Reservierungen laufender Programme sind nicht berücksichtigt.
+     *
+     * @param date Der Zeitpunkt
+     * @return Das Guthaben zum gegebenen Zeitpunkt
+     * @throws SQLException Wenn die Abfrage nicht ausgeführt werden kann
+     */
+    public BigDecimal getCreditAt(LocalDateTime date) throws SQLException {
+        final BigDecimal credit = this.dataManager.getQueryExecutor()
+                .queryFirst("SELECT user_balance_at(?, ?) AS credit", res -> res.getBigDecimal(CREDIT_KEY), this.id,
+                        Timestamp.valueOf(date));
+        return credit != null ? credit : new BigDecimal("0.00");
     }
 
     /**
@@ -484,21 +521,18 @@ public class User {
      * @throws SQLException
      */
     public void setDeleted(boolean d) throws SQLException {
-        final PreparedStatement s =
-                this.dataManager.getConnection().prepareStatement("UPDATE users SET deleted=?, username=? WHERE id=?");
-        s.setBoolean(1, d);
         String newUserName;
         if (d) {
             newUserName = "#del" + this.id + "#" + this.username;
         } else {
             newUserName = this.username.replaceFirst("^#del" + this.id + "#", "");
         }
-        s.setString(2, newUserName);
-        s.setInt(3, this.id);
-        s.execute();
+        this.dataManager.getQueryExecutor()
+                .update("UPDATE users SET deleted=?, username=? WHERE id=?", d, newUserName, this.id);
 
         this.deleted = d;
         this.username = newUserName;
+        this.dataManager.getCardIndex().update(this.id, this.cardIds, this.deleted);
     }
 
     public boolean getEmailNotification() {
@@ -517,11 +551,7 @@ public class User {
     }
 
     public void setPushoverUserKey(String key) throws SQLException {
-        final PreparedStatement s =
-                this.dataManager.getConnection().prepareStatement("UPDATE users SET pushover_user_key=? WHERE id=?");
-        s.setString(1, key);
-        s.setInt(2, this.id);
-        s.execute();
+        this.dataManager.getQueryExecutor().update("UPDATE users SET pushover_user_key=? WHERE id=?", key, this.id);
 
         this.pushoverUserKey = key;
     }
@@ -549,15 +579,9 @@ public class User {
      * Setzt die Anbindung zur elwaApp zurück, sodass sich der Benutzer neu registrieren kann.
      */
     public void resetAppConnection() throws SQLException {
-        final PreparedStatement s =
-                this.dataManager.getConnection()
-                        .prepareStatement("UPDATE users SET auth_key=generate_user_authkey() WHERE id=?",
-                                Statement.RETURN_GENERATED_KEYS);
-        s.setInt(1, this.id);
-        s.execute();
-
-        ResultSet res = s.getGeneratedKeys();
-        this.authKey = res.getString(AUTH_KEY_KEY);
+        this.authKey = this.dataManager.getQueryExecutor()
+                .insert("UPDATE users SET auth_key=generate_user_authkey() WHERE id=?",
+                        res -> res.getString(AUTH_KEY_KEY), this.id);
     }
 
     /**
@@ -597,7 +621,7 @@ public class User {
      * @return Ob der Benutzer sich den Preis leisten kann
      */
     public boolean canAfford(BigDecimal price) {
-        return this.credit.compareTo(price) >= 0;
+        return this.getCredit().compareTo(price) >= 0;
     }
 
     /**
@@ -623,21 +647,15 @@ public class User {
      * @throws NoSuchAlgorithmException
      */
     public void changePassword(String value) throws NoSuchAlgorithmException, SQLException {
-        PreparedStatement s =
-                this.dataManager.getConnection().prepareStatement("UPDATE users SET password=? WHERE id=?");
         final String newPwHash = Utilities.sha1(value);
-        s.setString(1, newPwHash);
-        s.setInt(2, this.id);
-        s.execute();
+        this.dataManager.getQueryExecutor().update("UPDATE users SET password=? WHERE id=?", newPwHash, this.id);
         this.password = newPwHash;
 
         // Password-Reset-Key konsumieren
         if (this.passwordResetKey != null) {
             this.passwordResetKey = null;
-            s = this.dataManager.getConnection().prepareStatement("UPDATE users SET password_reset_key=? WHERE ID=?");
-            s.setString(1, null);
-            s.setInt(2, this.id);
-            s.execute();
+            this.dataManager.getQueryExecutor()
+                    .update("UPDATE users SET password_reset_key=NULL WHERE id=?", this.id);
         }
     }
 
@@ -653,19 +671,37 @@ public class User {
                 // A free execution has not to be payed.
                 return;
             }
-            final PreparedStatement s = this.dataManager.getConnection().prepareStatement(
-                    "INSERT INTO credit_accounting (user_id, execution_id, amount, description) VALUES (?, ?, ?, ?)");
-            s.setInt(1, this.id);
-            s.setInt(2, e.getId());
-            s.setBigDecimal(3, e.getPrice().negate());
-            s.setString(4, e.getProgram().getName() + " auf " + e.getDevice().getName() + " (" +
-                    e.getDevice().getLocation().getName() + ") bezahlt von " + this.name + ".");
-            s.execute();
+            if (e.getId() < 0) {
+                // Ausführung ohne Datenbank: Die Zahlung wird später aus dem Journal nachgetragen
+                if (e.getJournal() != null) {
+                    try {
+                        // Ohne Datenbank lässt sich ein noch nicht geladener Standort nicht nachladen
+                        e.getJournal().payment(this, e, e.getPrice(),
+                                this.getPaymentDescription(e, e.getDevice().getKnownLocation()));
+                    } catch (final IOException ex) {
+                        throw new SQLException("Could not record the payment of an offline execution.", ex);
+                    }
+                }
+                if (this.credit.isLoaded()) {
+                    // Bis zum Nachtragen rechnet der Client mit dem verminderten Guthaben weiter
+                    this.credit.set(this.getCredit().subtract(e.getPrice()));
+                }
+                return;
+            }
+            this.dataManager.getQueryExecutor().update(
+                    "INSERT INTO credit_accounting (user_id, execution_id, amount, description) VALUES (?, ?, ?, ?)",
+                    this.id, e.getId(), e.getPrice().negate(),
+                    this.getPaymentDescription(e, e.getDevice().getLocation()));
 
             this.loadCredit();
         }
     }
 
+    private String getPaymentDescription(Execution e, Location location) {
+        return e.getProgram().getName() + " auf " + e.getDevice().getName() +
+                (location != null ? " (" + location.getName() + ")" : "") + " bezahlt von " + this.name + ".";
+    }
+
     /**
      * Einzahlung auf das Konto des Benutzers
      *
@@ -677,12 +713,9 @@ public class User {
     }
 
     public void inpayment(BigDecimal amount, String text) throws SQLException {
-        final PreparedStatement s = this.dataManager.getConnection()
-                .prepareStatement("INSERT INTO credit_accounting (user_id, amount, description) VALUES (?, ?, ?)");
-        s.setInt(1, this.id);
-        s.setBigDecimal(2, amount);
-        s.setString(3, text);
-        s.execute();
+        this.dataManager.getQueryExecutor()
+                .update("INSERT INTO credit_accounting (user_id, amount, description) VALUES (?, ?, ?)", this.id,
+                        amount, text);
         this.loadCredit();
     }
 
@@ -698,16 +731,13 @@ public class User {
     }
 
     public void payout(BigDecimal amount, String text) throws SQLException, NotEnoughCreditException {
-        if (this.credit.compareTo(amount) < 0) {
+        if (this.getCredit().compareTo(amount) < 0) {
             // Guthaben reicht zum Auszahlen nicht aus.
             throw new NotEnoughCreditException();
         }
-        final PreparedStatement s = this.dataManager.getConnection()
-                .prepareStatement("INSERT INTO credit_accounting (user_id, amount, description) VALUES (?, ?, ?)");
-        s.setInt(1, this.id);
-        s.setBigDecimal(2, amount.negate());
-        s.setString(3, text);
-        s.execute();
+        this.dataManager.getQueryExecutor()
+                .update("INSERT INTO credit_accounting (user_id, amount, description) VALUES (?, ?, ?)", this.id,
+                        amount.negate(), text);
         this.loadCredit();
     }
 
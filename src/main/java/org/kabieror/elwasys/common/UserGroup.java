@@ -3,15 +3,15 @@ package org.kabieror.elwasys.common;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.PreparedStatement;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Vector;
 
 /**
  * Eine Benutzergruppe
@@ -46,10 +46,10 @@ public class UserGroup {
      * Gibt den Faktor an, mit dem jeder zu zahlende Preis multipliziert wird
      */
     private double discountValue;
-    private LocalDateTime lastUpdateTime;
-    private LocalDateTime lastLocationsUpdateTime;
-    private LocalDateTime lastDevicesUpdateTime;
-    private LocalDateTime lastProgramsUpdateTime;
+    private volatile LocalDateTime lastUpdateTime;
+    private volatile LocalDateTime lastLocationsUpdateTime;
+    private volatile LocalDateTime lastDevicesUpdateTime;
+    private volatile LocalDateTime lastProgramsUpdateTime;
 
     /**
      * Lädt eine Benutzergruppe mit Daten aus der Datenbank.
@@ -66,6 +66,24 @@ public class UserGroup {
         this.load(res);
     }
 
+    /**
+     * Liest eine Benutzergruppe aus einer Momentaufnahme für den Warmstart.
+     *
+     * @param dataManager Der Datenmanager
+     * @param in          Die Momentaufnahme, an deren aktueller Stelle die Gruppe steht
+     */
+    UserGroup(DataManager dataManager, DataInputStream in) throws IOException {
+        this.dataManager = dataManager;
+        this.id = in.readInt();
+        this.validLocations = new ArrayList<>();
+        this.validDevices = new ArrayList<>();
+        this.validPrograms = new ArrayList<>();
+        this.name = WarmStartSnapshot.readString(in);
+        this.discountType = DiscountType.valueOf(in.readUTF());
+        this.discountValue = in.readDouble();
+        this.lastUpdateTime = LocalDateTime.now();
+    }
+
     /**
      * Lädt eine Benutzergruppe anhand ihrer ID aus der Datenbank.
      */
@@ -93,38 +111,24 @@ public class UserGroup {
         this.discountType = discountType;
         this.discountValue = discountValue;
 
-        final PreparedStatement s = dataManager.getConnection().prepareStatement(
-                "INSERT INTO user_groups (name, discount_type, discount_value) VALUES " + "(?, ?::DISCOUNT_TYPE, ?)",
-                Statement.RETURN_GENERATED_KEYS);
-        int i = 1;
-        s.setString(i++, name);
-        switch (discountType) {
-            case Factor:
-                s.setString(i++, "FACTOR");
-                break;
-            case Fix:
-                s.setString(i++, "FIX");
-                break;
-            default:
-                s.setString(i++, "NONE");
-                break;
-        }
-        s.setDouble(i++, discountValue);
-        s.executeUpdate();
-
-        final ResultSet res = s.getGeneratedKeys();
-        if (res.next()) {
-            this.id = res.getInt(1);
-        } else {
-            throw new SQLException("No ID received by database.");
-        }
+        this.id = this.dataManager.getQueryExecutor()
+                .insert("INSERT INTO user_groups (name, discount_type, discount_value) VALUES (?, ?::DISCOUNT_TYPE, ?)",
+                        name, this.getDiscountTypeString(discountType), discountValue);
     }
 
     /**
      * Erzeugt eine Benutzergruppe ohne anbindung zur Datenbank.
      */
     UserGroup(String name, DiscountType discountType, double discountValue) {
-        this.id = 0;
+        this(0, name, discountType, discountValue);
+    }
+
+    /**
+     * Erzeugt eine Kopie einer gespeicherten Benutzergruppe ohne Anbindung zur Datenbank, z.B. für die Autorisierung
+     * ohne Verbindung zur Datenbank.
+     */
+    UserGroup(int id, String name, DiscountType discountType, double discountValue) {
+        this.id = id;
         this.dataManager = null;
 
         this.validLocations = new ArrayList<>();
@@ -144,24 +148,9 @@ public class UserGroup {
      * @param discountValue Der neue Rabattierungswert der Benutzergruppe.
      */
     public void modify(String name, DiscountType discountType, double discountValue) throws SQLException {
-        final PreparedStatement s = this.dataManager.getConnection().prepareStatement(
-                "UPDATE user_groups SET name=?, discount_type=?::DISCOUNT_TYPE, discount_value=? WHERE id=?");
-        int i = 1;
-        s.setString(i++, name);
-        switch (discountType) {
-            case Factor:
-                s.setString(i++, "FACTOR");
-                break;
-            case Fix:
-                s.setString(i++, "FIX");
-                break;
-            default:
-                s.setString(i++, "NONE");
-                break;
-        }
-        s.setDouble(i++, discountValue);
-        s.setInt(i++, this.id);
-        s.execute();
+        this.dataManager.getQueryExecutor()
+                .update("UPDATE user_groups SET name=?, discount_type=?::DISCOUNT_TYPE, discount_value=? WHERE id=?",
+                        name, this.getDiscountTypeString(discountType), discountValue, this.id);
 
         this.name = name;
         this.discountType = discountType;
@@ -172,10 +161,12 @@ public class UserGroup {
      * Löscht die Benutzergruppe aus der Datenbank.
      */
     public void delete() throws SQLException {
-        this.dataManager.getConnection().prepareCall(String.format(
-                "UPDATE users SET group_id=(SELECT id FROM user_groups WHERE id<>%d LIMIT 1) WHERE group_id=%d",
-                this.id, this.id)).execute();
-        this.dataManager.getConnection().prepareCall("DELETE FROM user_groups WHERE id=" + this.id).execute();
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            work.update("UPDATE users SET group_id=(SELECT id FROM user_groups WHERE id<>? LIMIT 1) WHERE group_id=?",
+                    this.id, this.id);
+            work.update("DELETE FROM user_groups WHERE id=?", this.id);
+            work.commit();
+        }
     }
 
     /**
@@ -184,10 +175,17 @@ public class UserGroup {
     public void update() throws NoDataFoundException, SQLException {
         // Only update after some time again
         if (this.lastUpdateTime != null &&
-                Duration.between(this.lastUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(UserGroup.class)).isNegative()) {
             return;
         }
+        this.reload();
+    }
+
+    /**
+     * Liest die Benutzergruppe sofort neu aus der Datenbank
+     */
+    void reload() throws NoDataFoundException, SQLException {
         this.lastUpdateTime = LocalDateTime.now();
 
         this.load();
@@ -209,12 +207,12 @@ public class UserGroup {
      * @throws SQLException         Wenn beim Laden der Daten ein Fehler auftritt
      */
     private void load() throws NoDataFoundException, SQLException {
-        final ResultSet res =
-                this.dataManager.getConnection().prepareCall("SELECT * FROM user_groups WHERE id=" + this.id)
-                        .executeQuery();
-        if (res.isBeforeFirst() && res.next()) {
-            this.load(res);
-        } else {
+        final Boolean found = this.dataManager.getQueryExecutor()
+                .queryFirst("SELECT * FROM user_groups WHERE id=?", res -> {
+                    this.load(res);
+                    return true;
+                }, this.id);
+        if (found == null) {
             throw new NoDataFoundException(
                     String.format("Die Benutzergruppe '%1s' wurde aus der Datenbank gelöscht.", this.name));
         }
@@ -228,19 +226,56 @@ public class UserGroup {
      */
     private void load(ResultSet res) throws SQLException {
         this.name = res.getString("name");
-        String dt = res.getString("discount_type");
+        this.discountType = toDiscountType(res.getString("discount_type"));
+        this.discountValue = res.getDouble("discount_value");
+    }
+
+    /**
+     * Schreibt die Gruppe in eine Momentaufnahme für den Warmstart.
+     */
+    void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(this.id);
+        WarmStartSnapshot.writeString(out, this.name);
+        out.writeUTF(this.discountType.name());
+        out.writeDouble(this.discountValue);
+    }
+
+    /**
+     * Gibt den Rabattierungstyp zu seinem Namen in der Datenbank zurück.
+     */
+    static DiscountType toDiscountType(String dt) {
         switch (dt) {
             case "FIX":
-                this.discountType = DiscountType.Fix;
-                break;
+                return DiscountType.Fix;
             case "FACTOR":
-                this.discountType = DiscountType.Factor;
-                break;
+                return DiscountType.Factor;
             default:
-                this.discountType = DiscountType.None;
-                break;
+                return DiscountType.None;
         }
-        this.discountValue = res.getDouble("discount_value");
+    }
+
+    /**
+     * Gibt die Repräsentation eines Rabattierungstyps in der Datenbank zurück
+     */
+    private String getDiscountTypeString(DiscountType discountType) {
+        switch (discountType) {
+            case Factor:
+                return "FACTOR";
+            case Fix:
+                return "FIX";
+            default:
+                return "NONE";
+        }
+    }
+
+    /**
+     * Markiert die Daten der Benutzergruppe und ihre Zuordnungen zu Standorten, Geräten und Programmen als veraltet.
+     */
+    void invalidate() {
+        this.lastUpdateTime = null;
+        this.lastLocationsUpdateTime = null;
+        this.lastDevicesUpdateTime = null;
+        this.lastProgramsUpdateTime = null;
     }
 
     public int getId() {
@@ -262,147 +297,88 @@ public class UserGroup {
     public List<Location> getValidLocations() throws SQLException {
         // Only update after some time again
         if (this.lastLocationsUpdateTime != null &&
-                Duration.between(this.lastLocationsUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastLocationsUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(UserGroup.class)).isNegative()) {
             return this.validLocations;
         }
         this.lastLocationsUpdateTime = LocalDateTime.now();
 
-        ResultSet res = this.dataManager.getConnection().prepareCall(
-                "SELECT * FROM locations_valid_user_groups val LEFT JOIN locations loc ON loc.id=val.location_id " +
-                        "WHERE val.group_id=" + this.id).executeQuery();
+        final List<Location> valid = this.dataManager.getQueryExecutor()
+                .query("SELECT * FROM locations_valid_user_groups val LEFT JOIN locations loc " +
+                        "ON loc.id=val.location_id WHERE val.group_id=?", this.dataManager::getLocation, this.id);
         this.validLocations.clear();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                this.validLocations.add(this.dataManager.getLocation(res));
-            }
-        }
+        this.validLocations.addAll(valid);
         return this.validLocations;
     }
 
     public void setValidLocations(List<Location> valid) throws SQLException {
-        final List<Location> skippedLocations = new Vector<>();
-        final int oldLocationsCount = this.validLocations.size();
-        for (final Location l : valid) {
-            if (this.validLocations.contains(l)) {
-                skippedLocations.add(l);
-                continue;
-            }
-            this.dataManager.getConnection().prepareCall(
-                    "INSERT INTO locations_valid_user_groups (location_id, group_id) VALUES (" + l.getId() + ", " +
-                            this.id + ")").execute();
-            this.validLocations.add(l);
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            work.replaceRelation("locations_valid_user_groups", "group_id", this.id, "location_id",
+                    this.validLocations, valid, Location::getId);
+            work.commit();
         }
 
-        if (oldLocationsCount > skippedLocations.size()) {
-            // Look for deleted items
-            for (int i = 0; i < this.validLocations.size(); i++) {
-                if (!valid.contains(this.validLocations.get(i))) {
-                    this.dataManager.getConnection().prepareCall(
-                            "DELETE FROM locations_valid_user_groups WHERE location_id=" +
-                                    this.validLocations.get(i).getId() + " AND group_id=" + this.id).execute();
-                    this.validLocations.remove(i);
-                    i--;
-                }
-            }
-        }
+        // Die übergebene Liste kann die eigene sein
+        final List<Location> updated = new ArrayList<>(valid);
+        this.validLocations.clear();
+        this.validLocations.addAll(updated);
     }
 
     public List<Device> getValidDevices() throws SQLException {
         // Only update after some time again
         if (this.lastDevicesUpdateTime != null &&
-                Duration.between(this.lastDevicesUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastDevicesUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(UserGroup.class)).isNegative()) {
             return this.validDevices;
         }
         this.lastDevicesUpdateTime = LocalDateTime.now();
 
-        ResultSet res = this.dataManager.getConnection().prepareCall(
-                "SELECT * FROM devices_valid_user_groups val LEFT JOIN devices dev ON dev.id=val.device_id WHERE val" +
-                        ".group_id=" + this.id).executeQuery();
+        final List<Device> valid = this.dataManager.getQueryExecutor()
+                .query("SELECT * FROM devices_valid_user_groups val LEFT JOIN devices dev " +
+                        "ON dev.id=val.device_id WHERE val.group_id=?", this.dataManager::getDevice, this.id);
         this.validDevices.clear();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                this.validDevices.add(this.dataManager.getDevice(res));
-            }
-        }
+        this.validDevices.addAll(valid);
         return this.validDevices;
     }
 
     public void setValidDevices(List<Device> valid) throws SQLException {
-        final List<Device> skippedDevices = new Vector<>();
-        final int oldDevicesCount = this.validDevices.size();
-        for (final Device d : valid) {
-            if (this.validDevices.contains(d)) {
-                skippedDevices.add(d);
-                continue;
-            }
-            this.dataManager.getConnection().prepareCall(
-                    "INSERT INTO devices_valid_user_groups (device_id, group_id) VALUES (" + d.getId() + ", " +
-                            this.id + ")").execute();
-            this.validDevices.add(d);
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            work.replaceRelation("devices_valid_user_groups", "group_id", this.id, "device_id",
+                    this.validDevices, valid, Device::getId);
+            work.commit();
         }
 
-        if (oldDevicesCount > skippedDevices.size()) {
-            // Look for deleted items
-            for (int i = 0; i < this.validDevices.size(); i++) {
-                if (!valid.contains(this.validDevices.get(i))) {
-                    this.dataManager.getConnection().prepareCall(
-                            "DELETE FROM devices_valid_user_groups WHERE device_id=" +
-                                    this.validDevices.get(i).getId() + " AND group_id=" + this.id).execute();
-                    this.validDevices.remove(i);
-                    i--;
-                }
-            }
-        }
+        final List<Device> updated = new ArrayList<>(valid);
+        this.validDevices.clear();
+        this.validDevices.addAll(updated);
     }
 
     public List<Program> getValidPrograms() throws SQLException {
         // Only update after some time again
         if (this.lastProgramsUpdateTime != null &&
-                Duration.between(this.lastProgramsUpdateTime, LocalDateTime.now()).minus(DataManager.UPDATE_DELAY)
-                        .isNegative()) {
+                Duration.between(this.lastProgramsUpdateTime, LocalDateTime.now())
+                        .minus(this.dataManager.getUpdateDelay(UserGroup.class)).isNegative()) {
             return this.validPrograms;
         }
         this.lastProgramsUpdateTime = LocalDateTime.now();
 
-        ResultSet res = this.dataManager.getConnection().prepareCall(
-                "SELECT * FROM programs_valid_user_groups val LEFT JOIN programs pro ON pro.id=val.program_id WHERE " +
-                        "val.group_id=" + this.id).executeQuery();
+        final List<Program> valid = this.dataManager.getQueryExecutor()
+                .query("SELECT * FROM programs_valid_user_groups val LEFT JOIN programs pro " +
+                        "ON pro.id=val.program_id WHERE val.group_id=?", this.dataManager::getProgram, this.id);
         this.validPrograms.clear();
-        if (res.isBeforeFirst()) {
-            while (res.next()) {
-                this.validPrograms.add(this.dataManager.getProgram(res));
-            }
-        }
+        this.validPrograms.addAll(valid);
         return this.validPrograms;
     }
 
     public void setValidPrograms(List<Program> valid) throws SQLException {
-        final List<Program> skippedPrograms = new Vector<>();
-        final int oldProgramsCount = this.validPrograms.size();
-        for (final Program p : valid) {
-            if (this.validPrograms.contains(p)) {
-                skippedPrograms.add(p);
-                continue;
-            }
-            this.dataManager.getConnection().prepareCall(
-                    "INSERT INTO programs_valid_user_groups (program_id, group_id) VALUES (" + p.getId() + ", " +
-                            this.id + ")").execute();
-            this.validPrograms.add(p);
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            work.replaceRelation("programs_valid_user_groups", "group_id", this.id, "program_id",
+                    this.validPrograms, valid, Program::getId);
+            work.commit();
         }
 
-        if (oldProgramsCount > skippedPrograms.size()) {
-            // Look for deleted items
-            for (int i = 0; i < this.validPrograms.size(); i++) {
-                if (!valid.contains(this.validPrograms.get(i))) {
-                    this.dataManager.getConnection().prepareCall(
-                            "DELETE FROM programs_valid_user_groups WHERE program_id=" +
-                                    this.validPrograms.get(i).getId() + " AND group_id=" + this.id).execute();
-                    this.validPrograms.remove(i);
-                    i--;
-                }
-            }
-        }
+        final List<Program> updated = new ArrayList<>(valid);
+        this.validPrograms.clear();
+        this.validPrograms.addAll(updated);
     }
 }
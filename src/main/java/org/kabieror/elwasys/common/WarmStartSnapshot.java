@@ -0,0 +1,191 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Bewahrt Standorte, Benutzergruppen, Programme und Geräte aus den Zwischenspeichern des {@link DataManager} in einer
+ * Datei auf, damit ein Client sie beim nächsten Start sofort verwenden kann, statt sie erst mit vielen Abfragen neu
+ * aufzubauen.
+ * <p>
+ * Die Datei beginnt mit einer Kennung und der Version des Formats. Passt eines davon nicht, so wird sie ignoriert und
+ * beim nächsten Speichern ersetzt. Jedes Objekt schreibt seine Felder selbst, Beziehungen zu anderen Objekten werden
+ * als IDs abgelegt, und zwar nur, wenn sie bereits geladen waren. Beim Lesen werden zuerst die Gruppen, dann Standorte
+ * und Programme und zuletzt die Geräte erzeugt, sodass die Beziehungen ohne Datenbank aufgelöst werden können.
+ * Geschrieben wird zunächst in eine temporäre Datei, die dann die bisherige ersetzt.
+ *
+ * @author Oliver Kabierschke
+ */
+class WarmStartSnapshot {
+
+    /**
+     * "ELWA"
+     */
+    private static final int MAGIC = 0x454c5741;
+
+    /**
+     * Muss erhöht werden, sobald sich die geschriebenen Felder eines Objekts ändern
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final File file;
+
+    WarmStartSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Schreibt die gegebenen Objekte in die Datei.
+     */
+    synchronized void save(Collection<UserGroup> groups, Collection<Location> locations, Collection<Program> programs,
+                           Collection<Device> devices) throws IOException {
+        final File tmp = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(groups.size());
+            for (final UserGroup g : groups) {
+                g.writeSnapshot(out);
+            }
+            out.writeInt(locations.size());
+            for (final Location l : locations) {
+                l.writeSnapshot(out);
+            }
+            out.writeInt(programs.size());
+            for (final Program p : programs) {
+                p.writeSnapshot(out);
+            }
+            out.writeInt(devices.size());
+            for (final Device d : devices) {
+                d.writeSnapshot(out);
+            }
+        }
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Liest die Objekte aus der Datei.
+     *
+     * @param dataManager Der Datenmanager, an den die gelesenen Objekte angebunden werden
+     * @return Die gelesenen Objekte, oder null, wenn keine lesbare Datei im aktuellen Format vorliegt
+     */
+    synchronized Contents load(DataManager dataManager) {
+        if (!this.file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                this.logger.info("Ignoring the warm start snapshot " + this.file + " of another format version.");
+                return null;
+            }
+            final Contents contents = new Contents();
+            for (int i = in.readInt(); i > 0; i--) {
+                final UserGroup g = new UserGroup(dataManager, in);
+                contents.groups.put(g.getId(), g);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final Location l = new Location(dataManager, in, contents.groups);
+                contents.locations.put(l.getId(), l);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final Program p = new Program(dataManager, in, contents.groups);
+                contents.programs.put(p.getId(), p);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                final Device d = new Device(dataManager, in, contents.locations, contents.programs, contents.groups);
+                contents.devices.put(d.getId(), d);
+            }
+            return contents;
+        } catch (final IOException | IllegalArgumentException e) {
+            this.logger.warn("Could not read the warm start snapshot " + this.file + ".", e);
+            return null;
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeDecimal(DataOutputStream out, BigDecimal value) throws IOException {
+        writeString(out, value != null ? value.toPlainString() : null);
+    }
+
+    static BigDecimal readDecimal(DataInputStream in) throws IOException {
+        final String value = readString(in);
+        return value != null ? new BigDecimal(value) : null;
+    }
+
+    /**
+     * Schreibt die IDs der Objekte einer Beziehung, oder -1, wenn die Beziehung nicht geladen ist.
+     */
+    static <T> void writeRelation(DataOutputStream out, Lazy<List<T>> relation, ToIntFunction<T> id)
+            throws IOException {
+        if (!relation.isLoaded()) {
+            out.writeInt(-1);
+            return;
+        }
+        final List<T> members = new ArrayList<>(relation.get());
+        out.writeInt(members.size());
+        for (final T member : members) {
+            out.writeInt(id.applyAsInt(member));
+        }
+    }
+
+    /**
+     * Liest eine mit {@link #writeRelation(DataOutputStream, Lazy, ToIntFunction)} geschriebene Beziehung und setzt
+     * sie, sofern sie geschrieben wurde. IDs, deren Objekte nicht in der Datei stehen, werden übergangen.
+     */
+    static <T> void readRelation(DataInputStream in, Lazy<List<T>> relation, Map<Integer, T> known)
+            throws IOException {
+        final int size = in.readInt();
+        if (size < 0) {
+            return;
+        }
+        final List<T> members = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            final T member = known.get(in.readInt());
+            if (member != null) {
+                members.add(member);
+            }
+        }
+        relation.set(members);
+    }
+
+    /**
+     * Die aus der Datei gelesenen Objekte je ID
+     */
+    static class Contents {
+        final Map<Integer, UserGroup> groups = new HashMap<>();
+        final Map<Integer, Location> locations = new HashMap<>();
+        final Map<Integer, Program> programs = new HashMap<>();
+        final Map<Integer, Device> devices = new HashMap<>();
+    }
+}
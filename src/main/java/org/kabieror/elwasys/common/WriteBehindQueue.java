@@ -0,0 +1,153 @@
+package org.kabieror.elwasys.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schreibt unkritische Änderungen verzögert und gesammelt in die Datenbank, z.B. den Zeitpunkt des letzten Logins oder
+ * das regelmäßige Lebenszeichen eines Clients.
+ * <p>
+ * Änderungen werden je Anweisung und Datensatz vorgemerkt. Wird derselbe Datensatz vor dem nächsten Schreiben erneut
+ * geändert, so ersetzt der neue Wert den alten, sodass je Datensatz nur eine Anweisung gesendet wird. In festen
+ * Abständen werden alle vorgemerkten Änderungen in einer Transaktion als Batch geschrieben, beim Beenden ein letztes
+ * Mal. Schlägt das Schreiben fehl, so bleiben die Änderungen für den nächsten Versuch vorgemerkt, sofern sie nicht
+ * inzwischen durch neuere ersetzt wurden.
+ *
+ * @author Oliver Kabierschke
+ */
+class WriteBehindQueue {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final DataManager dataManager;
+
+    /**
+     * Die vorgemerkten Änderungen, je Anweisung und Datensatz nur die neueste
+     */
+    private final Map<Key, Object[]> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Schreibt die vorgemerkten Änderungen in regelmäßigen Abständen, oder null, wenn sofort geschrieben wird
+     */
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * @param interval Der Abstand zwischen zwei Schreibvorgängen. Bei 0 wird jede Änderung sofort geschrieben.
+     */
+    WriteBehindQueue(DataManager dataManager, Duration interval) {
+        this.dataManager = dataManager;
+        if (interval.isZero() || interval.isNegative()) {
+            this.flusher = null;
+        } else {
+            this.flusher = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("elwasys-write-behind"));
+            this.flusher.scheduleWithFixedDelay(this::flushQuietly, interval.toMillis(), interval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Merkt eine Änderung an einem Datensatz vor. Eine noch nicht geschriebene Änderung desselben Datensatzes mit
+     * derselben Anweisung wird dabei ersetzt.
+     *
+     * @param sql    Die Anweisung mit Platzhaltern
+     * @param id     Die ID des geänderten Datensatzes
+     * @param params Die Werte der Platzhalter
+     * @throws SQLException Wenn die Änderung sofort geschrieben wird und dabei ein Fehler auftritt
+     */
+    void enqueue(String sql, int id, Object... params) throws SQLException {
+        if (this.flusher == null) {
+            this.dataManager.getQueryExecutor().update(sql, params);
+            return;
+        }
+        this.pending.put(new Key(sql, id), params);
+    }
+
+    /**
+     * Schreibt alle vorgemerkten Änderungen in einer Transaktion.
+     */
+    synchronized void flush() throws SQLException {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        final List<Map.Entry<Key, Object[]>> taken = new ArrayList<>();
+        for (final Key key : this.pending.keySet()) {
+            final Object[] params = this.pending.remove(key);
+            if (params != null) {
+                taken.add(new AbstractMap.SimpleEntry<>(key, params));
+            }
+        }
+        try (UnitOfWork work = this.dataManager.beginUnitOfWork()) {
+            for (final Map.Entry<Key, Object[]> entry : taken) {
+                work.batch(entry.getKey().sql, entry.getValue());
+            }
+            work.commit();
+        } catch (final SQLException e) {
+            // Für den nächsten Versuch aufheben, sofern nicht inzwischen Neueres vorgemerkt wurde
+            for (final Map.Entry<Key, Object[]> entry : taken) {
+                this.pending.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Beendet das regelmäßige Schreiben und schreibt die noch vorgemerkten Änderungen.
+     */
+    void shutdown() {
+        if (this.flusher != null) {
+            this.flusher.shutdown();
+            try {
+                this.flusher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.flushQuietly();
+    }
+
+    private void flushQuietly() {
+        try {
+            this.flush();
+        } catch (final SQLException e) {
+            this.logger.warn("Could not write " + this.pending.size() + " deferred changes to the database.", e);
+        }
+    }
+
+    /**
+     * Kennzeichnet eine Anweisung an einem bestimmten Datensatz
+     */
+    private static class Key {
+        private final String sql;
+        private final int id;
+
+        private Key(String sql, int id) {
+            this.sql = sql;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return this.id == other.id && this.sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.sql.hashCode() + this.id;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.kabieror.elwasys.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+
+/**
+ * @author Oliver Kabierschke
+ */
+public class CardIndexTest {
+
+    private final CardIndex index = new CardIndex();
+
+    @Test
+    public void testResolvesCards() {
+        this.index.update(1, new String[]{"A1", "A2"}, false);
+
+        Assert.assertEquals(Integer.valueOf(1), this.index.getUserId("A1"));
+        Assert.assertEquals(Integer.valueOf(1), this.index.getUserId("A2"));
+        Assert.assertNull(this.index.getUserId("B1"));
+    }
+
+    @Test
+    public void testUpdateReplacesCards() {
+        this.index.update(1, new String[]{"A1", "A2"}, false);
+
+        this.index.update(1, new String[]{"A2", ""}, false);
+
+        Assert.assertNull(this.index.getUserId("A1"));
+        Assert.assertEquals(Integer.valueOf(1), this.index.getUserId("A2"));
+        Assert.assertNull(this.index.getUserId(""));
+    }
+
+    @Test
+    public void testDeletedUserIsRemoved() {
+        this.index.update(1, new String[]{"A1"}, false);
+
+        this.index.update(1, new String[]{"A1"}, true);
+
+        Assert.assertNull(this.index.getUserId("A1"));
+    }
+
+    @Test
+    public void testRemovingUserKeepsReassignedCard() {
+        this.index.update(1, new String[]{"A1"}, false);
+        this.index.update(2, new String[]{"A1"}, false);
+
+        this.index.removeUser(1);
+
+        Assert.assertEquals(Integer.valueOf(2), this.index.getUserId("A1"));
+    }
+
+    @Test
+    public void testUnknownCardIsRemembered() {
+        Assert.assertFalse(this.index.isKnownUnknown("X1"));
+
+        this.index.putUnknown("X1", Duration.ofMinutes(1));
+
+        Assert.assertTrue(this.index.isKnownUnknown("X1"));
+        Assert.assertFalse(this.index.isKnownUnknown("X2"));
+    }
+
+    @Test
+    public void testUnknownCardExpires() throws InterruptedException {
+        this.index.putUnknown("X1", Duration.ofMillis(10));
+
+        Thread.sleep(20);
+
+        Assert.assertFalse(this.index.isKnownUnknown("X1"));
+    }
+
+    @Test
+    public void testAssignedCardIsNoLongerUnknown() {
+        this.index.putUnknown("X1", Duration.ofMinutes(1));
+
+        this.index.update(1, new String[]{"X1"}, false);
+
+        Assert.assertFalse(this.index.isKnownUnknown("X1"));
+        Assert.assertEquals(Integer.valueOf(1), this.index.getUserId("X1"));
+    }
+
+    @Test
+    public void testClearUnknown() {
+        this.index.putUnknown("X1", Duration.ofMinutes(1));
+        this.index.update(1, new String[]{"A1"}, false);
+
+        this.index.clearUnknown();
+
+        Assert.assertFalse(this.index.isKnownUnknown("X1"));
+        Assert.assertEquals(Integer.valueOf(1), this.index.getUserId("A1"));
+    }
+}
@@ -0,0 +1,52 @@
+package org.kabieror.elwasys.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+
+/**
+ * @author Oliver Kabierschke
+ */
+public class ColumnChangesTest {
+
+    @Test
+    public void testUnchangedColumnsAreSkipped() {
+        final ColumnChanges changes = new ColumnChanges()
+                .set("name", "Waschmaschine", "Waschmaschine")
+                .set("position", 1, 1)
+                .set("deleted", null, null);
+
+        Assert.assertTrue(changes.isEmpty());
+    }
+
+    @Test
+    public void testChangedColumnIsRecorded() {
+        Assert.assertFalse(new ColumnChanges().set("name", "Waschmaschine", "Trockner").isEmpty());
+        Assert.assertFalse(new ColumnChanges().set("name", null, "Trockner").isEmpty());
+        Assert.assertFalse(new ColumnChanges().set("name", "Waschmaschine", null).isEmpty());
+    }
+
+    @Test
+    public void testDecimalsAreComparedByValue() {
+        Assert.assertTrue(new ColumnChanges().set("price", new BigDecimal("1.0"), new BigDecimal("1.00")).isEmpty());
+        Assert.assertFalse(new ColumnChanges().set("price", new BigDecimal("1.00"), new BigDecimal("1.01")).isEmpty());
+    }
+
+    @Test
+    public void testPlaceholderDoesNotAffectComparison() {
+        Assert.assertTrue(new ColumnChanges().set("type", "?::PROGRAM_TYPE", "FIXED", "FIXED").isEmpty());
+        Assert.assertFalse(new ColumnChanges().set("type", "?::PROGRAM_TYPE", "FIXED", "DYNAMIC").isEmpty());
+    }
+
+    @Test
+    public void testSeconds() {
+        Assert.assertNull(ColumnChanges.seconds(null));
+        Assert.assertEquals(Integer.valueOf(90), ColumnChanges.seconds(Duration.ofSeconds(90, 500000000)));
+        // Bruchteile von Sekunden werden nicht gespeichert und ergeben daher keine Änderung
+        final Integer current = ColumnChanges.seconds(Duration.ofMinutes(1));
+        final Integer value = ColumnChanges.seconds(Duration.ofMillis(60400));
+        Assert.assertTrue(new ColumnChanges().set("max_duration", current, value).isEmpty());
+    }
+}
@@ -0,0 +1,73 @@
+package org.kabieror.elwasys.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Oliver Kabierschke
+ */
+public class ExecutionQueryTest {
+
+    private static final LocalDateTime FROM = LocalDateTime.of(2016, 3, 1, 0, 0);
+    private static final LocalDateTime UNTIL = LocalDateTime.of(2016, 4, 1, 0, 0);
+
+    @Test
+    public void testEmptyQuery() {
+        final List<Object> params = new ArrayList<>();
+
+        final String condition = new ExecutionQuery().toCondition(params);
+
+        Assert.assertEquals("WHERE start IS NOT NULL ORDER BY start DESC, id DESC", condition);
+        Assert.assertEquals(Collections.emptyList(), params);
+    }
+
+    @Test
+    public void testFilters() {
+        final User user = new User(7, "Max", new UserGroup(1, "Studenten", DiscountType.None, 0), BigDecimal.ZERO,
+                new String[0], false);
+        final List<Object> params = new ArrayList<>();
+
+        final String condition = new ExecutionQuery().user(user).finished(true).startedBetween(FROM, UNTIL)
+                .toCondition(params);
+
+        Assert.assertEquals("WHERE start IS NOT NULL AND user_id=? AND finished=? AND start>=? AND start<? " +
+                "ORDER BY start DESC, id DESC", condition);
+        Assert.assertEquals(Arrays.asList(7, true, Timestamp.valueOf(FROM), Timestamp.valueOf(UNTIL)), params);
+    }
+
+    @Test
+    public void testOpenPeriod() {
+        final List<Object> params = new ArrayList<>();
+
+        final String condition = new ExecutionQuery().startedBetween(FROM, null).toCondition(params);
+
+        Assert.assertEquals("WHERE start IS NOT NULL AND start>=? ORDER BY start DESC, id DESC", condition);
+        Assert.assertEquals(Collections.singletonList(Timestamp.valueOf(FROM)), params);
+    }
+
+    @Test
+    public void testPaging() throws SQLException {
+        final Execution last = new Execution(null, 42, null, null, null, Timestamp.valueOf(FROM), null, true);
+        final List<Object> params = new ArrayList<>();
+
+        final String condition = new ExecutionQuery().finished(false).after(last).limit(50).toCondition(params);
+
+        Assert.assertEquals("WHERE start IS NOT NULL AND finished=? AND (start, id) < (?, ?) " +
+                "ORDER BY start DESC, id DESC LIMIT ?", condition);
+        Assert.assertEquals(Arrays.asList(false, Timestamp.valueOf(FROM), 42, 50), params);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCannotContinueAfterUnstartedExecution() throws SQLException {
+        new ExecutionQuery().after(new Execution(null, 42, null, null, null, null, null, false));
+    }
+}
@@ -0,0 +1,170 @@
+package org.kabieror.elwasys.common;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Oliver Kabierschke
+ */
+public class IdentityMapTest {
+
+    private static final int MAXIMUM_SIZE = 10;
+
+    private CacheRefresher refresher;
+
+    private final Set<String> pinned = Collections.synchronizedSet(new HashSet<>());
+
+    @Before
+    public void setUp() {
+        this.refresher = new CacheRefresher();
+    }
+
+    @After
+    public void tearDown() {
+        this.refresher.shutdown();
+    }
+
+    @Test
+    public void testLoadsOnlyOnce() throws SQLException {
+        final IdentityMap<String> map = this.createMap(0, e -> {
+        });
+        final AtomicInteger loads = new AtomicInteger();
+
+        final String first = map.getOrLoad(1, () -> {
+            loads.incrementAndGet();
+            return new String("e1");
+        });
+        final String second = map.getOrLoad(1, () -> {
+            loads.incrementAndGet();
+            return new String("e1");
+        });
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testMissingEntityIsNotCached() throws SQLException {
+        final IdentityMap<String> map = this.createMap(0, e -> {
+        });
+
+        Assert.assertNull(map.getOrLoad(1, () -> {
+            throw new NoDataFoundException("missing");
+        }));
+        Assert.assertFalse(map.contains(1));
+    }
+
+    @Test
+    public void testRefreshesKnownEntity() throws SQLException {
+        final IdentityMap<String> map = this.createMap(0, e -> {
+        });
+        map.put(1, "e1");
+        final AtomicInteger refreshes = new AtomicInteger();
+
+        final String result = map.getOrLoad(1, () -> "other", e -> refreshes.incrementAndGet());
+
+        Assert.assertEquals("e1", result);
+        Assert.assertEquals(1, refreshes.get());
+    }
+
+    @Test
+    public void testRemovesDeletedEntityOnRefresh() throws SQLException {
+        final IdentityMap<String> map = this.createMap(0, e -> {
+        });
+        map.put(1, "e1");
+
+        final String result = map.getOrLoad(1, () -> "other", e -> {
+            throw new NoDataFoundException("deleted");
+        });
+
+        Assert.assertNull(result);
+        Assert.assertFalse(map.contains(1));
+    }
+
+    @Test
+    public void testReloadsInvalidatedEntityInBackground() throws SQLException, InterruptedException {
+        final CountDownLatch reloaded = new CountDownLatch(1);
+        final IdentityMap<String> map = this.createMap(0, e -> reloaded.countDown());
+        map.put(1, "e1");
+        map.invalidate(1);
+
+        Assert.assertEquals("e1", map.getOrLoad(1, () -> "other"));
+        Assert.assertTrue(reloaded.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws SQLException, InterruptedException {
+        final IdentityMap<String> map = this.createMap(MAXIMUM_SIZE, e -> {
+        });
+        this.loadRange(map, 0, MAXIMUM_SIZE);
+        map.getOrLoad(0, () -> "e0");
+
+        map.getOrLoad(MAXIMUM_SIZE, () -> "e" + MAXIMUM_SIZE);
+
+        Assert.assertEquals(MAXIMUM_SIZE - 1, map.values().size());
+        Assert.assertTrue(map.contains(0));
+        Assert.assertFalse(map.contains(1));
+        Assert.assertFalse(map.contains(2));
+        Assert.assertTrue(map.contains(MAXIMUM_SIZE));
+        Assert.assertEquals(2, map.getStatistics().getEvictionCount());
+    }
+
+    @Test
+    public void testKeepsPinnedEntities() throws SQLException, InterruptedException {
+        final IdentityMap<String> map = this.createMap(MAXIMUM_SIZE, e -> {
+        });
+        this.loadRange(map, 0, MAXIMUM_SIZE);
+        this.pinned.add("e0");
+        this.pinned.add("e1");
+
+        map.getOrLoad(MAXIMUM_SIZE, () -> "e" + MAXIMUM_SIZE);
+
+        Assert.assertTrue(map.contains(0));
+        Assert.assertTrue(map.contains(1));
+        Assert.assertFalse(map.contains(2));
+        Assert.assertFalse(map.contains(3));
+        Assert.assertTrue(map.contains(4));
+    }
+
+    @Test
+    public void testExceedsMaximumSizeIfAllEntitiesArePinned() throws SQLException, InterruptedException {
+        final IdentityMap<String> map = this.createMap(MAXIMUM_SIZE, e -> {
+        });
+        for (int i = 0; i <= MAXIMUM_SIZE; i++) {
+            this.pinned.add("e" + i);
+        }
+
+        this.loadRange(map, 0, MAXIMUM_SIZE + 1);
+
+        Assert.assertEquals(MAXIMUM_SIZE + 1, map.values().size());
+        Assert.assertEquals(0, map.getStatistics().getEvictionCount());
+    }
+
+    private IdentityMap<String> createMap(int maximumSize, IdentityMap.IRefresher<String> reloader) {
+        return new IdentityMap<>(() -> Duration.ofHours(1), reloader, this.refresher, maximumSize,
+                () -> this.pinned::contains);
+    }
+
+    /**
+     * Lädt die Objekte mit den IDs von {@code from} bis ausschließlich {@code to} in aufsteigender Reihenfolge.
+     */
+    private void loadRange(IdentityMap<String> map, int from, int to) throws SQLException, InterruptedException {
+        for (int i = from; i < to; i++) {
+            final String entity = "e" + i;
+            map.getOrLoad(i, () -> entity);
+            // Sicherstellen, dass sich die Zeitpunkte der Verwendung unterscheiden
+            Thread.sleep(1);
+        }
+    }
+}
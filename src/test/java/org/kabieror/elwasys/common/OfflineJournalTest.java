@@ -0,0 +1,224 @@
+package org.kabieror.elwasys.common;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Oliver Kabierschke
+ */
+public class OfflineJournalTest {
+
+    private static final int CAPACITY = 64 * 1024;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final User user = new User(7, "Max", new UserGroup(1, "Studenten", DiscountType.None, 0),
+            BigDecimal.TEN, new String[0], false);
+
+    private File file;
+
+    private OfflineJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        this.file = new File(this.folder.getRoot(), "journal");
+        this.journal = new OfflineJournal(this.file, CAPACITY);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.journal.close();
+    }
+
+    @Test
+    public void testReplaysInOrderOfRecording() throws IOException, SQLException {
+        this.pay("A");
+        this.pay("B");
+        this.pay("C");
+
+        Assert.assertEquals(Arrays.asList("A", "B", "C"), this.replay());
+        Assert.assertTrue(this.journal.isEmpty());
+        Assert.assertEquals(Collections.emptyList(), this.replay());
+    }
+
+    @Test
+    public void testEntriesSurviveReopening() throws IOException, SQLException {
+        this.pay("A");
+        this.pay("B");
+
+        this.reopen();
+
+        Assert.assertFalse(this.journal.isEmpty());
+        Assert.assertEquals(Arrays.asList("A", "B"), this.replay());
+    }
+
+    @Test
+    public void testReplayedEntriesAreDiscardedPermanently() throws IOException, SQLException {
+        this.pay("A");
+        this.replay();
+
+        this.reopen();
+
+        Assert.assertTrue(this.journal.isEmpty());
+    }
+
+    @Test
+    public void testFailedReplayKeepsAllEntries() throws IOException, SQLException {
+        this.pay("A");
+        this.pay("B");
+        final List<String> applied = new ArrayList<>();
+
+        try {
+            this.journal.replay(entry -> {
+                final String description = description(entry);
+                if ("B".equals(description)) {
+                    throw new SQLException("connection lost");
+                }
+                applied.add(description);
+                return true;
+            });
+            Assert.fail();
+        } catch (final SQLException e) {
+            Assert.assertEquals("connection lost", e.getMessage());
+        }
+
+        Assert.assertEquals(Collections.singletonList("A"), applied);
+        Assert.assertEquals(Arrays.asList("A", "B"), this.replay());
+    }
+
+    @Test
+    public void testEntriesAppendedDuringReplayAreKept() throws IOException, SQLException {
+        this.pay("A");
+        this.pay("B");
+
+        this.journal.replay(entry -> {
+            if ("A".equals(description(entry))) {
+                this.payUnchecked("C");
+            }
+            return true;
+        });
+
+        Assert.assertEquals(Collections.singletonList("C"), this.replay());
+    }
+
+    @Test
+    public void testAlreadyAppliedEntriesAreNotCounted() throws IOException, SQLException {
+        this.pay("A");
+        this.pay("B");
+
+        Assert.assertEquals(1, this.journal.replay(entry -> "B".equals(description(entry))));
+        Assert.assertTrue(this.journal.isEmpty());
+    }
+
+    @Test
+    public void testTornEntryIsDiscarded() throws IOException, SQLException {
+        this.pay("A");
+        this.pay("B");
+        this.journal.close();
+
+        // Das letzte Byte des zweiten Eintrags zerstören, als wäre er beim Absturz nicht vollständig geschrieben worden
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            final int first = raf.readInt();
+            raf.seek(8 + first);
+            final int second = raf.readInt();
+            final long last = 8 + first + 8 + second - 1;
+            raf.seek(last);
+            final int value = raf.read();
+            raf.seek(last);
+            raf.write(value ^ 0xFF);
+        }
+        this.journal = new OfflineJournal(this.file, CAPACITY);
+
+        this.pay("C");
+        Assert.assertEquals(Arrays.asList("A", "C"), this.replay());
+    }
+
+    @Test
+    public void testTornHeaderIsDiscarded() throws IOException, SQLException {
+        this.pay("A");
+        this.journal.close();
+
+        // Einen Eintrag beginnen, dessen Inhalt nie geschrieben wurde
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+            final int first = raf.readInt();
+            raf.seek(8 + first);
+            raf.writeInt(100);
+        }
+        this.journal = new OfflineJournal(this.file, CAPACITY);
+
+        this.pay("B");
+        Assert.assertEquals(Arrays.asList("A", "B"), this.replay());
+    }
+
+    @Test
+    public void testPermanentFailures() {
+        Assert.assertTrue(OfflineJournal.isPermanent(new SQLException("foreign key violation", "23503")));
+        Assert.assertTrue(OfflineJournal.isPermanent(new SQLException("invalid input", "22P02")));
+        Assert.assertFalse(OfflineJournal.isPermanent(new SQLException("connection failure", "08006")));
+        Assert.assertFalse(OfflineJournal.isPermanent(new SQLException("permission denied", "42501")));
+        Assert.assertFalse(OfflineJournal.isPermanent(new SQLException("unknown")));
+    }
+
+    private void reopen() throws IOException {
+        this.journal.close();
+        this.journal = new OfflineJournal(this.file, CAPACITY);
+    }
+
+    private void pay(String description) throws IOException {
+        this.journal.payment(this.user, Execution.getOfflineExecution(null, null, this.user, this.journal),
+                BigDecimal.ONE, description);
+    }
+
+    private void payUnchecked(String description) throws SQLException {
+        try {
+            this.pay(description);
+        } catch (final IOException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Trägt das Journal nach und gibt die Beschreibungen der nachgetragenen Zahlungen in ihrer Reihenfolge zurück.
+     */
+    private List<String> replay() throws SQLException {
+        final List<String> descriptions = new ArrayList<>();
+        this.journal.replay(entry -> descriptions.add(description(entry)));
+        return descriptions;
+    }
+
+    /**
+     * Liest die Beschreibung aus einem Zahlungseintrag: Typ, Ereignis-ID, Ausführungs-ID, Benutzer-ID, Betrag und
+     * Beschreibung.
+     */
+    private static String description(ByteBuffer entry) {
+        final ByteBuffer b = entry.duplicate();
+        Assert.assertEquals(3, b.get());
+        b.position(1 + 16 + 16 + 4);
+        skipString(b);
+        final byte[] bytes = new byte[b.getShort() & 0xFFFF];
+        b.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(ByteBuffer b) {
+        final int length = b.getShort() & 0xFFFF;
+        b.position(b.position() + length);
+    }
+}
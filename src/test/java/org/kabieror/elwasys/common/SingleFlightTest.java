@@ -0,0 +1,149 @@
+package org.kabieror.elwasys.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Oliver Kabierschke
+ */
+public class SingleFlightTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final SingleFlight<Integer, String> flights = new SingleFlight<>();
+
+    @Test
+    public void testConcurrentCallsAreCoalesced() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = pool.submit(() -> this.flights.execute(1, () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "result";
+            }));
+            Assert.assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            final AtomicReference<Thread> waiter = new AtomicReference<>();
+            final Future<String> second = pool.submit(() -> {
+                waiter.set(Thread.currentThread());
+                return this.flights.execute(1, () -> {
+                    calls.incrementAndGet();
+                    return "other";
+                });
+            });
+            awaitWaiting(waiter);
+            release.countDown();
+
+            Assert.assertEquals("result", first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            Assert.assertEquals("result", second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            Assert.assertEquals(1, calls.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testWaitersReceiveTheFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final Future<String> first = pool.submit(() -> this.flights.execute(1, () -> {
+                started.countDown();
+                await(release);
+                throw new SQLException("connection lost", "08006");
+            }));
+            Assert.assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+            final AtomicReference<Thread> waiter = new AtomicReference<>();
+            final Future<SQLException> second = pool.submit(() -> {
+                waiter.set(Thread.currentThread());
+                try {
+                    this.flights.execute(1, () -> "other");
+                    return null;
+                } catch (final SQLException e) {
+                    return e;
+                }
+            });
+            awaitWaiting(waiter);
+            release.countDown();
+
+            try {
+                first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof SQLException);
+            }
+            final SQLException failure = second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Assert.assertNotNull(failure);
+            Assert.assertEquals("connection lost", failure.getMessage());
+            Assert.assertEquals("08006", failure.getSQLState());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testNestedCallOfOwnerIsExecuted() throws SQLException {
+        final String result = this.flights.execute(1, () -> this.flights.execute(1, () -> "inner") + "-outer");
+
+        Assert.assertEquals("inner-outer", result);
+    }
+
+    @Test
+    public void testSequentialCallsAreNotCoalesced() throws SQLException {
+        final AtomicInteger calls = new AtomicInteger();
+
+        this.flights.execute(1, () -> "first" + calls.incrementAndGet());
+        final String second = this.flights.execute(1, () -> "second" + calls.incrementAndGet());
+
+        Assert.assertEquals("second2", second);
+    }
+
+    @Test
+    public void testFailedCallIsNotRemembered() throws SQLException {
+        try {
+            this.flights.execute(1, () -> {
+                throw new IllegalStateException("failed");
+            });
+            Assert.fail();
+        } catch (final IllegalStateException e) {
+            Assert.assertEquals("failed", e.getMessage());
+        }
+
+        Assert.assertEquals("result", this.flights.execute(1, () -> "result"));
+    }
+
+    private static void await(CountDownLatch latch) throws SQLException {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Wartet, bis der Thread auf das Ergebnis eines laufenden Aufrufs wartet.
+     */
+    private static void awaitWaiting(AtomicReference<Thread> waiter) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (waiter.get() == null || waiter.get().getState() != Thread.State.WAITING) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}